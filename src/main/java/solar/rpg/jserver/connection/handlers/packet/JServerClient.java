@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 import solar.rpg.jserver.connection.JServerConnectionContextType;
 import solar.rpg.jserver.packet.JServerPacket;
 import solar.rpg.jserver.packet.JServerPacketHeartbeat;
+import solar.rpg.jserver.packet.JServerPacketPriority;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -56,7 +57,12 @@ public abstract class JServerClient extends JServerPacketHandler {
      */
     private void doHeartbeat() {
         executor.submit(() -> {
-            writePacket(new JServerPacketHeartbeat());
+            JServerPacketHeartbeat heartbeat = obtainPacket(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+            try {
+                writePacket(heartbeat);
+            } finally {
+                heartbeat.release();
+            }
             try {
                 TimeUnit.SECONDS.sleep(5);
             } catch (InterruptedException ignored) {
@@ -81,6 +87,17 @@ public abstract class JServerClient extends JServerPacketHandler {
         writePacket(getHostAddr(), packetToWrite);
     }
 
+    /**
+     * Opens a new stream to the host.
+     *
+     * @param priority Priority class of the stream.
+     * @return New stream.
+     */
+    @NotNull
+    public JServerStream openStream(@NotNull JServerPacketPriority priority) {
+        return openStream(getHostAddr(), priority);
+    }
+
     @Override
     public void onBeforeClosed() {
         // This does not need to be used by all client implementations. Override if needed.
@@ -80,7 +80,12 @@ public abstract class JServerHost extends JServerPacketHandler {
      */
     private void doHeartbeat() {
         executor.submit(() -> {
-            writePacketAll(new JServerPacketHeartbeat());
+            JServerPacketHeartbeat heartbeat = obtainPacket(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+            try {
+                writePacketAll(heartbeat);
+            } finally {
+                heartbeat.release();
+            }
             try {
                 TimeUnit.SECONDS.sleep(5);
             } catch (InterruptedException ignored) {
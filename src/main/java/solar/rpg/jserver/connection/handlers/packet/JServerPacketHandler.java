@@ -3,9 +3,24 @@ package solar.rpg.jserver.connection.handlers.packet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import solar.rpg.jserver.connection.JServerConnectionContextType;
+import solar.rpg.jserver.connection.handlers.socket.JServerRateLimit;
+import solar.rpg.jserver.connection.handlers.socket.JServerRateLimiter;
+import solar.rpg.jserver.connection.handlers.socket.JServerSendQueuePolicy;
 import solar.rpg.jserver.connection.handlers.socket.JServerSocketHandler;
+import solar.rpg.jserver.connection.handlers.socket.JServerStreamListener;
+import solar.rpg.jserver.jfr.JServerPacketDispatchEvent;
+import solar.rpg.jserver.journal.JServerTrafficJournal;
 import solar.rpg.jserver.packet.JServerPacket;
 import solar.rpg.jserver.packet.JServerPacketHeartbeat;
+import solar.rpg.jserver.packet.JServerPacketPool;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+import solar.rpg.jserver.packet.codec.JServerStringDictionary;
+import solar.rpg.jserver.replication.JServerReplicaListener;
+import solar.rpg.jserver.replication.JServerReplicatedObject;
+import solar.rpg.jserver.replication.JServerReplicationAckPacket;
+import solar.rpg.jserver.replication.JServerReplicationPacket;
+import solar.rpg.jserver.replication.JServerReplicator;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -14,11 +29,15 @@ import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +61,25 @@ public abstract class JServerPacketHandler {
     private final Map<InetSocketAddress, SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber>> socketHandlerSubscriberMap;
     @NotNull
     private final AtomicBoolean closed;
+    @Nullable
+    private volatile JServerPacketPool packetPool;
+    @NotNull
+    private volatile JServerPacketCodecRegistry codecRegistry;
+    @Nullable
+    private volatile JServerTrafficJournal trafficJournal;
+    private volatile int maxInFlightPackets;
+    @NotNull
+    private volatile JServerPacketOrdering packetOrdering;
+    @Nullable
+    private volatile JServerRateLimit rateLimit;
+    private volatile int stringDictionaryCapacity;
+    private volatile int maxQueuedBytes;
+    private volatile long maxSendQueueWaitMillis;
+    private volatile int maxRemoteStreams;
+    @NotNull
+    private volatile JServerSendQueuePolicy sendQueuePolicy;
+    @NotNull
+    private final JServerReplicator replicator;
 
     public JServerPacketHandler(
             @NotNull JServerConnectionContextType contextType,
@@ -52,6 +90,15 @@ public abstract class JServerPacketHandler {
         this.contextType = contextType;
         socketHandlerSubscriberMap = Collections.synchronizedMap(new ConcurrentHashMap<>());
         closed = new AtomicBoolean(false);
+        codecRegistry = JServerPacketCodecRegistry.getDefault();
+        maxInFlightPackets = 1;
+        packetOrdering = JServerPacketOrdering.STRICT;
+        stringDictionaryCapacity = 0;
+        maxQueuedBytes = JServerSocketHandler.DEFAULT_MAX_QUEUED_BYTES;
+        sendQueuePolicy = JServerSendQueuePolicy.DISCONNECT;
+        maxSendQueueWaitMillis = JServerSocketHandler.DEFAULT_MAX_SEND_QUEUE_WAIT_MILLIS;
+        maxRemoteStreams = JServerSocketHandler.DEFAULT_MAX_REMOTE_STREAMS;
+        replicator = new JServerReplicator(codecRegistry);
     }
 
     /**
@@ -64,14 +111,252 @@ public abstract class JServerPacketHandler {
     protected void registerSocket(@NotNull Socket connection) throws IOException {
         assert connection.isConnected() : "Expected established socket connection";
 
-        JServerSocketHandler socketHandler = new JServerSocketHandler(connection, executor, contextType, logger);
-        JServerPacketSubscriber subscriber = new JServerPacketSubscriber(socketHandler.getAddress());
+        JServerSocketHandler socketHandler = new JServerSocketHandler(
+                connection,
+                executor,
+                codecRegistry,
+                contextType,
+                logger);
+        JServerPacketSubscriber subscriber = new JServerPacketSubscriber(socketHandler);
         socketHandlerSubscriberMap.put(
                 socketHandler.getAddress(),
                 new SimpleImmutableEntry<>(socketHandler, subscriber));
+        socketHandler.setPacketPool(packetPool);
+        socketHandler.setTrafficJournal(trafficJournal);
+        socketHandler.setRateLimit(rateLimit);
+        socketHandler.setStringDictionaryCapacity(stringDictionaryCapacity);
+        socketHandler.setSendQueueLimit(maxQueuedBytes, sendQueuePolicy);
+        socketHandler.setMaxSendQueueWait(maxSendQueueWaitMillis);
+        socketHandler.setMaxRemoteStreams(maxRemoteStreams);
+        socketHandler.setStreamListener(subscriber);
         socketHandler.subscribe(subscriber);
     }
 
+    /**
+     * Sets the registry of codecs used to encode and decode packets for connections registered from now on. By default,
+     * every codec generated for a {@link solar.rpg.jserver.packet.codec.JServerPacketType} packet is used. Both parties
+     * must use the same packet ids.
+     *
+     * @param codecRegistry Codec registry.
+     */
+    public void setCodecRegistry(@NotNull JServerPacketCodecRegistry codecRegistry) {
+        this.codecRegistry = codecRegistry;
+        replicator.setCodecRegistry(codecRegistry);
+    }
+
+    @NotNull
+    public JServerPacketCodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets how many strings are remembered per connection for connections registered from now on, so that strings
+     * which were sent before are written as short references. This is disabled by default, as the capacity is not
+     * negotiated: both parties must be configured with the same capacity, or neither can read what the other sends.
+     * {@link JServerStringDictionary#DEFAULT_CAPACITY} is a reasonable capacity to enable it with.
+     *
+     * @param stringDictionaryCapacity Number of strings remembered per priority class, or zero to disable.
+     * @throws IllegalArgumentException Capacity is negative.
+     */
+    public void setStringDictionaryCapacity(int stringDictionaryCapacity) {
+        if (stringDictionaryCapacity < 0) throw new IllegalArgumentException("Capacity must not be negative");
+
+        this.stringDictionaryCapacity = stringDictionaryCapacity;
+    }
+
+    public int getStringDictionaryCapacity() {
+        return stringDictionaryCapacity;
+    }
+
+    /**
+     * Sets how many packets from a single connection may be handled at once, for connections registered from now on.
+     * Reading from a connection pauses while this many packets are still being handled, so slow handlers apply
+     * backpressure instead of queueing packets without bound. By default, only one packet is handled at a time.
+     * <p>
+     * Packets received on {@link JServerStream streams} are not counted. Each stream handles one packet at a time, and
+     * is held back by its own flow control window instead, so streams are handled independently of each other and of
+     * the packets which are counted. They are always handled by the executor, so even a handler which blocks before
+     * returning does not stop the connection from being read.
+     *
+     * @param maxInFlightPackets Maximum number of packets being handled per connection.
+     * @throws IllegalArgumentException Maximum is not positive.
+     * @see #onPacketReceivedAsync(JServerPacket)
+     */
+    public void setMaxInFlightPackets(int maxInFlightPackets) {
+        if (maxInFlightPackets <= 0) throw new IllegalArgumentException("Maximum must be positive");
+
+        this.maxInFlightPackets = maxInFlightPackets;
+    }
+
+    public int getMaxInFlightPackets() {
+        return maxInFlightPackets;
+    }
+
+    /**
+     * Sets the ordering guarantee for packets from the same connection which are handled at once, for connections
+     * registered from now on. By default, packets are handled strictly in order.
+     *
+     * @param packetOrdering Packet ordering.
+     */
+    public void setPacketOrdering(@NotNull JServerPacketOrdering packetOrdering) {
+        this.packetOrdering = packetOrdering;
+    }
+
+    @NotNull
+    public JServerPacketOrdering getPacketOrdering() {
+        return packetOrdering;
+    }
+
+    /**
+     * Limits how fast each connection registered from now on may send packets. Every connection has its own token
+     * buckets, so one connection flooding this packet handler cannot use up the limit of another.
+     *
+     * @param rateLimit Rate limit, or null to disable rate limiting.
+     */
+    public void setRateLimit(@Nullable JServerRateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    @Nullable
+    public JServerRateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @param originAddress Address of the connection.
+     * @return Rate limiter of the connection, whose counters describe how much traffic was accepted, dropped or
+     * delayed; or null if the connection is not rate limited.
+     * @throws IllegalArgumentException Unknown connection.
+     */
+    @Nullable
+    public JServerRateLimiter getRateLimiter(@NotNull InetSocketAddress originAddress) {
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(originAddress);
+        if (entry == null) throw new IllegalArgumentException("Unknown connection");
+
+        return entry.getKey().getRateLimiter();
+    }
+
+    /**
+     * Limits how many bytes may be queued to be sent on each connection registered from now on, so that a connection
+     * which stops reading cannot use up memory without bound. By default,
+     * {@link JServerSocketHandler#DEFAULT_MAX_QUEUED_BYTES} bytes may be queued, and the connection is closed once they
+     * are exceeded.
+     * <p>
+     * With the {@link JServerSendQueuePolicy#BLOCK} policy, queued packets are sent by tasks on the executor while the
+     * writing thread waits. Packets written from handlers running on a bounded executor can therefore take up every
+     * thread which could send them, so the connection is closed once a writing thread has waited for
+     * {@link #setMaxSendQueueWait(long) the longest wait}.
+     *
+     * @param maxQueuedBytes Maximum number of queued payload bytes per connection.
+     * @param policy         What to do with packets which do not fit.
+     * @throws IllegalArgumentException Maximum is not positive.
+     */
+    public void setSendQueueLimit(int maxQueuedBytes, @NotNull JServerSendQueuePolicy policy) {
+        if (maxQueuedBytes <= 0) throw new IllegalArgumentException("Maximum must be positive");
+
+        this.maxQueuedBytes = maxQueuedBytes;
+        sendQueuePolicy = policy;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    @NotNull
+    public JServerSendQueuePolicy getSendQueuePolicy() {
+        return sendQueuePolicy;
+    }
+
+    /**
+     * Limits how long a thread writing to a connection registered from now on waits for room in its send queue with
+     * the {@link JServerSendQueuePolicy#BLOCK} policy, after which the connection is closed. By default, it waits up to
+     * {@link JServerSocketHandler#DEFAULT_MAX_SEND_QUEUE_WAIT_MILLIS} milliseconds.
+     *
+     * @param maxSendQueueWaitMillis Longest wait in milliseconds.
+     * @throws IllegalArgumentException Wait is not positive.
+     */
+    public void setMaxSendQueueWait(long maxSendQueueWaitMillis) {
+        if (maxSendQueueWaitMillis <= 0) throw new IllegalArgumentException("Wait must be positive");
+
+        this.maxSendQueueWaitMillis = maxSendQueueWaitMillis;
+    }
+
+    public long getMaxSendQueueWait() {
+        return maxSendQueueWaitMillis;
+    }
+
+    /**
+     * Limits how many streams each connection registered from now on may have open at once. Streams opened beyond the
+     * limit are closed straight away, and {@link #onStreamOpened(JServerStream)} is not called for them. By default,
+     * {@link JServerSocketHandler#DEFAULT_MAX_REMOTE_STREAMS} streams may be open at once.
+     *
+     * @param maxRemoteStreams Maximum number of open streams opened by each connection.
+     * @throws IllegalArgumentException Maximum is negative.
+     */
+    public void setMaxRemoteStreams(int maxRemoteStreams) {
+        if (maxRemoteStreams < 0) throw new IllegalArgumentException("Maximum must not be negative");
+
+        this.maxRemoteStreams = maxRemoteStreams;
+    }
+
+    public int getMaxRemoteStreams() {
+        return maxRemoteStreams;
+    }
+
+    /**
+     * Starts recording every frame sent or received on connections registered from now on. The journal is not closed
+     * when this packet handler is closed.
+     *
+     * @param trafficJournal Traffic journal, or null to disable recording.
+     */
+    public void setTrafficJournal(@Nullable JServerTrafficJournal trafficJournal) {
+        this.trafficJournal = trafficJournal;
+    }
+
+    @Nullable
+    public JServerTrafficJournal getTrafficJournal() {
+        return trafficJournal;
+    }
+
+    /**
+     * Enables pooling of packets for connections registered from now on. Heartbeat packets are always pooled once a
+     * pool is set; other packet types must be {@link JServerPacketPool#register registered} with the pool.
+     * <p>
+     * Received packets of pooled types are released after {@link #onPacketReceived(JServerPacket)} returns, so they
+     * must be {@link JServerPacket#retain() retained} if they are needed afterwards. The {@code writePacket} methods
+     * encode packets before returning and never take the caller's reference, so the caller still has to release its
+     * own reference. Received packets can therefore be forwarded as they are.
+     *
+     * @param packetPool Packet pool, or null to disable pooling.
+     */
+    public void setPacketPool(@Nullable JServerPacketPool packetPool) {
+        if (packetPool != null && !packetPool.isRegistered(JServerPacketHeartbeat.class))
+            packetPool.register(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+
+        this.packetPool = packetPool;
+    }
+
+    @Nullable
+    public JServerPacketPool getPacketPool() {
+        return packetPool;
+    }
+
+    /**
+     * Obtains a packet to send. The packet is borrowed from the packet pool if pooling is enabled for its type,
+     * otherwise a new packet is created.
+     *
+     * @param type    Packet type.
+     * @param factory Creates a new packet if the type is not pooled.
+     * @param <T>     Packet type.
+     * @return Packet to send.
+     */
+    @NotNull
+    public <T extends JServerPacket> T obtainPacket(@NotNull Class<T> type, @NotNull Supplier<T> factory) {
+        JServerPacketPool pool = packetPool;
+        return pool != null && pool.isRegistered(type) ? pool.borrow(type) : factory.get();
+    }
+
     public abstract void onNewConnection(@NotNull InetSocketAddress originAddress);
 
     public void writePacketAll(@NotNull JServerPacket packetToSend) {
@@ -85,14 +370,165 @@ public abstract class JServerPacketHandler {
                 .forEach(originAddress -> writePacket(originAddress, packetToSend));
     }
 
+    /**
+     * Queues a packet to be written to a connection. The packet is encoded before this returns, so the caller may
+     * change or release it straight away, and remains responsible for releasing it.
+     *
+     * @param originAddress Address of the connection.
+     * @param packetToSend  Packet to send.
+     * @throws IllegalArgumentException Unknown connection.
+     * @throws IllegalArgumentException Packet could not be encoded.
+     */
     public void writePacket(@NotNull InetSocketAddress originAddress, @NotNull JServerPacket packetToSend) {
-        if (!socketHandlerSubscriberMap.containsKey(originAddress))
-            throw new IllegalArgumentException("Unknown connection");
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(originAddress);
+        if (entry == null) throw new IllegalArgumentException("Unknown connection");
 
-        socketHandlerSubscriberMap.get(originAddress).getKey().writePacket(packetToSend);
+        entry.getKey().writePacket(packetToSend);
         onBeforeWritePacket(originAddress, packetToSend);
     }
 
+    /**
+     * Opens a new stream to a connection, whose packets are sent with {@link JServerPacketPriority#NORMAL normal}
+     * priority.
+     *
+     * @param originAddress Address of the connection.
+     * @return New stream.
+     * @throws IllegalArgumentException Unknown connection.
+     * @see #openStream(InetSocketAddress, JServerPacketPriority)
+     */
+    @NotNull
+    public JServerStream openStream(@NotNull InetSocketAddress originAddress) {
+        return openStream(originAddress, JServerPacketPriority.NORMAL);
+    }
+
+    /**
+     * Opens a new stream to a connection. Every packet written to the stream is sent with the given priority class,
+     * regardless of its own priority.
+     *
+     * @param originAddress Address of the connection.
+     * @param priority      Priority class of the stream.
+     * @return New stream.
+     * @throws IllegalArgumentException Unknown connection.
+     */
+    @NotNull
+    public JServerStream openStream(@NotNull InetSocketAddress originAddress, @NotNull JServerPacketPriority priority) {
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(originAddress);
+        if (entry == null) throw new IllegalArgumentException("Unknown connection");
+
+        int streamId = entry.getKey().openStream(priority);
+        JServerStream stream = new JServerStream(this, originAddress, streamId, priority);
+        entry.getValue().streams.put(streamId, stream);
+        return stream;
+    }
+
+    /**
+     * @param originAddress Address of the connection.
+     * @param streamId      Id of the stream, as returned by {@link JServerPacket#getStreamId()}.
+     * @return Open stream, or null if the stream is not open.
+     * @throws IllegalArgumentException Unknown connection.
+     */
+    @Nullable
+    public JServerStream getStream(@NotNull InetSocketAddress originAddress, int streamId) {
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(originAddress);
+        if (entry == null) throw new IllegalArgumentException("Unknown connection");
+
+        return entry.getValue().streams.get(streamId);
+    }
+
+    /**
+     * Called when the other party opens a stream, before any packet received on it is handled.
+     *
+     * @param stream New stream.
+     */
+    public void onStreamOpened(@NotNull JServerStream stream) {
+        // Override if streams opened by the other party need to be tracked.
+    }
+
+    /**
+     * Called once a stream has been closed by either party, after every packet received on it has been handled.
+     * Streams of a connection which is closed are not reported.
+     *
+     * @param stream Closed stream.
+     */
+    public void onStreamClosed(@NotNull JServerStream stream) {
+        // Override if streams need to be cleaned up.
+    }
+
+    void writePacket(@NotNull JServerStream stream, @NotNull JServerPacket packetToSend) {
+        if (stream.isClosed()) throw new IllegalStateException("Stream is closed");
+
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(stream.getOriginAddress());
+        if (entry == null) throw new IllegalStateException("Stream is closed");
+
+        entry.getKey().writePacket(stream.getId(), packetToSend);
+        onBeforeWritePacket(stream.getOriginAddress(), packetToSend);
+    }
+
+    void closeStream(@NotNull JServerStream stream) {
+        if (!stream.markClosed()) return;
+
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(stream.getOriginAddress());
+        if (entry == null) return;
+
+        entry.getKey().closeStream(stream.getId());
+        entry.getValue().onStreamClosed(stream);
+    }
+
+    /**
+     * @return Replicator which holds the objects replicated to every connection, and the replicas of objects replicated
+     * by each connection.
+     */
+    @NotNull
+    public JServerReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Sends every connection the changes to replicated objects since the last update it acknowledged, or a full
+     * snapshot once every {@link JServerReplicator#setSnapshotInterval snapshot interval}. This should be called at a
+     * steady rate, such as once per tick.
+     */
+    public void replicate() {
+        Map<InetSocketAddress, JServerReplicationPacket> updates;
+        try {
+            updates = replicator.createUpdates();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, String.format("(%s) Unable to encode replicated objects", contextType), e);
+            return;
+        }
+
+        updates.forEach((originAddress, update) -> {
+            try {
+                writePacket(originAddress, update);
+            } catch (IllegalArgumentException | IllegalStateException ignored) {
+                // The connection was closed in the meantime.
+            }
+        });
+    }
+
+    /**
+     * Called after changes from a connection have been applied to a replica, including when it is first created.
+     *
+     * @param replica Updated replica.
+     */
+    public void onReplicaUpdated(@NotNull JServerReplicatedObject replica) {
+        // Override if replicas need to be reacted to.
+    }
+
+    /**
+     * Called after a connection stops replicating an object. Replicas of a connection which is closed are not reported.
+     *
+     * @param replica Removed replica.
+     */
+    public void onReplicaRemoved(@NotNull JServerReplicatedObject replica) {
+        // Override if replicas need to be cleaned up.
+    }
+
     public void onBeforeWritePacket(@NotNull InetSocketAddress originAddress, @NotNull JServerPacket packetToSend) {
         // Override if needed for debugging.
     }
@@ -104,27 +540,34 @@ public abstract class JServerPacketHandler {
     public void close() {
         assert !closed.get() : "Packet handler is already closed";
 
-        logger.log(Level.FINE,
-                   String.format("(%s) Attempting to close packet handler with %d active connections",
-                                 contextType,
-                                 socketHandlerSubscriberMap.size()));
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE,
+                       String.format("(%s) Attempting to close packet handler with %d active connections",
+                                     contextType,
+                                     socketHandlerSubscriberMap.size()));
 
         onBeforeClosed();
         closed.set(true);
 
-        for (InetSocketAddress originAddress : socketHandlerSubscriberMap.keySet())
-            closeSocket(originAddress);
+        // Connections may also be closing by themselves in the meantime, so they are cancelled directly.
+        for (SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry :
+                List.copyOf(socketHandlerSubscriberMap.values()))
+            entry.getValue().cancel();
 
         assert socketHandlerSubscriberMap.size() == 0 : "Expected all connections to be closed";
+
+        JServerPacketPool pool = packetPool;
+        if (pool != null) pool.reportLeaks(logger);
     }
 
     public abstract void onBeforeClosed();
 
     public void closeSocket(@NotNull InetSocketAddress originAddress) {
-        if (!socketHandlerSubscriberMap.containsKey(originAddress))
-            throw new IllegalArgumentException("Unknown connection");
+        SimpleImmutableEntry<JServerSocketHandler, JServerPacketSubscriber> entry =
+                socketHandlerSubscriberMap.get(originAddress);
+        if (entry == null) throw new IllegalArgumentException("Unknown connection");
 
-        socketHandlerSubscriberMap.get(originAddress).getValue().cancel();
+        entry.getValue().cancel();
     }
 
     public abstract void onSocketClosed(@NotNull InetSocketAddress originAddress);
@@ -137,18 +580,88 @@ public abstract class JServerPacketHandler {
      */
     public abstract void onPacketReceived(@NotNull JServerPacket packet);
 
-    private final class JServerPacketSubscriber implements Subscriber<JServerPacket> {
+    /**
+     * Handles a custom packet, completing the returned stage once it has been handled. Override this instead of
+     * {@link #onPacketReceived(JServerPacket)} when handling a packet involves blocking work such as a database lookup,
+     * so that reading from the connection can continue in the meantime. Pooled packets are released once the returned
+     * stage completes.
+     *
+     * @param packet Custom packet to handle.
+     * @return Stage which completes once the packet has been handled.
+     * @see #setMaxInFlightPackets(int)
+     */
+    @NotNull
+    public CompletionStage<Void> onPacketReceivedAsync(@NotNull JServerPacket packet) {
+        onPacketReceived(packet);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the key which determines the order that packets are handled in when the packet ordering is
+     * {@link JServerPacketOrdering#PER_KEY}. Packets from the same connection with equal keys are handled in order.
+     * By default, every packet has the same key.
+     *
+     * @param packet Received packet.
+     * @return Ordering key, or null to order the packet with every other packet without a key.
+     */
+    @Nullable
+    public Object getOrderingKey(@NotNull JServerPacket packet) {
+        return null;
+    }
+
+    private final class JServerPacketSubscriber
+            implements Subscriber<JServerPacket>, JServerStreamListener, JServerReplicaListener {
+
+        /**
+         * Ordering key used for packets which do not have one, as {@code ConcurrentHashMap} does not allow null keys.
+         */
+        private static final Object NO_ORDERING_KEY = new Object();
+
+        /**
+         * Ordering key of replication updates, which must be applied in the order they were sent.
+         */
+        private static final Object REPLICATION_ORDERING_KEY = new Object();
 
+        @NotNull
+        private final JServerSocketHandler socketHandler;
         @NotNull
         private final InetSocketAddress originAddress;
+        private final int connectionId;
         @Nullable
         private Subscription subscription;
         @NotNull
         private final AtomicBoolean wantToClose;
 
-        public JServerPacketSubscriber(@NotNull InetSocketAddress originAddress) {
-            this.originAddress = originAddress;
+        // --- In-flight packet handling //
+        private final int maxInFlight;
+        @NotNull
+        private final JServerPacketOrdering ordering;
+        @NotNull
+        private final AtomicInteger inFlight;
+
+        /**
+         * Stage of the most recently received packet for each ordering key, which the next packet with the same key
+         * must wait for. Strict ordering uses a single key.
+         */
+        @NotNull
+        private final Map<Object, CompletableFuture<Void>> orderingTails;
+
+        /**
+         * Open streams of this connection, by id.
+         */
+        @NotNull
+        private final Map<Integer, JServerStream> streams;
+
+        public JServerPacketSubscriber(@NotNull JServerSocketHandler socketHandler) {
+            this.socketHandler = socketHandler;
+            originAddress = socketHandler.getAddress();
+            connectionId = socketHandler.getConnectionId();
+            streams = new ConcurrentHashMap<>();
             wantToClose = new AtomicBoolean(false);
+            maxInFlight = maxInFlightPackets;
+            ordering = packetOrdering;
+            inFlight = new AtomicInteger(0);
+            orderingTails = new ConcurrentHashMap<>();
         }
 
         public void cancel() {
@@ -163,6 +676,7 @@ public abstract class JServerPacketHandler {
             if (this.subscription != null) throw new IllegalStateException("Subscription is already set");
 
             this.subscription = subscription;
+            replicator.addConnection(originAddress);
             onNewConnection(originAddress);
             subscription.request(1);
         }
@@ -174,12 +688,181 @@ public abstract class JServerPacketHandler {
             if (!originAddress.equals(packet.getOriginAddress()))
                 throw new IllegalArgumentException("Mismatched origin address");
 
-            logger.log(Level.FINEST, String.format("(%s) Received packet from %s", contextType, originAddress));
+            if (logger.isLoggable(Level.FINEST))
+                logger.log(Level.FINEST, String.format("(%s) Received packet from %s", contextType, originAddress));
+
+            // Packets on a stream are held back by the flow control window of the stream, so they do not take up the
+            // in-flight budget, and a stream with a slow handler does not stop anything else from being read.
+            long receivedNanos = JServerPacketDispatchEvent.isTypeEnabled() ? System.nanoTime() : 0;
+            int streamId = packet.getStreamId();
+            boolean counted = streamId == 0;
+            int nowInFlight = counted ? inFlight.incrementAndGet() : inFlight.get();
+
+            // Packets on a stream are only ordered with each other.
+            Object key = NO_ORDERING_KEY;
+            if (streamId != 0) {
+                JServerStream stream = streams.get(streamId);
+                if (stream != null) key = stream;
+            } else if (ordering == JServerPacketOrdering.PER_KEY && !(packet instanceof JServerPacketHeartbeat)) {
+                Object packetKey = packet instanceof JServerReplicationPacket
+                                   ? REPLICATION_ORDERING_KEY
+                                   : getOrderingKey(packet);
+                if (packetKey != null) key = packetKey;
+            }
+
+            // onNext is never called concurrently, so the tail for this key cannot change in the meantime. Packets which
+            // have to wait are dispatched by the executor, rather than by whichever thread completed the packet before.
+            // Packets on a stream are always dispatched by the executor, as a handler which blocks before returning
+            // would otherwise stop this connection from being read.
+            CompletableFuture<Void> previous = orderingTails.get(key);
+            boolean waiting = previous != null && !previous.isDone();
+            CompletableFuture<Void> handled = !waiting && streamId == 0
+                                              ? dispatch(packet, receivedNanos)
+                                              : (waiting ? previous : CompletableFuture.<Void>completedFuture(null))
+                                                      .thenComposeAsync(
+                                                              ignored -> dispatch(packet, receivedNanos),
+                                                              executor);
+            orderingTails.put(key, handled);
+
+            Object finalKey = key;
+            handled.whenComplete((ignored, throwable) -> {
+                try {
+                    orderingTails.remove(finalKey, handled);
+                    packet.release();
+                } catch (IllegalStateException e) {
+                    logger.log(Level.SEVERE,
+                               String.format("(%s) Packet from %s was released by its handler without being retained",
+                                             contextType,
+                                             originAddress),
+                               e);
+                } finally {
+                    if (streamId != 0) socketHandler.onStreamPacketHandled(streamId);
+
+                    // Whoever brings the count back below the maximum resumes reading.
+                    if (counted && inFlight.getAndDecrement() == maxInFlight && !wantToClose.get())
+                        subscription.request(1);
+                }
+            });
+
+            if (nowInFlight < maxInFlight && !wantToClose.get()) subscription.request(1);
+        }
+
+        /**
+         * Hands a packet to the concrete packet handler. Heartbeats are handled immediately.
+         *
+         * @param packet        Received packet.
+         * @param receivedNanos Time the packet was passed to {@link #onNext}, for tracing how long it waited, or zero
+     *                      if the dispatch event was disabled at the time.
+         * @return Stage which completes normally once the packet has been handled, even if handling failed.
+         */
+        @NotNull
+        private CompletableFuture<Void> dispatch(@NotNull JServerPacket packet, long receivedNanos) {
+            if (packet instanceof JServerPacketHeartbeat) return CompletableFuture.completedFuture(null);
+            if (packet instanceof JServerReplicationAckPacket ack) {
+                replicator.onAcknowledged(originAddress, ack);
+                return CompletableFuture.completedFuture(null);
+            }
+            if (packet instanceof JServerReplicationPacket update) {
+                applyUpdate(update);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            JServerPacketDispatchEvent event = JServerPacketDispatchEvent.beginIfEnabled();
+            long queueWait = event != null && receivedNanos != 0 ? System.nanoTime() - receivedNanos : 0;
+            CompletableFuture<Void> handled = new CompletableFuture<>();
+            try {
+                onPacketReceivedAsync(packet).whenComplete((ignored, throwable) -> {
+                    if (throwable != null) logHandlerError(throwable);
+                    if (event != null) event.end(connectionId, packet.getClass(), throwable != null, queueWait);
+                    handled.complete(null);
+                });
+            } catch (RuntimeException e) {
+                logHandlerError(e);
+                if (event != null) event.end(connectionId, packet.getClass(), true, queueWait);
+                handled.complete(null);
+            }
+            return handled;
+        }
+
+        /**
+         * Applies a replication update to the replicas of this connection, and acknowledges it. Updates which cannot be
+         * applied are not acknowledged, so the next update is relative to the last applied one.
+         *
+         * @param update Received update.
+         */
+        private void applyUpdate(@NotNull JServerReplicationPacket update) {
+            try {
+                JServerReplicationAckPacket ack = replicator.apply(originAddress, update, this);
+                if (ack != null) writePacket(originAddress, ack);
+            } catch (IOException e) {
+                logger.log(Level.WARNING,
+                           String.format("(%s) Unable to apply replication update from %s", contextType, originAddress),
+                           e);
+            } catch (IllegalArgumentException | IllegalStateException ignored) {
+                // The connection was closed in the meantime.
+            }
+        }
+
+        @Override
+        public void onReplicaUpdated(@NotNull JServerReplicatedObject replica) {
+            try {
+                JServerPacketHandler.this.onReplicaUpdated(replica);
+            } catch (RuntimeException e) {
+                logHandlerError(e);
+            }
+        }
+
+        @Override
+        public void onReplicaRemoved(@NotNull JServerReplicatedObject replica) {
+            try {
+                JServerPacketHandler.this.onReplicaRemoved(replica);
+            } catch (RuntimeException e) {
+                logHandlerError(e);
+            }
+        }
+
+        @Override
+        public void onStreamOpened(int streamId, @NotNull JServerPacketPriority priority) {
+            JServerStream stream = new JServerStream(JServerPacketHandler.this, originAddress, streamId, priority);
+            streams.put(streamId, stream);
+            try {
+                JServerPacketHandler.this.onStreamOpened(stream);
+            } catch (RuntimeException e) {
+                logHandlerError(e);
+            }
+        }
+
+        @Override
+        public void onStreamClosed(int streamId) {
+            JServerStream stream = streams.get(streamId);
+            if (stream != null && stream.markClosed()) onStreamClosed(stream);
+        }
 
-            if (!(packet instanceof JServerPacketHeartbeat))
-                onPacketReceived(packet);
+        /**
+         * Forgets a closed stream, and notifies the concrete packet handler once every packet received on it has been
+         * handled.
+         *
+         * @param stream Closed stream.
+         */
+        void onStreamClosed(@NotNull JServerStream stream) {
+            streams.remove(stream.getId(), stream);
+
+            Runnable notify = () -> {
+                try {
+                    JServerPacketHandler.this.onStreamClosed(stream);
+                } catch (RuntimeException e) {
+                    logHandlerError(e);
+                }
+            };
+            CompletableFuture<Void> tail = orderingTails.get(stream);
+            if (tail == null) notify.run();
+            else tail.whenComplete((ignored, throwable) -> notify.run());
+        }
 
-            if (!wantToClose.get()) subscription.request(1);
+        private void logHandlerError(@NotNull Throwable throwable) {
+            logger.log(Level.WARNING,
+                       String.format("(%s) Error handling packet from %s", contextType, originAddress),
+                       throwable);
         }
 
         @Override
@@ -193,6 +876,8 @@ public abstract class JServerPacketHandler {
 
         @Override
         public void onComplete() {
+            streams.values().forEach(JServerStream::markClosed);
+            replicator.removeConnection(originAddress);
             socketHandlerSubscriberMap.remove(originAddress);
             onSocketClosed(originAddress);
         }
@@ -0,0 +1,26 @@
+package solar.rpg.jserver.connection.handlers.packet;
+
+import solar.rpg.jserver.packet.JServerPacket;
+
+/**
+ * Denotes the ordering guarantee given when several packets from the same connection are being handled at once.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ * @see JServerPacketHandler#setMaxInFlightPackets(int)
+ */
+public enum JServerPacketOrdering {
+
+    /**
+     * Packets from a connection are handled one at a time, in the order they were received. Reading continues while
+     * packets are being handled, but a packet is not handled until the packet before it has completed.
+     */
+    STRICT,
+
+    /**
+     * Packets from a connection with the same {@link JServerPacketHandler#getOrderingKey(JServerPacket) ordering key}
+     * are handled one at a time, in the order they were received. Packets with different keys are handled
+     * concurrently.
+     */
+    PER_KEY
+}
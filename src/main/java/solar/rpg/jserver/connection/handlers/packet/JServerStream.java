@@ -0,0 +1,98 @@
+package solar.rpg.jserver.connection.handlers.packet;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@code JServerStream} is a logical stream of packets multiplexed over a single connection. Packets on a stream are
+ * handled in the order they were sent, independently of packets on other streams, and each stream is flow controlled
+ * separately, so a stream whose packets are slow to handle does not hold up the rest of the connection.
+ * <p>
+ * Streams are opened using {@link JServerPacketHandler#openStream(InetSocketAddress, JServerPacketPriority)}, and the
+ * other party is notified through {@link JServerPacketHandler#onStreamOpened(JServerStream)} once the first packet is
+ * written to it. Packets received on a stream can be matched to it using {@link JServerPacket#getStreamId()}.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerStream {
+
+    @NotNull
+    private final JServerPacketHandler packetHandler;
+    @NotNull
+    private final InetSocketAddress originAddress;
+    private final int id;
+    @NotNull
+    private final JServerPacketPriority priority;
+    @NotNull
+    private final AtomicBoolean closed;
+
+    JServerStream(
+            @NotNull JServerPacketHandler packetHandler,
+            @NotNull InetSocketAddress originAddress,
+            int id,
+            @NotNull JServerPacketPriority priority) {
+        this.packetHandler = packetHandler;
+        this.originAddress = originAddress;
+        this.id = id;
+        this.priority = priority;
+        closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * @return Id of this stream, which is unique within its connection.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Address of the connection this stream belongs to.
+     */
+    @NotNull
+    public InetSocketAddress getOriginAddress() {
+        return originAddress;
+    }
+
+    /**
+     * @return Priority class of every packet written to this stream.
+     */
+    @NotNull
+    public JServerPacketPriority getPriority() {
+        return priority;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Queues a packet to be written to this stream. The packet is encoded before this returns, so the caller may
+     * change or release it straight away, and remains responsible for releasing it.
+     *
+     * @param packetToSend Packet to send.
+     * @throws IllegalArgumentException Packet could not be encoded.
+     * @throws IllegalStateException    Stream is closed.
+     */
+    public void writePacket(@NotNull JServerPacket packetToSend) {
+        packetHandler.writePacket(this, packetToSend);
+    }
+
+    /**
+     * Closes this stream in both directions. Packets which were already written to it are still sent.
+     */
+    public void close() {
+        packetHandler.closeStream(this);
+    }
+
+    /**
+     * @return True, if this call closed the stream; false if it was already closed.
+     */
+    boolean markClosed() {
+        return closed.compareAndSet(false, true);
+    }
+}
@@ -0,0 +1,89 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A {@code JServerRateLimit} describes how fast a single connection may send packets, as a pair of token buckets: one
+ * for packets and one for bytes. Each bucket holds up to its burst size in tokens and is refilled at its rate. A frame
+ * is accepted if a packet token is available and the byte bucket is not in debt. It then takes one packet token, once
+ * its payload is complete, and one byte token per byte, so a single frame larger than the byte burst size is still
+ * accepted. What happens to frames which are not accepted is decided by the {@link JServerRateLimitPolicy}.
+ * <p>
+ * A rate of zero means the corresponding bucket is unlimited.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerRateLimit {
+
+    private final double packetsPerSecond;
+    private final double packetBurst;
+    private final double bytesPerSecond;
+    private final double byteBurst;
+    @NotNull
+    private final JServerRateLimitPolicy policy;
+
+    /**
+     * Constructs a {@code JServerRateLimit}.
+     *
+     * @param packetsPerSecond Rate which packet tokens are refilled at, or zero for no packet limit.
+     * @param packetBurst      Maximum number of packet tokens.
+     * @param bytesPerSecond   Rate which byte tokens are refilled at, or zero for no byte limit.
+     * @param byteBurst        Maximum number of byte tokens.
+     * @param policy           What to do with frames which exceed the limit.
+     * @throws IllegalArgumentException Rate is negative, or burst size of a limited bucket is too small.
+     */
+    public JServerRateLimit(
+            double packetsPerSecond,
+            double packetBurst,
+            double bytesPerSecond,
+            double byteBurst,
+            @NotNull JServerRateLimitPolicy policy) {
+        if (packetsPerSecond < 0 || bytesPerSecond < 0) throw new IllegalArgumentException("Rate must not be negative");
+        if (packetsPerSecond > 0 && packetBurst < 1)
+            throw new IllegalArgumentException("Packet burst size must be at least one");
+        if (bytesPerSecond > 0 && byteBurst <= 0) throw new IllegalArgumentException("Byte burst size must be positive");
+
+        this.packetsPerSecond = packetsPerSecond;
+        this.packetBurst = packetBurst;
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = byteBurst;
+        this.policy = policy;
+    }
+
+    /**
+     * Constructs a {@code JServerRateLimit} whose burst sizes are one second's worth of tokens, and at least one packet.
+     *
+     * @param packetsPerSecond Rate which packet tokens are refilled at, or zero for no packet limit.
+     * @param bytesPerSecond   Rate which byte tokens are refilled at, or zero for no byte limit.
+     * @param policy           What to do with frames which exceed the limit.
+     * @throws IllegalArgumentException Rate is negative.
+     */
+    public JServerRateLimit(
+            double packetsPerSecond,
+            double bytesPerSecond,
+            @NotNull JServerRateLimitPolicy policy) {
+        this(packetsPerSecond, Math.max(1, packetsPerSecond), bytesPerSecond, bytesPerSecond, policy);
+    }
+
+    public double getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    public double getPacketBurst() {
+        return packetBurst;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getByteBurst() {
+        return byteBurst;
+    }
+
+    @NotNull
+    public JServerRateLimitPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,20 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/**
+ * Thrown when a connection with the {@link JServerRateLimitPolicy#DISCONNECT} policy exceeds its rate limit.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public class JServerRateLimitExceededException extends IOException {
+
+    @Serial
+    private static final long serialVersionUID = 3817046291573846520L;
+
+    public JServerRateLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,27 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+/**
+ * Determines what a {@link JServerSocketHandler} does when a connection sends packets faster than its
+ * {@link JServerRateLimit} allows.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public enum JServerRateLimitPolicy {
+
+    /**
+     * Stop reading from the connection until enough tokens have been refilled. Unread data stays in the socket
+     * buffers, so TCP flow control slows the sender down. No packets are lost.
+     */
+    DELAY,
+
+    /**
+     * Keep reading, but discard packets without decoding them until enough tokens have been refilled.
+     */
+    DROP,
+
+    /**
+     * Close the connection.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,213 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@code JServerRateLimiter} enforces a {@link JServerRateLimit} on the frames received by a single connection, and
+ * counts what happened to them. Frames are only ever acquired by the task reading from the connection, but the
+ * counters may be read from any thread.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerRateLimiter {
+
+    @NotNull
+    private final JServerRateLimit limit;
+    @NotNull
+    private final LongSupplier nanoClock;
+
+    // --- Token buckets, only used by the reading task //
+    private double packetTokens;
+    private double byteTokens;
+    private long lastRefillNanos;
+
+    // --- Counters //
+    @NotNull
+    private final AtomicLong acceptedPackets;
+    @NotNull
+    private final AtomicLong acceptedBytes;
+    @NotNull
+    private final AtomicLong droppedPackets;
+    @NotNull
+    private final AtomicLong droppedBytes;
+    @NotNull
+    private final AtomicLong delayedReads;
+    @NotNull
+    private final AtomicLong delayedNanos;
+
+    /**
+     * Constructs a {@code JServerRateLimiter} with full buckets.
+     *
+     * @param limit Rate limit to enforce.
+     */
+    public JServerRateLimiter(@NotNull JServerRateLimit limit) {
+        this(limit, System::nanoTime);
+    }
+
+    /**
+     * Constructs a {@code JServerRateLimiter} with full buckets, which refills them according to the given clock.
+     *
+     * @param limit     Rate limit to enforce.
+     * @param nanoClock Source of the current time in nanoseconds, such as {@link System#nanoTime()}.
+     */
+    JServerRateLimiter(@NotNull JServerRateLimit limit, @NotNull LongSupplier nanoClock) {
+        this.limit = limit;
+        this.nanoClock = nanoClock;
+        packetTokens = limit.getPacketBurst();
+        byteTokens = limit.getByteBurst();
+        lastRefillNanos = nanoClock.getAsLong();
+        acceptedPackets = new AtomicLong();
+        acceptedBytes = new AtomicLong();
+        droppedPackets = new AtomicLong();
+        droppedBytes = new AtomicLong();
+        delayedReads = new AtomicLong();
+        delayedNanos = new AtomicLong();
+    }
+
+    @NotNull
+    public JServerRateLimit getLimit() {
+        return limit;
+    }
+
+    /**
+     * Takes tokens for a received frame. With the {@link JServerRateLimitPolicy#DELAY} policy, the frame is always
+     * accepted and the buckets may go into debt, which {@link #getReadDelayNanos()} then waits out.
+     *
+     * @param packets One if the frame completes a payload, otherwise zero.
+     * @param bytes   Length of the frame body.
+     * @return True, if the frame was accepted.
+     */
+    boolean tryAcquire(int packets, int bytes) {
+        refill();
+
+        boolean limited = (limit.getPacketsPerSecond() > 0 && packetTokens < packets)
+                          || (limit.getBytesPerSecond() > 0 && byteTokens <= 0);
+        if (limited && limit.getPolicy() != JServerRateLimitPolicy.DELAY) {
+            droppedBytes.addAndGet(bytes);
+            return false;
+        }
+
+        packetTokens -= packets;
+        byteTokens -= bytes;
+        acceptedPackets.addAndGet(packets);
+        acceptedBytes.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * Takes tokens for a received frame which is handled regardless of the limit, such as a control frame or a frame
+     * which is discarded anyway. The buckets may go into debt, which holds back the frames after it.
+     *
+     * @param packets  One if the frame completes a payload, otherwise zero.
+     * @param bytes    Length of the frame body.
+     * @param accepted True, if the frame is processed; false if it is discarded.
+     * @return True, if the buckets had enough tokens for the frame.
+     */
+    boolean charge(int packets, int bytes, boolean accepted) {
+        refill();
+
+        packetTokens -= packets;
+        byteTokens -= bytes;
+        if (accepted) {
+            acceptedPackets.addAndGet(packets);
+            acceptedBytes.addAndGet(bytes);
+        } else {
+            droppedBytes.addAndGet(bytes);
+        }
+        return (limit.getPacketsPerSecond() <= 0 || packetTokens >= 0)
+               && (limit.getBytesPerSecond() <= 0 || byteTokens >= 0);
+    }
+
+    /**
+     * Records that a payload was discarded because one of its frames was not accepted.
+     */
+    void onPacketDropped() {
+        droppedPackets.incrementAndGet();
+    }
+
+    /**
+     * @return True, if either bucket is in debt, so reading should stop until {@link #getReadDelayNanos()} has passed.
+     */
+    boolean isInDebt() {
+        refill();
+        return (limit.getPacketsPerSecond() > 0 && packetTokens < 0)
+               || (limit.getBytesPerSecond() > 0 && byteTokens < 0);
+    }
+
+    /**
+     * @return Nanoseconds to wait before reading the next frame, so that neither bucket is in debt. Frames accepted
+     * with the {@link JServerRateLimitPolicy#DELAY} policy, and frames which are charged regardless of the limit, may
+     * put the buckets into debt.
+     */
+    long getReadDelayNanos() {
+        refill();
+
+        double seconds = 0;
+        if (limit.getPacketsPerSecond() > 0 && packetTokens < 0)
+            seconds = -packetTokens / limit.getPacketsPerSecond();
+        if (limit.getBytesPerSecond() > 0 && byteTokens < 0)
+            seconds = Math.max(seconds, -byteTokens / limit.getBytesPerSecond());
+        if (seconds == 0) return 0;
+
+        long delay = (long) Math.ceil(seconds * TimeUnit.SECONDS.toNanos(1));
+        delayedReads.incrementAndGet();
+        delayedNanos.addAndGet(delay);
+        return delay;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefillNanos = now;
+
+        packetTokens = Math.min(limit.getPacketBurst(), packetTokens + elapsedSeconds * limit.getPacketsPerSecond());
+        byteTokens = Math.min(limit.getByteBurst(), byteTokens + elapsedSeconds * limit.getBytesPerSecond());
+    }
+
+    /**
+     * @return Number of packets which were accepted.
+     */
+    public long getAcceptedPackets() {
+        return acceptedPackets.get();
+    }
+
+    /**
+     * @return Number of frame bytes which were accepted.
+     */
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    /**
+     * @return Number of packets which were discarded without being decoded.
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * @return Number of frame bytes which were discarded, or which exceeded the limit before disconnecting.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return Number of times reading was delayed.
+     */
+    public long getDelayedReads() {
+        return delayedReads.get();
+    }
+
+    /**
+     * @return Total time reading was delayed for, in nanoseconds.
+     */
+    public long getDelayedNanos() {
+        return delayedNanos.get();
+    }
+}
@@ -0,0 +1,32 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+/**
+ * Determines what a {@link JServerSocketHandler} does when a packet is written while the packets queued for its
+ * connection already take up the maximum number of bytes, usually because the other party reads too slowly.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public enum JServerSendQueuePolicy {
+
+    /**
+     * Make the writing thread wait until enough queued bytes have been sent. Nothing is lost, but the writing thread is
+     * held up while the other party does not read. Queued bytes are sent by tasks on the executor of the connection,
+     * which cannot run while writing threads take up every thread of a bounded executor, so the connection is closed
+     * if the writing thread waits longer than {@link JServerSocketHandler#setMaxSendQueueWait(long) the longest wait}.
+     */
+    BLOCK,
+
+    /**
+     * Discard {@link JServerPacketPriority#BULK bulk} packets which do not fit. Packets of higher priority classes which
+     * do not fit close the connection, as with {@link #DISCONNECT}.
+     */
+    DROP_BULK,
+
+    /**
+     * Close the connection, discarding everything still queued.
+     */
+    DISCONNECT
+}
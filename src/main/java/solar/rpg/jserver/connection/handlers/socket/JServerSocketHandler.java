@@ -3,21 +3,54 @@ package solar.rpg.jserver.connection.handlers.socket;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import solar.rpg.jserver.connection.JServerConnectionContextType;
+import solar.rpg.jserver.journal.JServerTrafficDirection;
+import solar.rpg.jserver.journal.JServerTrafficJournal;
+import solar.rpg.jserver.jfr.JServerConnectionCloseEvent;
+import solar.rpg.jserver.jfr.JServerConnectionOpenEvent;
+import solar.rpg.jserver.jfr.JServerFlushEvent;
+import solar.rpg.jserver.jfr.JServerHeartbeatTimeoutEvent;
+import solar.rpg.jserver.jfr.JServerPacketDecodeEvent;
+import solar.rpg.jserver.jfr.JServerPacketWriteEvent;
 import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPool;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+import solar.rpg.jserver.packet.codec.JServerPacketCodec;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+import solar.rpg.jserver.packet.codec.JServerPacketFrames;
+import solar.rpg.jserver.packet.codec.JServerPacketInput;
+import solar.rpg.jserver.packet.codec.JServerPacketOutput;
+import solar.rpg.jserver.packet.codec.JServerStringDictionary;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Flow.Publisher;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,59 +59,208 @@ import java.util.logging.Logger;
  * the medium of communication is {@link JServerPacket} objects. It can write packets to the other party which are
  * continually being listened for. A {@link Consumer} instance is passed in that is responsible for taking these packets
  * and performing the appropriate operation(s) with them.
+ * <p>
+ * Written packets are encoded straight away, queued by {@link JServerPacketPriority priority class} and sent by a
+ * single writer task, which drains the queues in weighted round-robin order one frame at a time. The number of bytes
+ * queued per connection is limited, so a party which stops reading cannot make the other side run out of memory.
+ * <p>
+ * Besides the default stream, either party may open any number of logical streams over the connection. Each stream
+ * has its own queue, so a large or slow stream never holds up another, and its own flow control window, which the
+ * receiving side only grants back once it has handled the packets it was sent. The number of streams the other party
+ * may have open at once is limited, and streams it opens beyond the limit are closed straight away.
  *
  * @author jskinner
  * @since 1.0.0
  */
 public final class JServerSocketHandler implements Publisher<JServerPacket> {
 
+    /**
+     * Number of payload bytes which may be queued per connection if no other limit is set.
+     */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Number of streams the other party may have open at once if no other limit is set.
+     */
+    public static final int DEFAULT_MAX_REMOTE_STREAMS = 100;
+
+    /**
+     * Longest time a writing thread waits for room in the send queue with the {@link JServerSendQueuePolicy#BLOCK}
+     * policy if no other limit is set.
+     */
+    public static final long DEFAULT_MAX_SEND_QUEUE_WAIT_MILLIS = 5_000;
+
+    private static final AtomicInteger NEXT_CONNECTION_ID = new AtomicInteger(1);
+
     @NotNull
     private final Logger logger;
+    private final int connectionId;
     @NotNull
     private final Socket socket;
     @NotNull
-    private final ObjectOutputStream outputStream;
+    private final BufferedOutputStream outputStream;
     @NotNull
-    private final ObjectInputStream inputStream;
+    private final DataInputStream inputStream;
     @NotNull
     private final JServerConnectionContextType contextType;
 
+    // --- Packet decoding. Only used by the reading task //
+    @NotNull
+    private final JServerPacketCodecRegistry codecRegistry;
+    @NotNull
+    private final JServerPacketInput packetInput;
+    @NotNull
+    private byte[] frameBuffer;
+
+    /**
+     * Receiving state of the default stream, for each priority class. Payloads of different priority classes may
+     * complete in a different order than they were encoded in, so each priority class is received separately.
+     */
+    @NotNull
+    private final Map<JServerPacketPriority, JServerReceiveChannel> defaultReceiveChannels;
+
+    /**
+     * Receiving state of every open stream other than the default stream.
+     */
+    @NotNull
+    private final Map<Integer, JServerReceiveChannel> streamReceiveChannels;
+
+    /**
+     * Highest id of a stream opened by the other party. Ids are never reused, so frames for lower unknown ids belong
+     * to streams which have already been closed.
+     */
+    private int highestRemoteStreamId;
+    private volatile int maxRemoteStreams;
+
+    @Nullable
+    private volatile JServerStreamListener streamListener;
+
+    // --- Prioritised sending. Guarded by the send lock, unless stated otherwise //
+    @NotNull
+    private final Object sendLock;
+    @NotNull
+    private final Map<JServerPacketPriority, JServerSendLane> defaultSendLanes;
+    @NotNull
+    private final Map<Integer, JServerSendLane> streamSendLanes;
+
+    /**
+     * Send lanes which have a frame ready to send, for each priority class. Lanes of the same priority class take
+     * turns sending a frame each.
+     */
+    @NotNull
+    private final Map<JServerPacketPriority, ArrayDeque<JServerSendLane>> readyLanes;
+
+    /**
+     * Number of frames each priority class may still send in the current round, indexed by ordinal.
+     */
+    @NotNull
+    private final int[] priorityCredits;
+
+    /**
+     * Control frames waiting to be sent. They are sent before any other frame.
+     */
+    @NotNull
+    private final ArrayDeque<JServerControlFrame> controlFrames;
+
+    /**
+     * True, if a writer task is currently draining the send lanes.
+     */
+    private boolean draining;
+    private int nextLocalStreamId;
+    private int stringDictionaryCapacity;
+
+    /**
+     * Number of payload bytes queued on every lane which have not been sent yet. Control frames are not counted.
+     */
+    private long queuedBytes;
+    private int maxQueuedBytes;
+    @NotNull
+    private JServerSendQueuePolicy sendQueuePolicy;
+    private long maxSendQueueWaitMillis;
+    private long droppedPackets;
+
+    /**
+     * Buffer used to encode control frames. Only used by the writer task.
+     */
+    @NotNull
+    private final JServerPacketOutput controlOutput;
+
     // --- Publisher/Subscriber stuff for Packets //
     @NotNull
     private final ExecutorService executor;
     @Nullable
     private JServerPacketSubscription subscription;
+    @Nullable
+    private JServerPacketPool packetPool;
+    @Nullable
+    private volatile JServerTrafficJournal trafficJournal;
+    @Nullable
+    private volatile JServerRateLimiter rateLimiter;
 
     /**
      * Constructs a {@code JServerSocketHandler}.
      *
-     * @param socket      Active {@code Socket} connection.
-     * @param executor    Executor service responsible for running socket handler logic.
-     * @param contextType Context of this {@code Socket} connection.
-     * @param logger      Logger object.
-     * @throws IOException I/O error while attempting to create object streams.
+     * @param socket        Active {@code Socket} connection.
+     * @param executor      Executor service responsible for running socket handler logic.
+     * @param codecRegistry Registry of codecs used to encode and decode packets.
+     * @param contextType   Context of this {@code Socket} connection.
+     * @param logger        Logger object.
+     * @throws IOException I/O error while attempting to open socket streams.
      */
     public JServerSocketHandler(
             @NotNull Socket socket,
             @NotNull ExecutorService executor,
+            @NotNull JServerPacketCodecRegistry codecRegistry,
             @NotNull JServerConnectionContextType contextType,
             @NotNull Logger logger) throws IOException {
         this.socket = socket;
         this.executor = executor;
+        this.codecRegistry = codecRegistry;
         this.contextType = contextType;
         this.logger = logger;
+        connectionId = NEXT_CONNECTION_ID.getAndIncrement();
+        packetInput = new JServerPacketInput(codecRegistry);
+        frameBuffer = new byte[1024];
+        defaultReceiveChannels = new EnumMap<>(JServerPacketPriority.class);
+        streamReceiveChannels = new ConcurrentHashMap<>();
+        highestRemoteStreamId = 0;
+        maxRemoteStreams = DEFAULT_MAX_REMOTE_STREAMS;
+        sendLock = new Object();
+        defaultSendLanes = new EnumMap<>(JServerPacketPriority.class);
+        streamSendLanes = new HashMap<>();
+        readyLanes = new EnumMap<>(JServerPacketPriority.class);
+        priorityCredits = new int[JServerPacketPriority.values().length];
+        for (JServerPacketPriority priority : JServerPacketPriority.values()) {
+            defaultReceiveChannels.put(priority, new JServerReceiveChannel(codecRegistry, 0));
+            defaultSendLanes.put(priority, new JServerSendLane(JServerPacketFrames.DEFAULT_STREAM_ID, priority, 0));
+            readyLanes.put(priority, new ArrayDeque<>());
+            priorityCredits[priority.ordinal()] = priority.getWeight();
+        }
+        controlFrames = new ArrayDeque<>();
+        draining = false;
+        // Each side allocates stream ids of its own parity, so both may open streams at once.
+        nextLocalStreamId = contextType == JServerConnectionContextType.CLIENT ? 1 : 2;
+        stringDictionaryCapacity = 0;
+        queuedBytes = 0;
+        maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+        sendQueuePolicy = JServerSendQueuePolicy.DISCONNECT;
+        maxSendQueueWaitMillis = DEFAULT_MAX_SEND_QUEUE_WAIT_MILLIS;
+        droppedPackets = 0;
+        controlOutput = new JServerPacketOutput(codecRegistry, 16);
 
         logger.log(Level.INFO, String.format("(%s) Opening connection to %s", contextType, getAddress()));
 
         try {
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException e) {
             logger.log(Level.WARNING,
                        String.format("(%s) Unable to open socket IO stream(s) to %s", contextType, getAddress()),
                        e);
             throw e;
         }
+
+        JServerConnectionOpenEvent.emit(connectionId, contextType, socket.getRemoteSocketAddress());
     }
 
     @NotNull
@@ -87,22 +269,465 @@ public final class JServerSocketHandler implements Publisher<JServerPacket> {
     }
 
     /**
-     * Writes a {@link JServerPacket} to the other side of the {@code Socket} connection.
+     * @return Process-wide unique id of this connection.
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Sets the journal which every frame sent or received by this socket handler, and the closing of its connection,
+     * is recorded to.
+     *
+     * @param trafficJournal Traffic journal, or null to stop recording.
+     */
+    public void setTrafficJournal(@Nullable JServerTrafficJournal trafficJournal) {
+        this.trafficJournal = trafficJournal;
+    }
+
+    /**
+     * Enables dictionary encoding of repeated strings in packets sent and received by this socket handler. Both parties
+     * must use the same capacity. This must be set before subscribing, as both dictionaries have to see every string.
+     *
+     * @param capacity Number of strings remembered per priority class and stream, or zero to disable.
+     * @throws IllegalArgumentException Capacity is negative.
+     * @throws IllegalStateException    Subscription is already set.
+     * @see JServerStringDictionary
+     */
+    public void setStringDictionaryCapacity(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must not be negative");
+        if (subscription != null) throw new IllegalStateException("Subscription is already set");
+
+        synchronized (sendLock) {
+            stringDictionaryCapacity = capacity;
+            for (JServerPacketPriority priority : JServerPacketPriority.values()) {
+                defaultReceiveChannels.put(priority, new JServerReceiveChannel(codecRegistry, capacity));
+                defaultSendLanes.put(
+                        priority,
+                        new JServerSendLane(JServerPacketFrames.DEFAULT_STREAM_ID, priority, capacity));
+            }
+        }
+    }
+
+    /**
+     * Limits how many payload bytes may be queued to be sent on this connection, over every stream and priority class.
+     * Control frames are not counted. A packet is always queued if nothing else is, so packets larger than the limit
+     * can still be sent. By default, {@link #DEFAULT_MAX_QUEUED_BYTES} bytes may be queued, and the connection is
+     * closed once they are exceeded.
+     * <p>
+     * With the {@link JServerSendQueuePolicy#BLOCK} policy, the queue is drained by a task on the executor while the
+     * writing thread waits. If the writing threads themselves take up every thread of a bounded executor, the queue
+     * cannot drain, so the connection is closed once a writing thread has waited for
+     * {@link #setMaxSendQueueWait(long) the longest wait}.
+     *
+     * @param maxQueuedBytes Maximum number of queued payload bytes.
+     * @param policy         What to do with packets which do not fit.
+     * @throws IllegalArgumentException Maximum is not positive.
+     */
+    public void setSendQueueLimit(int maxQueuedBytes, @NotNull JServerSendQueuePolicy policy) {
+        if (maxQueuedBytes <= 0) throw new IllegalArgumentException("Maximum must be positive");
+
+        synchronized (sendLock) {
+            this.maxQueuedBytes = maxQueuedBytes;
+            sendQueuePolicy = policy;
+            sendLock.notifyAll();
+        }
+    }
+
+    /**
+     * Limits how long a writing thread waits for room in the send queue with the {@link JServerSendQueuePolicy#BLOCK}
+     * policy, after which the connection is closed. By default, it waits up to
+     * {@link #DEFAULT_MAX_SEND_QUEUE_WAIT_MILLIS} milliseconds.
+     *
+     * @param maxSendQueueWaitMillis Longest wait in milliseconds.
+     * @throws IllegalArgumentException Wait is not positive.
+     */
+    public void setMaxSendQueueWait(long maxSendQueueWaitMillis) {
+        if (maxSendQueueWaitMillis <= 0) throw new IllegalArgumentException("Wait must be positive");
+
+        synchronized (sendLock) {
+            this.maxSendQueueWaitMillis = maxSendQueueWaitMillis;
+        }
+    }
+
+    /**
+     * @return Number of payload bytes queued to be sent, including the unsent part of payloads which are being sent.
+     */
+    public long getQueuedBytes() {
+        synchronized (sendLock) {
+            return queuedBytes;
+        }
+    }
+
+    /**
+     * @return Number of packets discarded because they did not fit in the send queue, using the
+     * {@link JServerSendQueuePolicy#DROP_BULK} policy.
+     */
+    public long getDroppedPacketCount() {
+        synchronized (sendLock) {
+            return droppedPackets;
+        }
+    }
+
+    /**
+     * Sets the listener which is notified when the other party opens or closes a stream. This must be set before
+     * subscribing.
+     *
+     * @param streamListener Stream listener, or null to ignore stream notifications.
+     */
+    public void setStreamListener(@Nullable JServerStreamListener streamListener) {
+        this.streamListener = streamListener;
+    }
+
+    /**
+     * Limits how many streams the other party may have open at once. Streams it opens beyond the limit are closed
+     * straight away, and the packets sent on them are discarded. By default, {@link #DEFAULT_MAX_REMOTE_STREAMS}
+     * streams may be open at once.
+     *
+     * @param maxRemoteStreams Maximum number of open streams opened by the other party.
+     * @throws IllegalArgumentException Maximum is negative.
+     */
+    public void setMaxRemoteStreams(int maxRemoteStreams) {
+        if (maxRemoteStreams < 0) throw new IllegalArgumentException("Maximum must not be negative");
+
+        this.maxRemoteStreams = maxRemoteStreams;
+    }
+
+    /**
+     * Limits how fast the other party may send packets. Limits are enforced on each frame before it is decoded.
+     *
+     * @param rateLimit Rate limit, or null to remove the limit.
+     */
+    public void setRateLimit(@Nullable JServerRateLimit rateLimit) {
+        setRateLimit(rateLimit, System::nanoTime);
+    }
+
+    /**
+     * Limits how fast the other party may send packets, refilling the limit according to the given clock.
+     *
+     * @param rateLimit Rate limit, or null to remove the limit.
+     * @param nanoClock Source of the current time in nanoseconds, such as {@link System#nanoTime()}.
+     */
+    void setRateLimit(@Nullable JServerRateLimit rateLimit, @NotNull LongSupplier nanoClock) {
+        rateLimiter = rateLimit != null ? new JServerRateLimiter(rateLimit, nanoClock) : null;
+    }
+
+    /**
+     * @return Rate limiter and its counters, or null if this connection is not rate limited.
+     */
+    @Nullable
+    public JServerRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the pool which takes ownership of received packets of pooled types. Received pooled packets must be released
+     * by the subscriber once it has finished processing them.
+     *
+     * @param packetPool Packet pool, or null to disable pooling of received packets.
+     */
+    public void setPacketPool(@Nullable JServerPacketPool packetPool) {
+        this.packetPool = packetPool;
+        packetInput.setPacketPool(packetPool);
+    }
+
+    /**
+     * Queues a {@link JServerPacket} to be written to the default stream. Packets of the same priority class are
+     * written in the order they were queued. The packet is encoded before this returns, so the caller may change or
+     * release it straight away.
      *
      * @param packet Packet to send to the other side of the {@code Socket} connection.
-     * @throws IllegalStateException Socket is closed.
+     * @throws IllegalArgumentException Packet could not be encoded.
+     * @throws IllegalStateException    Socket is closed.
      * @throws IllegalStateException Subscription is not set.
      */
     public void writePacket(@NotNull JServerPacket packet) {
+        writePacket(JServerPacketFrames.DEFAULT_STREAM_ID, packet);
+    }
+
+    /**
+     * Queues a {@link JServerPacket} to be written to the given stream. Packets written to a stream other than the
+     * default stream are sent with the priority class of the stream, in the order they were queued, and only while the
+     * other party has granted the stream enough flow control window. The packet is encoded before this returns.
+     * <p>
+     * If the packet does not fit in the send queue, it is handled according to the {@link JServerSendQueuePolicy}: this
+     * may wait until it fits, discard it, or close the connection and discard it.
+     *
+     * @param streamId Id of an open stream, or zero for the default stream.
+     * @param packet   Packet to send to the other side of the {@code Socket} connection.
+     * @throws IllegalArgumentException Stream is not open.
+     * @throws IllegalArgumentException Packet could not be encoded.
+     * @throws IllegalStateException    Socket is closed.
+     * @throws IllegalStateException    Subscription is not set.
+     */
+    public void writePacket(int streamId, @NotNull JServerPacket packet) {
         if (socket.isClosed()) throw new IllegalStateException("Socket is closed");
         if (subscription == null) throw new IllegalStateException("Subscription is not set");
 
-        logger.log(Level.FINEST,
-                   String.format("(%s) Writing packet to %s", contextType, socket.getRemoteSocketAddress()));
+        if (logger.isLoggable(Level.FINEST))
+            logger.log(Level.FINEST,
+                       String.format("(%s) Writing packet to %s", contextType, socket.getRemoteSocketAddress()));
+
+        JServerSendLane lane;
+        synchronized (sendLock) {
+            lane = streamId == JServerPacketFrames.DEFAULT_STREAM_ID
+                   ? defaultSendLanes.get(packet.getPriority())
+                   : streamSendLanes.get(streamId);
+            if (lane == null || lane.closing) throw new IllegalArgumentException("Stream is not open");
+        }
+
+        // Payloads are queued in the order they were encoded in, as the string dictionary depends on that order.
+        boolean startDraining = false, overflowed = false, timedOut = false;
+        synchronized (lane) {
+            JServerQueuedPayload payload = lane.encode(packet);
+            int length = payload.buffer.length - lane.headerLength;
+            synchronized (sendLock) {
+                if (awaitQueueRoom(length)) {
+                    if (lane.closing) throw new IllegalArgumentException("Stream is not open");
+
+                    queuedBytes += length;
+                    if (JServerPacketWriteEvent.isTypeEnabled()) payload.queuedNanos = System.nanoTime();
+                    lane.queue.add(payload);
+                    scheduleLane(lane);
+                    startDraining = startDraining();
+                } else {
+                    lane.discardEncoded();
+                    if (sendQueuePolicy == JServerSendQueuePolicy.DROP_BULK
+                        && lane.priority == JServerPacketPriority.BULK) {
+                        droppedPackets++;
+                    } else {
+                        overflowed = true;
+                        timedOut = sendQueuePolicy == JServerSendQueuePolicy.BLOCK;
+                    }
+                }
+            }
+        }
+        if (startDraining) executor.execute(this::drainSendLanes);
+
+        if (timedOut) {
+            logger.log(Level.WARNING,
+                       String.format("(%s) Send queue for %s did not drain in time, disconnecting",
+                                     contextType,
+                                     getAddress()));
+            subscription.close("Send queue did not drain in time");
+        } else if (overflowed) {
+            logger.log(Level.WARNING,
+                       String.format("(%s) Send queue limit exceeded for %s, disconnecting", contextType, getAddress()));
+            subscription.close("Send queue limit exceeded");
+        }
+    }
 
+    /**
+     * Checks whether a payload fits in the send queue. If it does not and the {@link JServerSendQueuePolicy#BLOCK}
+     * policy is used, this waits until enough queued bytes have been sent, for up to the longest wait. Must be called
+     * while holding the send lock.
+     *
+     * @param length Number of payload bytes to queue.
+     * @return True, if the payload may be queued; false if it does not fit, or did not fit in time.
+     * @throws IllegalStateException Socket was closed, or the thread was interrupted, while waiting.
+     */
+    private boolean awaitQueueRoom(int length) {
+        long deadline = 0;
+        boolean waited = false;
+        while (queuedBytes > 0 && queuedBytes + length > maxQueuedBytes) {
+            if (sendQueuePolicy != JServerSendQueuePolicy.BLOCK) return false;
+            if (socket.isClosed()) throw new IllegalStateException("Socket is closed");
+
+            long now = System.nanoTime();
+            if (!waited) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(maxSendQueueWaitMillis);
+                waited = true;
+            } else if (now - deadline >= 0) {
+                return false;
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.timedWait(sendLock, deadline - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the send queue", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a new stream to the other party. The other party is notified once the first packet is written to it.
+     *
+     * @param priority Priority class of every packet written to the stream.
+     * @return Id of the new stream.
+     */
+    public int openStream(@NotNull JServerPacketPriority priority) {
+        synchronized (sendLock) {
+            int streamId = nextLocalStreamId;
+            nextLocalStreamId += 2;
+            streamSendLanes.put(streamId, new JServerSendLane(streamId, priority, stringDictionaryCapacity));
+            streamReceiveChannels.put(streamId, new JServerReceiveChannel(codecRegistry, stringDictionaryCapacity));
+            return streamId;
+        }
+    }
+
+    /**
+     * Closes a stream in both directions. Packets which were already written to the stream are still sent, followed by
+     * a notification to the other party. Packets the other party sends on the stream from now on are discarded.
+     *
+     * @param streamId Id of the stream.
+     */
+    public void closeStream(int streamId) {
+        streamReceiveChannels.remove(streamId);
+
+        boolean startDraining;
+        synchronized (sendLock) {
+            JServerSendLane lane = streamSendLanes.get(streamId);
+            if (lane == null || lane.closing) return;
+
+            lane.closing = true;
+            scheduleLane(lane);
+            startDraining = startDraining();
+        }
+        if (startDraining) executor.execute(this::drainSendLanes);
+    }
+
+    /**
+     * Notifies this socket handler that the subscriber has finished handling a packet received on a stream, so that
+     * the other party may be granted more flow control window for it. This must be called once for every packet
+     * received on a stream other than the default stream.
+     *
+     * @param streamId Id of the stream the packet was received on.
+     */
+    public void onStreamPacketHandled(int streamId) {
+        JServerReceiveChannel channel = streamReceiveChannels.get(streamId);
+        if (channel == null) return;
+
+        int size;
+        synchronized (channel) {
+            Integer pending = channel.pendingSizes.poll();
+            if (pending == null) return;
+            size = pending;
+        }
+        grantWindow(streamId, channel, size);
+    }
+
+    /**
+     * Returns payload bytes received on a stream to the other party's flow control window. Grants are batched until
+     * half of the initial window has been consumed.
+     *
+     * @param streamId Id of the stream.
+     * @param channel  Receiving state of the stream.
+     * @param bytes    Number of payload bytes which have been consumed.
+     */
+    private void grantWindow(int streamId, @NotNull JServerReceiveChannel channel, int bytes) {
+        if (streamId == JServerPacketFrames.DEFAULT_STREAM_ID || socket.isClosed()) return;
+
+        int increment;
+        synchronized (channel) {
+            channel.unacknowledged += bytes;
+            if (channel.unacknowledged < JServerPacketFrames.INITIAL_STREAM_WINDOW / 2) return;
+
+            increment = channel.unacknowledged;
+            channel.unacknowledged = 0;
+        }
+
+        boolean startDraining;
+        synchronized (sendLock) {
+            controlFrames.add(new JServerControlFrame(streamId, JServerPacketFrames.CONTROL_WINDOW_UPDATE, increment));
+            startDraining = startDraining();
+        }
+        if (startDraining) executor.execute(this::drainSendLanes);
+    }
+
+    /**
+     * Adds a send lane to the ready lanes of its priority class, if it has a frame which may be sent and is not
+     * already waiting. Must be called while holding the send lock.
+     *
+     * @param lane Send lane.
+     */
+    private void scheduleLane(@NotNull JServerSendLane lane) {
+        if (lane.ready) return;
+
+        boolean hasWork = lane.payload != null || !lane.queue.isEmpty();
+        boolean sendable = hasWork ? lane.window > 0 : lane.closing;
+        if (!sendable) return;
+
+        lane.ready = true;
+        readyLanes.get(lane.priority).add(lane);
+    }
+
+    /**
+     * Must be called while holding the send lock.
+     *
+     * @return True, if the caller must start a writer task.
+     */
+    private boolean startDraining() {
+        if (draining) return false;
+
+        draining = true;
+        return true;
+    }
+
+    /**
+     * Writes control frames and queued packets until there is nothing left which may be sent. Only one writer task
+     * runs at a time.
+     */
+    private void drainSendLanes() {
+        boolean flushed = false;
         try {
-            outputStream.reset();
-            outputStream.writeObject(packet);
+            while (true) {
+                JServerControlFrame control;
+                JServerSendLane lane = null;
+                JServerQueuedPayload payload = null;
+                synchronized (sendLock) {
+                    control = controlFrames.poll();
+                    if (control == null) {
+                        lane = nextReadyLane();
+                        if (lane != null && lane.payload == null) {
+                            lane.payload = lane.queue.poll();
+                            if (lane.payload == null) {
+                                // Closing lanes are scheduled once everything queued on them has been sent.
+                                if (lane.closing) {
+                                    streamSendLanes.remove(lane.streamId);
+                                    if (!lane.closedByPeer)
+                                        control = new JServerControlFrame(
+                                                lane.streamId,
+                                                JServerPacketFrames.CONTROL_CLOSE_STREAM,
+                                                0);
+                                }
+                                lane = null;
+                            }
+                        }
+                        if (lane != null) payload = lane.payload;
+                    }
+
+                    // Anything sent is flushed before the writer task stops.
+                    if (control == null && lane == null && flushed) {
+                        draining = false;
+                        return;
+                    }
+                }
+
+                if (control != null) {
+                    writeControlFrame(control);
+                    flushed = false;
+                } else if (lane == null) {
+                    flush();
+                    flushed = true;
+                } else {
+                    int length = writeNextFrame(lane, payload);
+                    synchronized (sendLock) {
+                        if (lane.streamId != JServerPacketFrames.DEFAULT_STREAM_ID) lane.window -= length;
+                        // The payload is no longer counted if it was discarded while the frame was being written.
+                        if (lane.payload == payload) {
+                            payload.sent += length;
+                            if (payload.sent == payload.buffer.length) lane.payload = null;
+                            queuedBytes -= length;
+                        }
+                        if (sendQueuePolicy == JServerSendQueuePolicy.BLOCK) sendLock.notifyAll();
+                        scheduleLane(lane);
+                    }
+                    if (lane.priority == JServerPacketPriority.CRITICAL) flush();
+                    flushed = false;
+                }
+            }
         } catch (SocketException e) {
             logger.log(Level.INFO,
                        String.format(
@@ -110,13 +735,515 @@ public final class JServerSocketHandler implements Publisher<JServerPacket> {
                                contextType,
                                socket.getRemoteSocketAddress(),
                                e.getMessage()));
-            subscription.cancel();
+            onWriteFailed();
         } catch (IOException e) {
             logger.log(Level.INFO, String.format("(%s) Unexpected error writing packet", contextType), e);
-            subscription.cancel();
+            onWriteFailed();
+        } catch (RuntimeException e) {
+            // Nothing else would reset the writer task, so every later packet would be queued forever.
+            logger.log(Level.SEVERE, String.format("(%s) Writer task failed, closing connection", contextType), e);
+            onWriteFailed();
         }
     }
 
+    /**
+     * Picks the send lane to write the next frame from. Priority classes are visited from the highest down, and each
+     * may send up to its weight in frames per round. Once every priority class with work has used its share, a new
+     * round starts. Must be called while holding the send lock.
+     *
+     * @return Ready send lane, or null if no lane is ready.
+     */
+    @Nullable
+    private JServerSendLane nextReadyLane() {
+        for (int round = 0; round < 2; round++) {
+            for (JServerPacketPriority priority : JServerPacketPriority.values()) {
+                ArrayDeque<JServerSendLane> lanes = readyLanes.get(priority);
+                if (priorityCredits[priority.ordinal()] > 0 && !lanes.isEmpty()) {
+                    priorityCredits[priority.ordinal()]--;
+                    JServerSendLane lane = lanes.remove();
+                    lane.ready = false;
+                    return lane;
+                }
+            }
+            for (JServerPacketPriority priority : JServerPacketPriority.values())
+                priorityCredits[priority.ordinal()] = priority.getWeight();
+        }
+        return null;
+    }
+
+    /**
+     * Writes the next frame of the given send lane. Payloads larger than {@link JServerPacketFrames#MAX_FRAGMENT_LENGTH}
+     * are written one fragment at a time.
+     *
+     * @param lane    Send lane.
+     * @param payload Payload being sent on the lane. The caller advances it once the frame has been written.
+     * @return Number of payload bytes written.
+     * @throws IOException I/O error while writing the frame.
+     */
+    private int writeNextFrame(@NotNull JServerSendLane lane, @NotNull JServerQueuedPayload payload)
+            throws IOException {
+        JServerPacketWriteEvent event = new JServerPacketWriteEvent();
+        event.begin();
+        long queueWait = event.isEnabled() && payload.queuedNanos != 0 ? System.nanoTime() - payload.queuedNanos : 0;
+
+        int remaining = payload.buffer.length - payload.sent;
+        int kind, length;
+        if (payload.sent == lane.headerLength && remaining <= JServerPacketFrames.MAX_FRAGMENT_LENGTH) {
+            kind = JServerPacketFrames.KIND_COMPLETE;
+            length = remaining;
+        } else if (remaining > JServerPacketFrames.MAX_FRAGMENT_LENGTH) {
+            kind = JServerPacketFrames.KIND_FRAGMENT;
+            length = JServerPacketFrames.MAX_FRAGMENT_LENGTH;
+        } else {
+            kind = JServerPacketFrames.KIND_LAST_FRAGMENT;
+            length = remaining;
+        }
+
+        // The bytes before this frame's payload have already been sent, so they can be reused for the header.
+        int frameOffset = payload.sent - lane.headerLength;
+        int frameLength = lane.headerLength + length;
+        byte[] buffer = payload.buffer;
+        JServerPacketFrames.writeHeader(buffer, frameOffset, kind, lane.priority, lane.streamId);
+        JServerPacketFrames.writeFrame(outputStream, buffer, frameOffset, frameLength);
+
+        JServerTrafficJournal journal = trafficJournal;
+        if (journal != null)
+            journal.append(connectionId, JServerTrafficDirection.OUTBOUND, buffer, frameOffset, frameLength);
+
+        event.end(
+                connectionId,
+                payload.packetType,
+                frameLength,
+                lane.priority,
+                kind != JServerPacketFrames.KIND_COMPLETE,
+                queueWait);
+        return length;
+    }
+
+    /**
+     * Writes and flushes a control frame.
+     *
+     * @param control Control frame.
+     * @throws IOException I/O error while writing the frame.
+     */
+    private void writeControlFrame(@NotNull JServerControlFrame control) throws IOException {
+        controlOutput.reset();
+        controlOutput.writeByte(JServerPacketFrames.header(
+                JServerPacketFrames.KIND_CONTROL,
+                JServerPacketPriority.CRITICAL,
+                control.streamId));
+        controlOutput.writeVarInt(control.streamId);
+        controlOutput.writeByte(control.type);
+        if (control.type == JServerPacketFrames.CONTROL_WINDOW_UPDATE) controlOutput.writeVarInt(control.increment);
+
+        JServerPacketFrames.writeFrame(outputStream, controlOutput.getBuffer(), 0, controlOutput.size());
+
+        JServerTrafficJournal journal = trafficJournal;
+        if (journal != null)
+            journal.append(
+                    connectionId,
+                    JServerTrafficDirection.OUTBOUND,
+                    controlOutput.getBuffer(),
+                    0,
+                    controlOutput.size());
+
+        flush();
+    }
+
+    private void flush() throws IOException {
+        JServerFlushEvent event = new JServerFlushEvent();
+        event.begin();
+        outputStream.flush();
+        event.end(connectionId);
+    }
+
+    /**
+     * Discards every queued packet and closes the connection after a write error.
+     */
+    private void onWriteFailed() {
+        synchronized (sendLock) {
+            List<JServerSendLane> lanes = new ArrayList<>(defaultSendLanes.values());
+            lanes.addAll(streamSendLanes.values());
+            for (JServerSendLane lane : lanes) {
+                lane.queue.clear();
+                lane.payload = null;
+                lane.ready = false;
+            }
+            readyLanes.values().forEach(ArrayDeque::clear);
+            controlFrames.clear();
+            queuedBytes = 0;
+            draining = false;
+            sendLock.notifyAll();
+        }
+
+        assert subscription != null : "Expected subscription to be set";
+        subscription.close("Write error");
+    }
+
+    /**
+     * Writes the payload of a frame containing the given packet. Packets are encoded using their generated codec, or
+     * using Java serialization if they do not have one.
+     *
+     * @param packet Packet to encode.
+     * @param output Output to write the payload to.
+     * @throws IOException Packet could not be encoded.
+     */
+    @SuppressWarnings("unchecked")
+    private void encodePacket(@NotNull JServerPacket packet, @NotNull JServerPacketOutput output) throws IOException {
+        JServerPacketCodec<JServerPacket> codec =
+                (JServerPacketCodec<JServerPacket>) codecRegistry.getCodec(packet.getClass());
+        if (codec != null) {
+            output.writeVarInt(codec.getPacketId());
+            codec.encode(packet, output);
+            return;
+        }
+
+        output.writeVarInt(JServerPacketFrames.SERIALIZED_PACKET_ID);
+        try (ObjectOutputStream objectStream = new ObjectOutputStream(output.asOutputStream())) {
+            objectStream.writeObject(packet);
+        }
+    }
+
+    /**
+     * Reads frames from the socket until a complete payload has been received, and decodes the packet it contains.
+     * Packets of pooled types are borrowed from (or adopted by) the packet pool. Payloads which exceed the rate limit
+     * are discarded, unless the {@link JServerRateLimitPolicy#DELAY} policy is used. They are not decoded, unless
+     * string dictionaries are enabled. Control frames are handled along the way.
+     * <p>
+     * Reading stops as soon as the rate limit is in debt, even partway through a payload, so that frames which are
+     * never published (such as control frames and discarded frames) cannot be read without waiting either.
+     *
+     * @return Received packet, or null if reading has to wait until the rate limit is no longer in debt.
+     * @throws ClassNotFoundException           Class of a serialized packet could not be found.
+     * @throws JServerRateLimitExceededException Rate limit was exceeded with the {@code DISCONNECT} policy.
+     * @throws IOException                      I/O error, or a frame is malformed.
+     */
+    @Nullable
+    private JServerPacket readPacket() throws IOException, ClassNotFoundException {
+        while (true) {
+            JServerRateLimiter limiter = rateLimiter;
+            if (limiter != null && limiter.isInDebt()) return null;
+
+            int length = JServerPacketFrames.readFrameLength(inputStream);
+            if (length == 0) throw new StreamCorruptedException("Empty frame");
+            if (frameBuffer.length < length) frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+            inputStream.readFully(frameBuffer, 0, length);
+
+            JServerTrafficJournal journal = trafficJournal;
+            if (journal != null)
+                journal.append(connectionId, JServerTrafficDirection.INBOUND, frameBuffer, 0, length);
+
+            int header = frameBuffer[0] & 0xFF;
+            int kind = JServerPacketFrames.getKind(header);
+            JServerPacketPriority priority = JServerPacketFrames.getPriority(header);
+            int streamId = JServerPacketFrames.DEFAULT_STREAM_ID;
+            int payloadOffset = 1;
+            if (JServerPacketFrames.hasStreamId(header)) {
+                packetInput.setBuffer(frameBuffer, 1, length - 1);
+                streamId = packetInput.readVarInt();
+                if (streamId <= 0) throw new StreamCorruptedException(String.format("Invalid stream id %d", streamId));
+                payloadOffset = length - packetInput.remaining();
+            }
+            int payloadLength = length - payloadOffset;
+
+            // Every frame takes rate limit tokens, including those which are never published.
+            if (kind == JServerPacketFrames.KIND_CONTROL) {
+                if (streamId == JServerPacketFrames.DEFAULT_STREAM_ID)
+                    throw new StreamCorruptedException("Control frame without a stream");
+                chargeFrame(kind, length, true);
+                onControlFrame(streamId, payloadOffset, payloadLength);
+                continue;
+            }
+
+            JServerReceiveChannel channel = streamId == JServerPacketFrames.DEFAULT_STREAM_ID
+                                            ? defaultReceiveChannels.get(priority)
+                                            : getStreamReceiveChannel(streamId, priority);
+            // Frames for closed streams are discarded.
+            if (channel == null) {
+                chargeFrame(kind, length, false);
+                continue;
+            }
+
+            // Discarded payloads still have to be decoded while string dictionaries are used, to keep them in step.
+            boolean discard = !acquireFrame(kind, channel, length);
+            if (discard && channel.dictionary == null) {
+                channel.reassembly.reset();
+                grantWindow(streamId, channel, payloadLength);
+                continue;
+            }
+
+            JServerPacket packet;
+            if (kind == JServerPacketFrames.KIND_COMPLETE) {
+                packet = decodePacket(channel, priority, frameBuffer, payloadOffset, payloadLength);
+            } else {
+                JServerPacketOutput reassembly = channel.reassembly;
+                if (reassembly.size() + payloadLength > JServerPacketFrames.MAX_FRAME_LENGTH)
+                    throw new StreamCorruptedException("Fragmented payload is too large");
+                reassembly.writeBytes(frameBuffer, payloadOffset, payloadLength);
+
+                // Fragments are granted back straight away, so a payload larger than the window cannot stall.
+                if (kind == JServerPacketFrames.KIND_FRAGMENT) {
+                    grantWindow(streamId, channel, payloadLength);
+                    continue;
+                }
+
+                try {
+                    packet = decodePacket(channel, priority, reassembly.getBuffer(), 0, reassembly.size());
+                } finally {
+                    reassembly.reset();
+                }
+            }
+
+            if (discard) {
+                packet.release();
+                grantWindow(streamId, channel, payloadLength);
+                continue;
+            }
+
+            if (streamId != JServerPacketFrames.DEFAULT_STREAM_ID) {
+                synchronized (channel) {
+                    channel.pendingSizes.add(payloadLength);
+                }
+            }
+            packet.onReceived(getAddress(), streamId);
+            return packet;
+        }
+    }
+
+    /**
+     * Returns the receiving state of a stream, opening it if it is a new stream opened by the other party.
+     *
+     * @param streamId Id of the stream.
+     * @param priority Priority class of the frame which was received on the stream.
+     * @return Receiving state of the stream, or null if the stream has been closed.
+     * @throws StreamCorruptedException Stream id was never allocated by this side.
+     */
+    @Nullable
+    private JServerReceiveChannel getStreamReceiveChannel(int streamId, @NotNull JServerPacketPriority priority)
+            throws StreamCorruptedException {
+        JServerReceiveChannel channel = streamReceiveChannels.get(streamId);
+        if (channel != null || !openRemoteStream(streamId)) return channel;
+
+        if (countRemoteStreams() >= maxRemoteStreams) {
+            // The stream is treated as closed from now on, and the other party is told to stop sending on it.
+            logger.log(Level.WARNING,
+                       String.format("(%s) %s opened too many streams, closing stream %d",
+                                     contextType,
+                                     getAddress(),
+                                     streamId));
+            boolean startDraining;
+            synchronized (sendLock) {
+                controlFrames.add(new JServerControlFrame(streamId, JServerPacketFrames.CONTROL_CLOSE_STREAM, 0));
+                startDraining = startDraining();
+            }
+            if (startDraining) executor.execute(this::drainSendLanes);
+            return null;
+        }
+
+        synchronized (sendLock) {
+            channel = new JServerReceiveChannel(codecRegistry, stringDictionaryCapacity);
+            streamReceiveChannels.put(streamId, channel);
+            streamSendLanes.put(streamId, new JServerSendLane(streamId, priority, stringDictionaryCapacity));
+        }
+
+        JServerStreamListener listener = streamListener;
+        if (listener != null) listener.onStreamOpened(streamId, priority);
+        return channel;
+    }
+
+    /**
+     * Checks whether an unknown stream id refers to a new stream opened by the other party.
+     *
+     * @param streamId Unknown stream id.
+     * @return True, if the stream is new; false if it has already been closed.
+     * @throws StreamCorruptedException Stream id was never allocated by this side.
+     */
+    private boolean openRemoteStream(int streamId) throws StreamCorruptedException {
+        if (isLocalStream(streamId)) {
+            synchronized (sendLock) {
+                if (streamId >= nextLocalStreamId)
+                    throw new StreamCorruptedException(String.format("Stream %d was never opened", streamId));
+            }
+            return false;
+        }
+
+        if (streamId <= highestRemoteStreamId) return false;
+        highestRemoteStreamId = streamId;
+        return true;
+    }
+
+    /**
+     * @param streamId Id of a stream other than the default stream.
+     * @return True, if the stream id belongs to this side.
+     */
+    private boolean isLocalStream(int streamId) {
+        return (streamId % 2 == 1) == (contextType == JServerConnectionContextType.CLIENT);
+    }
+
+    /**
+     * @return Number of open streams which were opened by the other party.
+     */
+    private int countRemoteStreams() {
+        int count = 0;
+        for (int streamId : streamReceiveChannels.keySet())
+            if (!isLocalStream(streamId)) count++;
+        return count;
+    }
+
+    /**
+     * Handles a control frame received on a stream.
+     *
+     * @param streamId Id of the stream.
+     * @param offset   Offset of the control payload in the frame buffer.
+     * @param length   Length of the control payload.
+     * @throws IOException Control frame is malformed.
+     */
+    private void onControlFrame(int streamId, int offset, int length) throws IOException {
+        packetInput.setBuffer(frameBuffer, offset, length);
+        int type = packetInput.readByte();
+        if (type == JServerPacketFrames.CONTROL_WINDOW_UPDATE) {
+            int increment = packetInput.readVarInt();
+            if (increment <= 0)
+                throw new StreamCorruptedException(String.format("Invalid window increment %d", increment));
+
+            boolean startDraining = false;
+            synchronized (sendLock) {
+                JServerSendLane lane = streamSendLanes.get(streamId);
+                if (lane != null) {
+                    lane.window = (int) Math.min(Integer.MAX_VALUE, (long) lane.window + increment);
+                    scheduleLane(lane);
+                    startDraining = startDraining();
+                }
+            }
+            if (startDraining) executor.execute(this::drainSendLanes);
+        } else if (type == JServerPacketFrames.CONTROL_CLOSE_STREAM) {
+            JServerReceiveChannel channel = streamReceiveChannels.remove(streamId);
+            if (channel == null) {
+                // The stream was opened and closed without sending anything, or was closed by both sides at once.
+                openRemoteStream(streamId);
+                return;
+            }
+
+            boolean startDraining;
+            synchronized (sendLock) {
+                JServerSendLane lane = streamSendLanes.get(streamId);
+                if (lane != null) {
+                    // The other party no longer reads the stream, so nothing still queued on it is sent, including
+                    // the rest of a payload which is part-way through being sent.
+                    for (JServerQueuedPayload payload : lane.queue)
+                        queuedBytes -= payload.buffer.length - lane.headerLength;
+                    lane.queue.clear();
+                    if (lane.payload != null) {
+                        queuedBytes -= lane.payload.buffer.length - lane.payload.sent;
+                        lane.payload = null;
+                    }
+                    sendLock.notifyAll();
+                    lane.closing = true;
+                    lane.closedByPeer = true;
+                    scheduleLane(lane);
+                }
+                startDraining = lane != null && startDraining();
+            }
+            if (startDraining) executor.execute(this::drainSendLanes);
+
+            JServerStreamListener listener = streamListener;
+            if (listener != null) listener.onStreamClosed(streamId);
+        } else {
+            throw new StreamCorruptedException(String.format("Invalid control type %d", type));
+        }
+    }
+
+    /**
+     * Takes rate limit tokens for a received frame.
+     *
+     * @param kind    Frame kind.
+     * @param channel Receiving state of the stream and priority class of the frame.
+     * @param length  Length of the frame body.
+     * @return True, if the frame should be processed; false if it should be discarded.
+     * @throws JServerRateLimitExceededException Rate limit was exceeded with the {@code DISCONNECT} policy.
+     */
+    private boolean acquireFrame(int kind, @NotNull JServerReceiveChannel channel, int length)
+            throws JServerRateLimitExceededException {
+        JServerRateLimiter limiter = rateLimiter;
+        if (limiter == null) return true;
+
+        // The remaining fragments of a discarded payload are skipped, but still take tokens.
+        boolean lastFrame = kind != JServerPacketFrames.KIND_FRAGMENT;
+        if (channel.discarding) {
+            if (lastFrame) channel.discarding = false;
+            chargeFrame(kind, length, false);
+            return false;
+        }
+
+        if (limiter.tryAcquire(lastFrame ? 1 : 0, length)) return true;
+
+        if (limiter.getLimit().getPolicy() == JServerRateLimitPolicy.DISCONNECT)
+            throw new JServerRateLimitExceededException(String.format("Rate limit exceeded by %s", getAddress()));
+
+        limiter.onPacketDropped();
+        if (!lastFrame) channel.discarding = true;
+        return false;
+    }
+
+    /**
+     * Takes rate limit tokens for a received frame which is handled regardless of the limit: control frames, which
+     * flow control depends on, and frames which are discarded anyway. The buckets may go into debt, which holds back
+     * the frames after it.
+     *
+     * @param kind     Frame kind.
+     * @param length   Length of the frame body.
+     * @param accepted True, if the frame is processed; false if it is discarded.
+     * @throws JServerRateLimitExceededException Rate limit was exceeded with the {@code DISCONNECT} policy.
+     */
+    private void chargeFrame(int kind, int length, boolean accepted) throws JServerRateLimitExceededException {
+        JServerRateLimiter limiter = rateLimiter;
+        if (limiter == null) return;
+
+        int packets = kind != JServerPacketFrames.KIND_FRAGMENT ? 1 : 0;
+        if (!limiter.charge(packets, length, accepted)
+            && limiter.getLimit().getPolicy() == JServerRateLimitPolicy.DISCONNECT)
+            throw new JServerRateLimitExceededException(String.format("Rate limit exceeded by %s", getAddress()));
+    }
+
+    /**
+     * Decodes the packet contained in a complete payload.
+     *
+     * @param channel  Receiving state of the stream and priority class of the payload.
+     * @param priority Priority class of the payload.
+     * @param buffer   Buffer containing the payload.
+     * @param offset   Offset of the payload in the buffer.
+     * @param length   Length of the payload.
+     * @return Decoded packet.
+     * @throws ClassNotFoundException Class of a serialized packet could not be found.
+     * @throws IOException            Payload is malformed.
+     */
+    @NotNull
+    private JServerPacket decodePacket(
+            @NotNull JServerReceiveChannel channel,
+            @NotNull JServerPacketPriority priority,
+            @NotNull byte[] buffer,
+            int offset,
+            int length) throws IOException, ClassNotFoundException {
+        JServerPacketDecodeEvent event = new JServerPacketDecodeEvent();
+        event.begin();
+
+        packetInput.setStringDictionary(channel.dictionary);
+        packetInput.setBuffer(buffer, offset, length);
+        int packetId = packetInput.readVarInt();
+        JServerPacket received;
+        if (packetId == JServerPacketFrames.SERIALIZED_PACKET_ID) {
+            received = (JServerPacket) new ObjectInputStream(packetInput.asInputStream()).readObject();
+            if (packetPool != null) packetPool.adopt(received);
+        } else {
+            JServerPacketCodec<?> codec = codecRegistry.getCodec(packetId);
+            if (codec == null) throw new StreamCorruptedException(String.format("Unknown packet id %d", packetId));
+            received = packetInput.decode(codec);
+        }
+
+        event.end(connectionId, received.getClass(), length, priority);
+        return received;
+    }
+
     @Override
     public void subscribe(@NotNull Subscriber<? super JServerPacket> subscriber) {
         if (subscription != null) {
@@ -128,6 +1255,215 @@ public final class JServerSocketHandler implements Publisher<JServerPacket> {
         subscriber.onSubscribe(subscription);
     }
 
+    /**
+     * Queue of payloads of a single stream and priority class waiting to be sent, along with the payload currently
+     * being sent. The default stream has one lane per priority class, and every other stream has a single lane.
+     * <p>
+     * Packets are encoded by the thread writing them while holding the monitor of the lane, so that payloads are
+     * queued in the same order their strings were added to the string dictionary of the lane.
+     */
+    private final class JServerSendLane {
+
+        private final int streamId;
+        @NotNull
+        private final JServerPacketPriority priority;
+
+        /**
+         * Number of bytes reserved in front of each payload for the frame header and stream id.
+         */
+        private final int headerLength;
+
+        /**
+         * Encoded payloads waiting to be sent.
+         */
+        @NotNull
+        private final ArrayDeque<JServerQueuedPayload> queue;
+
+        /**
+         * Payload currently being sent, or null if the next frame starts a new payload.
+         */
+        @Nullable
+        private JServerQueuedPayload payload;
+
+        /**
+         * Buffer used to encode packets. Guarded by the monitor of the lane.
+         */
+        @NotNull
+        private final JServerPacketOutput encoder;
+
+        /**
+         * Number of payload bytes which may still be sent before the other party grants more.
+         */
+        private int window;
+
+        /**
+         * True, if this lane is in the ready lanes of its priority class.
+         */
+        private boolean ready;
+
+        /**
+         * True, if no more packets may be queued, and the lane is removed once everything queued has been sent.
+         */
+        private boolean closing;
+
+        /**
+         * True, if the stream was closed by the other party, so it does not need to be told.
+         */
+        private boolean closedByPeer;
+
+        JServerSendLane(int streamId, @NotNull JServerPacketPriority priority, int stringDictionaryCapacity) {
+            this.streamId = streamId;
+            this.priority = priority;
+            headerLength = JServerPacketFrames.headerLength(streamId);
+            queue = new ArrayDeque<>();
+            payload = null;
+            encoder = new JServerPacketOutput(codecRegistry);
+            if (stringDictionaryCapacity > 0)
+                encoder.setStringDictionary(new JServerStringDictionary(stringDictionaryCapacity));
+            window = streamId == JServerPacketFrames.DEFAULT_STREAM_ID
+                     ? Integer.MAX_VALUE
+                     : JServerPacketFrames.INITIAL_STREAM_WINDOW;
+            ready = false;
+            closing = false;
+            closedByPeer = false;
+        }
+
+        /**
+         * Encodes a packet into a new payload for this lane. Strings added to the string dictionary are undone if the
+         * packet cannot be encoded. Must be called while holding the monitor of the lane.
+         *
+         * @param packet Packet to encode.
+         * @return Encoded payload, preceded by the reserved header bytes.
+         * @throws IllegalArgumentException Packet could not be encoded.
+         */
+        @NotNull
+        JServerQueuedPayload encode(@NotNull JServerPacket packet) {
+            encoder.reset();
+            for (int i = 0; i < headerLength; i++)
+                encoder.writeByte(0);
+
+            JServerStringDictionary dictionary = encoder.getStringDictionary();
+            if (dictionary != null) dictionary.mark();
+            boolean encoded = false;
+            try {
+                encodePacket(packet, encoder);
+                encoded = true;
+            } catch (IOException e) {
+                throw new IllegalArgumentException(
+                        String.format("Unable to encode %s", packet.getClass().getSimpleName()),
+                        e);
+            } finally {
+                if (!encoded && dictionary != null) dictionary.rollback();
+            }
+            return new JServerQueuedPayload(encoder.toByteArray(), packet.getClass(), headerLength);
+        }
+
+        /**
+         * Undoes the strings the last encoded packet added to the string dictionary, as its payload will not be sent.
+         * Must be called while holding the monitor of the lane.
+         */
+        void discardEncoded() {
+            JServerStringDictionary dictionary = encoder.getStringDictionary();
+            if (dictionary != null) dictionary.rollback();
+        }
+    }
+
+    /**
+     * Encoded packet waiting to be sent, preceded by the bytes reserved for its frame header.
+     */
+    private static final class JServerQueuedPayload {
+
+        @NotNull
+        private final byte[] buffer;
+
+        /**
+         * Type of the encoded packet, for tracing.
+         */
+        @NotNull
+        private final Class<? extends JServerPacket> packetType;
+
+        /**
+         * Number of bytes of the buffer which have been sent, including the reserved header bytes.
+         */
+        private int sent;
+
+        /**
+         * Time the payload was added to the send queue, for tracing how long it waited to be sent. Only taken while the
+         * write event is enabled, otherwise zero.
+         */
+        private long queuedNanos;
+
+        JServerQueuedPayload(
+                @NotNull byte[] buffer,
+                @NotNull Class<? extends JServerPacket> packetType,
+                int headerLength) {
+            this.buffer = buffer;
+            this.packetType = packetType;
+            sent = headerLength;
+        }
+    }
+
+    /**
+     * Receiving state of a single stream and priority class.
+     */
+    private static final class JServerReceiveChannel {
+
+        /**
+         * Payload which is being reassembled from fragments. Only used by the reading task.
+         */
+        @NotNull
+        private final JServerPacketOutput reassembly;
+
+        /**
+         * Dictionary of received strings, or null if string dictionaries are disabled. Only used by the reading task.
+         */
+        @Nullable
+        private final JServerStringDictionary dictionary;
+
+        /**
+         * True, if the current fragmented payload is being discarded, as one of its frames exceeded the rate limit.
+         * Only used by the reading task.
+         */
+        private boolean discarding;
+
+        /**
+         * Payload sizes of received packets which have not been handled yet, in the order they were received. Guarded
+         * by the channel.
+         */
+        @NotNull
+        private final ArrayDeque<Integer> pendingSizes;
+
+        /**
+         * Number of consumed payload bytes which have not been granted back to the other party yet. Guarded by the
+         * channel.
+         */
+        private int unacknowledged;
+
+        JServerReceiveChannel(@NotNull JServerPacketCodecRegistry codecRegistry, int stringDictionaryCapacity) {
+            reassembly = new JServerPacketOutput(codecRegistry, 0);
+            dictionary = stringDictionaryCapacity > 0 ? new JServerStringDictionary(stringDictionaryCapacity) : null;
+            discarding = false;
+            pendingSizes = new ArrayDeque<>();
+            unacknowledged = 0;
+        }
+    }
+
+    /**
+     * Control frame waiting to be sent.
+     */
+    private static final class JServerControlFrame {
+
+        private final int streamId;
+        private final int type;
+        private final int increment;
+
+        JServerControlFrame(int streamId, int type, int increment) {
+            this.streamId = streamId;
+            this.type = type;
+            this.increment = increment;
+        }
+    }
+
     /**
      * Represents a {@link Subscription} between this socket handler and a subscriber of {@link JServerPacket} objects.
      */
@@ -154,45 +1490,110 @@ public final class JServerSocketHandler implements Publisher<JServerPacket> {
 
         @Override
         public void request(long n) {
-            assert !socket.isClosed() : "Expected open socket";
+            // Packets which finish being handled after the connection closes may still request more.
+            if (socket.isClosed()) return;
 
             if (n != 1) {
                 executor.execute(() -> subscriber.onError(new IllegalArgumentException()));
                 return;
             }
 
-            executor.submit(() -> {
-                try {
-                    JServerPacket received = (JServerPacket) inputStream.readObject();
-                    received.onReceived(getAddress());
+            scheduleRead();
+        }
+
+        /**
+         * Schedules the next packet to be read. Reading is postponed while the rate limit is in debt, so the other party
+         * is held back by TCP flow control.
+         */
+        private void scheduleRead() {
+            JServerRateLimiter limiter = rateLimiter;
+            long delayNanos = limiter != null ? limiter.getReadDelayNanos() : 0;
+            Executor readExecutor = delayNanos > 0
+                                    ? CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, executor)
+                                    : executor;
+
+            readExecutor.execute(() -> {
+                if (socket.isClosed()) return;
 
-                    subscriber.onNext(received);
+                try {
+                    JServerPacket packet = readPacket();
+                    // The rate limit went into debt before a packet could be read, so wait before reading any further.
+                    if (packet == null) scheduleRead();
+                    else subscriber.onNext(packet);
                 } catch (EOFException | SocketException e) {
                     logger.log(Level.INFO,
                                String.format("(%s) Socket closed while reading packet from %s",
                                              contextType,
                                              getAddress()));
-                    if (!wantToClose.get()) cancel();
-                } catch (ClassNotFoundException e) {
-                    logger.log(Level.WARNING, String.format("(%s) Class not found", contextType), e);
-                } catch (IOException e) {
+                    close("Closed by other party", JServerTrafficDirection.INBOUND);
+                } catch (SocketTimeoutException e) {
+                    int timeoutMillis = getReadTimeout();
+                    JServerHeartbeatTimeoutEvent.emit(connectionId, getAddress(), timeoutMillis);
                     logger.log(Level.INFO,
-                               String.format("(%s) Error reading packet from %s: %s",
+                               String.format("(%s) No heartbeat from %s within %d ms, closing",
+                                             contextType,
+                                             getAddress(),
+                                             timeoutMillis));
+                    close("Heartbeat timeout");
+                } catch (JServerRateLimitExceededException e) {
+                    logger.log(Level.WARNING, String.format("(%s) %s, disconnecting", contextType, e.getMessage()));
+                    close("Rate limit exceeded");
+                } catch (ClassNotFoundException | IOException e) {
+                    // The reading position or string dictionaries may no longer agree with the other party, so there
+                    // is no telling where the next frame starts.
+                    logger.log(Level.WARNING,
+                               String.format("(%s) Error reading packet from %s, disconnecting: %s",
                                              contextType,
                                              getAddress(),
                                              e.getMessage()));
+                    close(e instanceof ClassNotFoundException ? "Unknown packet class" : "Malformed data");
                 }
             });
         }
 
+        private int getReadTimeout() {
+            try {
+                return socket.getSoTimeout();
+            } catch (SocketException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Closes the connection and completes the subscriber. Cancelling is idempotent: if the connection is already
+         * being closed, for example because the other party disconnected, this waits until it has been closed.
+         */
         @Override
         public void cancel() {
-            if (wantToClose.get()) throw new IllegalStateException("Socket is already wanting to close");
-            if (socket.isClosed()) throw new IllegalStateException("Socket is already closed");
+            close("Closed by this side");
+        }
+
+        /**
+         * Closes the connection from this side and completes the subscriber, unless the connection is already being
+         * closed.
+         *
+         * @param reason Why the connection is being closed, for logging and tracing.
+         */
+        void close(@NotNull String reason) {
+            close(reason, JServerTrafficDirection.OUTBOUND);
+        }
+
+        /**
+         * Closes the connection and completes the subscriber, unless the connection is already being closed.
+         *
+         * @param reason    Why the connection is being closed, for logging and tracing.
+         * @param initiator {@link JServerTrafficDirection#INBOUND} if the other party closed the connection, otherwise
+         *                  {@link JServerTrafficDirection#OUTBOUND}.
+         */
+        synchronized void close(@NotNull String reason, @NotNull JServerTrafficDirection initiator) {
+            if (wantToClose.get() || socket.isClosed()) return;
 
             logger.log(Level.INFO,
-                       String.format("(%s) Closing socket handler for %s", contextType, getAddress()));
+                       String.format("(%s) Closing socket handler for %s: %s", contextType, getAddress(), reason));
             wantToClose.set(true);
+            JServerConnectionCloseEvent.emit(connectionId, contextType, getAddress(), reason);
+            JServerTrafficJournal journal = trafficJournal;
+            if (journal != null) journal.appendClose(connectionId, initiator);
 
             try {
                 socket.close();
@@ -202,6 +1603,11 @@ public final class JServerSocketHandler implements Publisher<JServerPacket> {
                            e);
             }
 
+            // Wakes up threads waiting for room in the send queue.
+            synchronized (sendLock) {
+                sendLock.notifyAll();
+            }
+
             subscriber.onComplete();
         }
     }
@@ -0,0 +1,30 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+/**
+ * Receives notifications about streams which the other party of a {@link JServerSocketHandler} opens or closes.
+ * Notifications are delivered by the task reading from the connection, in order with the received packets, and never
+ * concurrently with {@code onNext}.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public interface JServerStreamListener {
+
+    /**
+     * Called before the first packet of a stream opened by the other party is published.
+     *
+     * @param streamId Id of the stream.
+     * @param priority Priority class of the stream.
+     */
+    void onStreamOpened(int streamId, @NotNull JServerPacketPriority priority);
+
+    /**
+     * Called after the last packet of a stream closed by the other party has been published.
+     *
+     * @param streamId Id of the stream.
+     */
+    void onStreamClosed(int streamId);
+}
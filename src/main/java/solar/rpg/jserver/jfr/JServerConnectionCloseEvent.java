@@ -0,0 +1,62 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.connection.JServerConnectionContextType;
+
+import java.net.SocketAddress;
+
+/**
+ * Flight recorder event emitted when a {@code Socket} connection is closed. The connection id links it to the packet
+ * events of the connection.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.ConnectionClose")
+@Label("Connection Close")
+@Category({"JServer", "Connection"})
+@Description("A connection was closed")
+@StackTrace(false)
+public final class JServerConnectionCloseEvent extends Event {
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Context")
+    String context;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Reason")
+    String reason;
+
+    /**
+     * Records the event if it is enabled.
+     *
+     * @param connectionId  Id of the connection.
+     * @param contextType   Context of the connection.
+     * @param remoteAddress Address of the other party.
+     * @param reason        Why the connection was closed.
+     */
+    public static void emit(
+            int connectionId,
+            @NotNull JServerConnectionContextType contextType,
+            SocketAddress remoteAddress,
+            @NotNull String reason) {
+        JServerConnectionCloseEvent event = new JServerConnectionCloseEvent();
+        if (!event.shouldCommit()) return;
+
+        event.connectionId = connectionId;
+        event.context = contextType.name();
+        event.remoteAddress = String.valueOf(remoteAddress);
+        event.reason = reason;
+        event.commit();
+    }
+}
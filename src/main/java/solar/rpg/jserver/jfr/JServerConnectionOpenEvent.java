@@ -0,0 +1,56 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.connection.JServerConnectionContextType;
+
+import java.net.SocketAddress;
+
+/**
+ * Flight recorder event emitted when a {@code Socket} connection is opened. The connection id links it to the packet
+ * events of the connection.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.ConnectionOpen")
+@Label("Connection Open")
+@Category({"JServer", "Connection"})
+@Description("A connection was opened")
+@StackTrace(false)
+public final class JServerConnectionOpenEvent extends Event {
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Context")
+    String context;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    /**
+     * Records the event if it is enabled.
+     *
+     * @param connectionId  Id of the connection.
+     * @param contextType   Context of the connection.
+     * @param remoteAddress Address of the other party.
+     */
+    public static void emit(
+            int connectionId,
+            @NotNull JServerConnectionContextType contextType,
+            SocketAddress remoteAddress) {
+        JServerConnectionOpenEvent event = new JServerConnectionOpenEvent();
+        if (!event.shouldCommit()) return;
+
+        event.connectionId = connectionId;
+        event.context = contextType.name();
+        event.remoteAddress = String.valueOf(remoteAddress);
+        event.commit();
+    }
+}
@@ -0,0 +1,38 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering a flush of the buffered frames of a connection to its {@code Socket}.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.Flush")
+@Label("Flush")
+@Category({"JServer", "Packet"})
+@Description("Buffered frames were flushed to a connection")
+@StackTrace(false)
+public final class JServerFlushEvent extends Event {
+
+    @Label("Connection Id")
+    int connectionId;
+
+    /**
+     * Ends the event and records it if it is enabled and long enough.
+     *
+     * @param connectionId Id of the connection.
+     */
+    public void end(int connectionId) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.connectionId = connectionId;
+        commit();
+    }
+}
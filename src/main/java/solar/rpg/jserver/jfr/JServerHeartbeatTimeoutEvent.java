@@ -0,0 +1,53 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.net.SocketAddress;
+
+/**
+ * Flight recorder event emitted when nothing, not even a heartbeat, was received on a connection within its read
+ * timeout.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.HeartbeatTimeout")
+@Label("Heartbeat Timeout")
+@Category({"JServer", "Connection"})
+@Description("Nothing was received on a connection within its read timeout")
+@StackTrace(false)
+public final class JServerHeartbeatTimeoutEvent extends Event {
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Timeout")
+    @Timespan(Timespan.MILLISECONDS)
+    long timeout;
+
+    /**
+     * Records the event if it is enabled.
+     *
+     * @param connectionId  Id of the connection.
+     * @param remoteAddress Address of the other party.
+     * @param timeoutMillis Read timeout of the connection in milliseconds.
+     */
+    public static void emit(int connectionId, SocketAddress remoteAddress, long timeoutMillis) {
+        JServerHeartbeatTimeoutEvent event = new JServerHeartbeatTimeoutEvent();
+        if (!event.shouldCommit()) return;
+
+        event.connectionId = connectionId;
+        event.remoteAddress = String.valueOf(remoteAddress);
+        event.timeout = timeoutMillis;
+        event.commit();
+    }
+}
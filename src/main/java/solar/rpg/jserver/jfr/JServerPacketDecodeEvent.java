@@ -0,0 +1,64 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+/**
+ * Flight recorder event covering the decoding of a received payload into a packet.
+ * <p>
+ * Call {@link #begin()} before decoding and {@link #end(int, Class, int, JServerPacketPriority)} afterwards. Nothing
+ * is recorded unless the event is enabled.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.PacketDecode")
+@Label("Packet Decode")
+@Category({"JServer", "Packet"})
+@Description("A received payload was decoded into a packet")
+@StackTrace(false)
+public final class JServerPacketDecodeEvent extends Event {
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Packet Type")
+    Class<?> packetType;
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Priority")
+    String priority;
+
+    /**
+     * Ends the event and records it if it is enabled and long enough.
+     *
+     * @param connectionId Id of the connection.
+     * @param packetType   Type of the decoded packet.
+     * @param size         Size of the payload in bytes.
+     * @param priority     Priority class of the payload.
+     */
+    public void end(
+            int connectionId,
+            @NotNull Class<?> packetType,
+            int size,
+            @NotNull JServerPacketPriority priority) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.connectionId = connectionId;
+        this.packetType = packetType;
+        this.size = size;
+        this.priority = priority.name();
+        commit();
+    }
+}
@@ -0,0 +1,90 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Flight recorder event covering the handling of a received packet by {@code onPacketReceived}, from the moment it is
+ * dispatched until the stage returned by {@code onPacketReceivedAsync} completes. Time spent waiting to be dispatched
+ * is not covered by the event, but recorded separately as its queue wait.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.PacketDispatch")
+@Label("Packet Dispatch")
+@Category({"JServer", "Packet"})
+@Description("A received packet was handled by the packet handler")
+@StackTrace(false)
+public final class JServerPacketDispatchEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(JServerPacketDispatchEvent.class);
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Packet Type")
+    Class<?> packetType;
+
+    @Label("Failed")
+    @Description("Whether handling the packet threw an exception")
+    boolean failed;
+
+    @Label("Queue Wait")
+    @Description("Time the packet waited for earlier packets with the same ordering key before it was dispatched")
+    @Timespan
+    long queueWait;
+
+    private JServerPacketDispatchEvent() {
+    }
+
+    /**
+     * @return True, if the event is enabled, in which case the time each packet is received at has to be taken.
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    /**
+     * Begins the event, unless it is disabled. Handling may complete on another thread, so the event is only allocated
+     * while recording.
+     *
+     * @return Begun event, or null if the event is disabled.
+     */
+    @Nullable
+    public static JServerPacketDispatchEvent beginIfEnabled() {
+        if (!TYPE.isEnabled()) return null;
+
+        JServerPacketDispatchEvent event = new JServerPacketDispatchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event and records it if it is long enough.
+     *
+     * @param connectionId Id of the connection.
+     * @param packetType   Type of the handled packet.
+     * @param failed       True, if handling the packet failed.
+     * @param queueWait    Nanoseconds between the packet being received and it being dispatched, or zero if the packet
+     *                     was received before the event was enabled.
+     */
+    public void end(int connectionId, @NotNull Class<?> packetType, boolean failed, long queueWait) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.connectionId = connectionId;
+        this.packetType = packetType;
+        this.failed = failed;
+        this.queueWait = queueWait;
+        commit();
+    }
+}
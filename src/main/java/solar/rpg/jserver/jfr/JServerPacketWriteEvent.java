@@ -0,0 +1,91 @@
+package solar.rpg.jserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+/**
+ * Flight recorder event covering the writing of a single frame to a connection. Packets are encoded when they are
+ * queued, so the event only covers copying the frame into the buffered output stream; see {@link JServerFlushEvent} for
+ * time spent sending.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Name("solar.rpg.jserver.PacketWrite")
+@Label("Packet Write")
+@Category({"JServer", "Packet"})
+@Description("A frame of an encoded packet was written to a connection")
+@StackTrace(false)
+public final class JServerPacketWriteEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(JServerPacketWriteEvent.class);
+
+    @Label("Connection Id")
+    int connectionId;
+
+    @Label("Packet Type")
+    Class<?> packetType;
+
+    @Label("Size")
+    @Description("Size of the frame body")
+    @DataAmount
+    int size;
+
+    @Label("Priority")
+    String priority;
+
+    @Label("Fragment")
+    @Description("Whether the frame holds part of a larger payload")
+    boolean fragment;
+
+    @Label("Queue Wait")
+    @Description("Time the payload spent in the send queue before this frame was written")
+    @Timespan
+    long queueWait;
+
+    /**
+     * @return True, if the event is enabled, in which case the time each payload is queued at has to be taken.
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    /**
+     * Ends the event and records it if it is enabled and long enough.
+     *
+     * @param connectionId Id of the connection.
+     * @param packetType   Type of the packet in the frame.
+     * @param size         Size of the frame body in bytes.
+     * @param priority     Priority class of the frame.
+     * @param fragment     True, if the frame holds part of a larger payload.
+     * @param queueWait    Nanoseconds between the payload being queued and this frame being written, or zero if the
+     *                     payload was queued before the event was enabled.
+     */
+    public void end(
+            int connectionId,
+            @NotNull Class<?> packetType,
+            int size,
+            @NotNull JServerPacketPriority priority,
+            boolean fragment,
+            long queueWait) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.connectionId = connectionId;
+        this.packetType = packetType;
+        this.size = size;
+        this.priority = priority.name();
+        this.fragment = fragment;
+        this.queueWait = queueWait;
+        commit();
+    }
+}
@@ -0,0 +1,12 @@
+package solar.rpg.jserver.journal;
+
+/**
+ * Denotes whether a frame recorded in a {@link JServerTrafficJournal} was received from or sent to the other party.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public enum JServerTrafficDirection {
+    INBOUND,
+    OUTBOUND
+}
@@ -0,0 +1,358 @@
+package solar.rpg.jserver.journal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@code JServerTrafficJournal} records every frame sent or received by the socket handlers it is attached to, so
+ * that real traffic can later be replayed using {@link JServerTrafficReplayer}. Frames are appended to fixed-size,
+ * memory-mapped segment files, so recording a frame is a single copy into memory and never blocks on disk I/O. Each
+ * frame reserves its space in the current segment atomically, so frames from different connections are recorded
+ * concurrently, and only rolling over to the next segment takes a lock.
+ * <p>
+ * Each segment starts with a header containing {@link #SEGMENT_MAGIC} and the wall-clock time it was created. It is
+ * followed by records, each made up of the record length, a monotonic timestamp in nanoseconds, the connection id,
+ * the direction of the frame, and the frame body. The unused remainder of a segment is zero-filled. When a connection
+ * closes, a record without a body is appended, with {@link #CLOSE_FLAG} set in its direction.
+ * <p>
+ * The next segment is created and mapped in the background while the current one is being filled, so rolling over is
+ * usually only a swap. If the next segment is not ready yet when the current one is full, frames wait up to
+ * {@link #MAX_ROLLOVER_WAIT_MILLIS} for it and are discarded afterwards. Discarded frames are counted, and marked by a
+ * gap record in their place, with {@link #GAP_FLAG} set in its direction and the number of discarded frames as its
+ * body. The segment which was being prepared when the journal is closed is left empty.
+ * <p>
+ * A new journal must be given an empty directory; existing segments are never overwritten.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerTrafficJournal implements Closeable {
+
+    /**
+     * Size of each segment file if no size is given.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final int SEGMENT_MAGIC = 0x4A534A31;
+    static final int SEGMENT_HEADER_LENGTH = 12;
+    static final int RECORD_HEADER_LENGTH = 17;
+    static final String SEGMENT_FORMAT = "segment-%08d.journal";
+
+    /**
+     * Set in the direction of a record which marks the connection as closed, rather than holding a frame.
+     */
+    static final int CLOSE_FLAG = 0x80;
+
+    /**
+     * Set in the direction of a record which marks that frames were discarded, rather than holding a frame.
+     */
+    static final int GAP_FLAG = 0x40;
+
+    /**
+     * Longest time a frame waits for the next segment to be created when the current one is full, before it is
+     * discarded. Waiting any longer would hold up the thread sending or receiving the frame.
+     */
+    static final long MAX_ROLLOVER_WAIT_MILLIS = 100;
+
+    @NotNull
+    private final Logger logger;
+    @NotNull
+    private final Path directory;
+    private final int segmentSize;
+    @NotNull
+    private final ExecutorService segmentExecutor;
+    private int segmentIndex;
+    @Nullable
+    private volatile JServerJournalSegment segment;
+    @NotNull
+    private CompletableFuture<MappedByteBuffer> nextSegment;
+    @NotNull
+    private final AtomicLong droppedRecords;
+
+    /**
+     * Number of frames which were discarded since the last gap record was written.
+     */
+    @NotNull
+    private final AtomicLong unrecordedGap;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a {@code JServerTrafficJournal}, creating its first segment.
+     *
+     * @param directory   Directory which segments are written to. It is created if it does not exist.
+     * @param segmentSize Size of each segment file in bytes.
+     * @param logger      Logger object.
+     * @throws IllegalArgumentException Segment size is too small to hold any records.
+     * @throws IOException              Unable to create the first segment.
+     */
+    public JServerTrafficJournal(@NotNull Path directory, int segmentSize, @NotNull Logger logger) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH)
+            throw new IllegalArgumentException("Segment size is too small to hold any records");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.logger = logger;
+        segmentIndex = 0;
+        droppedRecords = new AtomicLong(0);
+        unrecordedGap = new AtomicLong(0);
+        closed = false;
+        segmentExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JServerTrafficJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Files.createDirectories(directory);
+        segment = new JServerJournalSegment(mapSegment(segmentIndex++));
+        nextSegment = prepareNextSegment();
+    }
+
+    /**
+     * Constructs a {@code JServerTrafficJournal} using the {@link #DEFAULT_SEGMENT_SIZE default segment size}.
+     *
+     * @param directory Directory which segments are written to.
+     * @param logger    Logger object.
+     * @throws IOException Unable to create the first segment.
+     */
+    public JServerTrafficJournal(@NotNull Path directory, @NotNull Logger logger) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, logger);
+    }
+
+    @NotNull
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Number of frames which were discarded while the journal was open, because they did not fit in a segment
+     * or the next segment was not ready in time.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Appends a frame to the journal. If the current segment is full, the next segment is swapped in. If the journal
+     * is closed, the frame does not fit in a segment, or the next segment is not ready in time or could not be
+     * created, the frame is discarded.
+     *
+     * @param connectionId Id of the connection which the frame was sent or received on.
+     * @param direction    Whether the frame was received or sent.
+     * @param frame        Buffer containing the frame body.
+     * @param offset       Offset of the frame body in the buffer.
+     * @param length       Length of the frame body.
+     */
+    public void append(
+            int connectionId,
+            @NotNull JServerTrafficDirection direction,
+            @NotNull byte[] frame,
+            int offset,
+            int length) {
+        appendRecord(connectionId, direction.ordinal(), frame, offset, length);
+    }
+
+    /**
+     * Records that a connection was closed, so that a replay closes it at the same point.
+     *
+     * @param connectionId Id of the connection which was closed.
+     * @param direction    {@link JServerTrafficDirection#INBOUND} if the other party closed the connection, otherwise
+     *                     {@link JServerTrafficDirection#OUTBOUND}.
+     */
+    public void appendClose(int connectionId, @NotNull JServerTrafficDirection direction) {
+        appendRecord(connectionId, direction.ordinal() | CLOSE_FLAG, new byte[0], 0, 0);
+    }
+
+    private void appendRecord(
+            int connectionId,
+            int flags,
+            @NotNull byte[] frame,
+            int offset,
+            int length) {
+        if (closed) return;
+
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength > segmentSize - SEGMENT_HEADER_LENGTH) {
+            logger.log(Level.WARNING, String.format("Frame of %d bytes is too large for the journal", length));
+            discard();
+            return;
+        }
+
+        // Frames which were discarded are marked before the next frame which is recorded.
+        if (unrecordedGap.get() != 0) {
+            long discarded = unrecordedGap.getAndSet(0);
+            byte[] gap = ByteBuffer.allocate(Long.BYTES).putLong(discarded).array();
+            if (discarded != 0 && !writeRecord(0, GAP_FLAG, gap, 0, gap.length)) unrecordedGap.addAndGet(discarded);
+        }
+
+        if (!writeRecord(connectionId, flags, frame, offset, length)) discard();
+    }
+
+    /**
+     * Counts a frame which could not be recorded.
+     */
+    private void discard() {
+        if (closed) return;
+
+        droppedRecords.incrementAndGet();
+        unrecordedGap.incrementAndGet();
+    }
+
+    /**
+     * Reserves room for a record in the current segment and writes it, rolling over to the next segment if the current
+     * one is full.
+     *
+     * @return True, if the record was written; false if the journal is closed or the next segment was not ready.
+     */
+    private boolean writeRecord(
+            int connectionId,
+            int flags,
+            @NotNull byte[] frame,
+            int offset,
+            int length) {
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        while (true) {
+            JServerJournalSegment current = segment;
+            if (current == null) return false;
+
+            // Records which overrun the segment leave their space zero-filled, which marks the end of the segment.
+            long position = current.reserved.getAndAdd(recordLength);
+            if (position + recordLength <= segmentSize) {
+                int index = (int) position;
+                current.buffer.putInt(index, recordLength)
+                        .putLong(index + 4, System.nanoTime())
+                        .putInt(index + 12, connectionId)
+                        .put(index + 16, (byte) flags)
+                        .put(index + RECORD_HEADER_LENGTH, frame, offset, length);
+                return true;
+            }
+
+            if (!rollOver(current)) return false;
+        }
+    }
+
+    /**
+     * Swaps in the next segment once the given segment is full, waiting up to {@link #MAX_ROLLOVER_WAIT_MILLIS} for it
+     * to be created. Several threads may find the segment full at once, but only one of them swaps it.
+     *
+     * @param full Segment which is full.
+     * @return True, if the segment has been swapped by now; false if the next segment was not ready in time.
+     */
+    private boolean rollOver(@NotNull JServerJournalSegment full) {
+        CompletableFuture<MappedByteBuffer> next;
+        synchronized (this) {
+            if (segment != full) return true;
+            next = nextSegment;
+        }
+
+        MappedByteBuffer mapped;
+        try {
+            mapped = next.get(MAX_ROLLOVER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING,
+                       String.format("Unable to create journal segment in %s", directory),
+                       e.getCause());
+            close();
+            return false;
+        }
+
+        synchronized (this) {
+            if (segment == full) {
+                segment = new JServerJournalSegment(mapped);
+                nextSegment = prepareNextSegment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True, if the segment to roll over to has been created, whether or not that succeeded.
+     */
+    synchronized boolean isNextSegmentReady() {
+        return nextSegment.isDone();
+    }
+
+    /**
+     * Flushes the current segment to disk and stops recording. Frames appended afterwards are discarded.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        JServerJournalSegment current = segment;
+        if (current != null) current.buffer.force();
+        segment = null;
+        segmentExecutor.shutdown();
+    }
+
+    /**
+     * Starts creating the segment after the most recently created one in the background.
+     */
+    @NotNull
+    private CompletableFuture<MappedByteBuffer> prepareNextSegment() {
+        int index = segmentIndex++;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return mapSegment(index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, segmentExecutor);
+    }
+
+    @NotNull
+    private MappedByteBuffer mapSegment(int index) throws IOException {
+        // Full segments are written back by the OS, so rolling over never waits for the disk.
+        Path segmentPath = directory.resolve(String.format(SEGMENT_FORMAT, index));
+        try (FileChannel channel = FileChannel.open(
+                segmentPath,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            mapped.putInt(SEGMENT_MAGIC).putLong(System.currentTimeMillis());
+            return mapped;
+        }
+    }
+
+    /**
+     * A mapped segment, and how much of it has been reserved by records.
+     */
+    private static final class JServerJournalSegment {
+
+        @NotNull
+        private final MappedByteBuffer buffer;
+        @NotNull
+        private final AtomicLong reserved;
+
+        JServerJournalSegment(@NotNull MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            reserved = new AtomicLong(SEGMENT_HEADER_LENGTH);
+        }
+    }
+}
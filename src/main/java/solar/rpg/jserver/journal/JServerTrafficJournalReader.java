@@ -0,0 +1,124 @@
+package solar.rpg.jserver.journal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@code JServerTrafficJournalReader} reads the records written by a {@link JServerTrafficJournal}, in the order
+ * they were appended.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerTrafficJournalReader implements Closeable {
+
+    @NotNull
+    private final Iterator<Path> segmentPaths;
+    @Nullable
+    private MappedByteBuffer segment;
+
+    /**
+     * Constructs a {@code JServerTrafficJournalReader}.
+     *
+     * @param directory Directory containing the journal segments.
+     * @throws IOException Unable to list the journal segments.
+     */
+    public JServerTrafficJournalReader(@NotNull Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            List<Path> segments = paths
+                    .filter(path -> path.getFileName().toString().endsWith(".journal"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            segmentPaths = segments.iterator();
+        }
+    }
+
+    /**
+     * @return Next record, or null if every record has been read.
+     * @throws StreamCorruptedException A segment or record is malformed.
+     * @throws IOException              Unable to read a segment.
+     */
+    @Nullable
+    public JServerTrafficRecord next() throws IOException {
+        while (true) {
+            if (segment == null) {
+                if (!segmentPaths.hasNext()) return null;
+                segment = mapSegment(segmentPaths.next());
+            }
+
+            int recordLength = segment.remaining() >= Integer.BYTES ? segment.getInt() : 0;
+            if (recordLength == 0) {
+                segment = null;
+                continue;
+            }
+            if (recordLength < JServerTrafficJournal.RECORD_HEADER_LENGTH
+                || recordLength - Integer.BYTES > segment.remaining())
+                throw new StreamCorruptedException(String.format("Invalid record length %d", recordLength));
+
+            long timestampNanos = segment.getLong();
+            int connectionId = segment.getInt();
+            int flags = segment.get() & 0xFF;
+            boolean close = (flags & JServerTrafficJournal.CLOSE_FLAG) != 0;
+            boolean gap = (flags & JServerTrafficJournal.GAP_FLAG) != 0;
+            int direction = flags & ~(JServerTrafficJournal.CLOSE_FLAG | JServerTrafficJournal.GAP_FLAG);
+            if (direction >= JServerTrafficDirection.values().length)
+                throw new StreamCorruptedException(String.format("Invalid record direction %d", direction));
+
+            int bodyLength = recordLength - JServerTrafficJournal.RECORD_HEADER_LENGTH;
+            if (close && bodyLength > 0) throw new StreamCorruptedException("Close record has a body");
+            if (gap) {
+                long discardedFrames = bodyLength == Long.BYTES ? segment.getLong() : 0;
+                if (close || discardedFrames <= 0) throw new StreamCorruptedException("Malformed gap record");
+                return new JServerTrafficRecord(
+                        timestampNanos,
+                        connectionId,
+                        JServerTrafficDirection.values()[direction],
+                        new byte[0],
+                        false,
+                        discardedFrames);
+            }
+
+            byte[] frame = new byte[bodyLength];
+            segment.get(frame);
+            return new JServerTrafficRecord(
+                    timestampNanos,
+                    connectionId,
+                    JServerTrafficDirection.values()[direction],
+                    frame,
+                    close,
+                    0);
+        }
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+    }
+
+    @NotNull
+    private static MappedByteBuffer mapSegment(@NotNull Path segmentPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < JServerTrafficJournal.SEGMENT_HEADER_LENGTH
+                || mapped.getInt() != JServerTrafficJournal.SEGMENT_MAGIC)
+                throw new StreamCorruptedException(String.format("%s is not a journal segment", segmentPath));
+
+            // Skip the creation time of the segment.
+            mapped.getLong();
+            return mapped;
+        }
+    }
+}
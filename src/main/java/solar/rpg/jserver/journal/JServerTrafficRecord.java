@@ -0,0 +1,90 @@
+package solar.rpg.jserver.journal;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A single frame read from a {@link JServerTrafficJournal}, or a marker recording that a connection was closed or that
+ * frames were discarded.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerTrafficRecord {
+
+    private final long timestampNanos;
+    private final int connectionId;
+    @NotNull
+    private final JServerTrafficDirection direction;
+    @NotNull
+    private final byte[] frame;
+    private final boolean close;
+    private final long discardedFrames;
+
+    public JServerTrafficRecord(
+            long timestampNanos,
+            int connectionId,
+            @NotNull JServerTrafficDirection direction,
+            @NotNull byte[] frame,
+            boolean close,
+            long discardedFrames) {
+        this.timestampNanos = timestampNanos;
+        this.connectionId = connectionId;
+        this.direction = direction;
+        this.frame = frame;
+        this.close = close;
+        this.discardedFrames = discardedFrames;
+    }
+
+    /**
+     * @return Monotonic timestamp of the frame, in nanoseconds. Only the difference between timestamps is meaningful.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return Id of the connection which the frame was sent or received on.
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return Whether the frame was received or sent. For close records, {@link JServerTrafficDirection#INBOUND} if the
+     * other party closed the connection, otherwise {@link JServerTrafficDirection#OUTBOUND}.
+     */
+    @NotNull
+    public JServerTrafficDirection getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return True, if this record marks the connection as closed instead of holding a frame.
+     */
+    public boolean isClose() {
+        return close;
+    }
+
+    /**
+     * @return True, if this record marks that frames were discarded at this point instead of holding a frame. The
+     * connections which the discarded frames belonged to are unknown.
+     */
+    public boolean isGap() {
+        return discardedFrames > 0;
+    }
+
+    /**
+     * @return Number of frames which were discarded at this point, or zero unless this is a gap record.
+     */
+    public long getDiscardedFrames() {
+        return discardedFrames;
+    }
+
+    /**
+     * @return Frame body, without its length prefix. Empty for close and gap records.
+     */
+    @NotNull
+    public byte[] getFrame() {
+        return frame;
+    }
+}
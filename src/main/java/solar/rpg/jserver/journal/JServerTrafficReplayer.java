@@ -0,0 +1,270 @@
+package solar.rpg.jserver.journal;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.JServerThread;
+import solar.rpg.jserver.connection.JServerConnectionContextType;
+import solar.rpg.jserver.packet.codec.JServerPacketFrames;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@code JServerTrafficReplayer} drives a {@code JServerHost} or {@code JServerClient} using the frames recorded in a
+ * {@link JServerTrafficJournal}. Every recorded connection is replayed over its own {@code Socket}, with the original
+ * timing between frames scaled by a speed factor. Anything sent back by the party being driven is discarded.
+ * <p>
+ * Frames which were recorded in the given direction are replayed. For example, to drive a host using a journal which
+ * was recorded by that host, replay the {@link JServerTrafficDirection#INBOUND inbound} frames. A replayed connection
+ * is closed when the journal records that it was closed, whichever party closed it.
+ * <p>
+ * Only frames on the default stream and on streams opened by the replaying side are replayed. The party being driven
+ * opens its own streams during the replay, whose ids need not match the recorded ones, so recorded frames on streams
+ * it opened, including control frames which close them, would refer to streams it never opened and be rejected as
+ * corrupt. Frames which the journal discarded while recording are reported, as connections they belonged to may not
+ * replay faithfully.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerTrafficReplayer {
+
+    @NotNull
+    private final Logger logger;
+    @NotNull
+    private final Path journalDirectory;
+    @NotNull
+    private final JServerTrafficDirection direction;
+    private final double speed;
+
+    /**
+     * Constructs a {@code JServerTrafficReplayer}.
+     *
+     * @param journalDirectory Directory containing the journal segments.
+     * @param direction        Direction of the recorded frames to replay.
+     * @param speed            Speed factor, where 1 is the original speed. Zero replays as fast as possible.
+     * @param logger           Logger object.
+     * @throws IllegalArgumentException Speed is negative.
+     */
+    public JServerTrafficReplayer(
+            @NotNull Path journalDirectory,
+            @NotNull JServerTrafficDirection direction,
+            double speed,
+            @NotNull Logger logger) {
+        if (speed < 0) throw new IllegalArgumentException("Speed must not be negative");
+
+        this.journalDirectory = journalDirectory;
+        this.direction = direction;
+        this.speed = speed;
+        this.logger = logger;
+    }
+
+    /**
+     * Replays the journal against a host, acting as one client per recorded connection. Blocks until every frame has
+     * been replayed.
+     *
+     * @param hostAddress Address of the host.
+     * @throws InterruptedException Interrupted while waiting to replay the next frame.
+     * @throws IOException          Unable to read the journal or connect to the host.
+     */
+    public void replayToHost(@NotNull InetSocketAddress hostAddress) throws IOException, InterruptedException {
+        replay(JServerConnectionContextType.CLIENT, () -> {
+            Socket socket = new Socket();
+            socket.connect(hostAddress, (int) TimeUnit.SECONDS.toMillis(5));
+            return socket;
+        });
+    }
+
+    /**
+     * Replays the journal against clients, acting as a host. Each recorded connection is replayed to the next client
+     * which connects to the given server socket. Blocks until every frame has been replayed.
+     *
+     * @param serverSocket Server socket which clients connect to.
+     * @throws InterruptedException Interrupted while waiting to replay the next frame.
+     * @throws IOException          Unable to read the journal or accept a client.
+     */
+    public void replayToClients(@NotNull ServerSocket serverSocket) throws IOException, InterruptedException {
+        replay(JServerConnectionContextType.HOST, serverSocket::accept);
+    }
+
+    private void replay(
+            @NotNull JServerConnectionContextType contextType,
+            @NotNull JServerReplaySocketFactory socketFactory) throws IOException, InterruptedException {
+        Map<Integer, Socket> sockets = new HashMap<>();
+        Map<Integer, OutputStream> outputStreams = new HashMap<>();
+        int replayed = 0;
+        int closed = 0;
+        int skipped = 0;
+        long discarded = 0;
+
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            long replayStart = System.nanoTime();
+            long journalStart = -1;
+
+            JServerTrafficRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.isGap()) {
+                    logger.log(Level.WARNING, String.format(
+                            "(%s) %d frames were discarded while recording, connections may not replay faithfully",
+                            contextType,
+                            record.getDiscardedFrames()));
+                    discarded += record.getDiscardedFrames();
+                    continue;
+                }
+                if (!record.isClose() && record.getDirection() != direction) continue;
+                if (!record.isClose() && !isReplayedStream(record.getFrame(), contextType)) {
+                    skipped++;
+                    continue;
+                }
+                // Connections which were closed before any frames were replayed over them were never opened.
+                if (record.isClose() && !outputStreams.containsKey(record.getConnectionId())) continue;
+
+                if (journalStart < 0) journalStart = record.getTimestampNanos();
+                if (speed > 0) {
+                    long due = replayStart + (long) ((record.getTimestampNanos() - journalStart) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                if (record.isClose()) {
+                    outputStreams.remove(record.getConnectionId()).flush();
+                    closeSocket(sockets.remove(record.getConnectionId()));
+                    closed++;
+                    continue;
+                }
+
+                OutputStream outputStream = outputStreams.get(record.getConnectionId());
+                if (outputStream == null) {
+                    Socket socket = socketFactory.open();
+                    sockets.put(record.getConnectionId(), socket);
+                    new JServerDrainThread(socket.getInputStream(), contextType).start();
+                    outputStream = new BufferedOutputStream(socket.getOutputStream());
+                    outputStreams.put(record.getConnectionId(), outputStream);
+                }
+
+                byte[] frame = record.getFrame();
+                JServerPacketFrames.writeFrame(outputStream, frame, 0, frame.length);
+                outputStream.flush();
+                replayed++;
+            }
+        } finally {
+            for (Socket socket : sockets.values())
+                closeSocket(socket);
+        }
+
+        logger.log(Level.INFO, String.format(
+                "(%s) Replayed %d frames over %d connections from %s, skipped %d frames on streams of the other party, "
+                + "%d frames missing from the journal",
+                contextType,
+                replayed,
+                closed + sockets.size(),
+                journalDirectory,
+                skipped,
+                discarded));
+    }
+
+    /**
+     * @param frame       Recorded frame body.
+     * @param contextType Context of the replaying side.
+     * @return True, if the frame belongs to the default stream or to a stream opened by the replaying side.
+     * @throws StreamCorruptedException Recorded frame is malformed.
+     */
+    private static boolean isReplayedStream(@NotNull byte[] frame, @NotNull JServerConnectionContextType contextType)
+            throws StreamCorruptedException {
+        int streamId = JServerPacketFrames.readStreamId(frame, 0, frame.length);
+        return streamId == JServerPacketFrames.DEFAULT_STREAM_ID
+               || (streamId % 2 == 1) == (contextType == JServerConnectionContextType.CLIENT);
+    }
+
+    private void closeSocket(@NotNull Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close replay socket", e);
+        }
+    }
+
+    /**
+     * Replays a journal from the command line.
+     * <p>
+     * Usage: {@code <journal directory> host <address> <port> [speed] [direction]} to drive a host, or
+     * {@code <journal directory> client <port> [speed] [direction]} to drive clients. The speed defaults to 1 and the
+     * direction defaults to {@code INBOUND}.
+     *
+     * @param args Command line arguments.
+     * @throws Exception Replay failed.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: <journal directory> host <address> <port> [speed] [direction]");
+            System.err.println("       <journal directory> client <port> [speed] [direction]");
+            System.exit(1);
+        }
+
+        Logger logger = Logger.getLogger(JServerTrafficReplayer.class.getName());
+        Path journalDirectory = Path.of(args[0]);
+        boolean host = args[1].equalsIgnoreCase("host");
+        int optionalIndex = host ? 4 : 3;
+        double speed = args.length > optionalIndex ? Double.parseDouble(args[optionalIndex]) : 1;
+        JServerTrafficDirection direction = args.length > optionalIndex + 1
+                                            ? JServerTrafficDirection.valueOf(args[optionalIndex + 1])
+                                            : JServerTrafficDirection.INBOUND;
+
+        JServerTrafficReplayer replayer = new JServerTrafficReplayer(journalDirectory, direction, speed, logger);
+        if (host) {
+            replayer.replayToHost(new InetSocketAddress(InetAddress.getByName(args[2]), Integer.parseInt(args[3])));
+        } else {
+            try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[2]))) {
+                replayer.replayToClients(serverSocket);
+            }
+        }
+    }
+
+    /**
+     * Opens the socket used to replay a recorded connection.
+     */
+    @FunctionalInterface
+    private interface JServerReplaySocketFactory {
+
+        @NotNull
+        Socket open() throws IOException;
+    }
+
+    /**
+     * Continually reads and discards anything sent by the party being driven, so that it never blocks on writes.
+     */
+    private final class JServerDrainThread extends JServerThread {
+
+        @NotNull
+        private final InputStream inputStream;
+        @NotNull
+        private final byte[] buffer;
+
+        JServerDrainThread(@NotNull InputStream inputStream, @NotNull JServerConnectionContextType contextType) {
+            super(true, Thread.NORM_PRIORITY, contextType, JServerTrafficReplayer.this.logger);
+            this.inputStream = inputStream;
+            buffer = new byte[8192];
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (inputStream.read(buffer) >= 0) return;
+            } catch (IOException ignored) {
+            }
+            stop();
+        }
+    }
+}
@@ -1,21 +1,140 @@
 package solar.rpg.jserver.packet;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.Serial;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public abstract class JServerPacket implements Serializable {
 
     @Serial
     private static final long serialVersionUID = -2549633621349122038L;
 
+    private static final AtomicIntegerFieldUpdater<JServerPacket> REF_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(JServerPacket.class, "refCount");
+
     private transient InetSocketAddress originAddress;
 
+    /**
+     * Id of the stream this packet was received on, or zero for the default stream.
+     */
+    private transient int streamId;
+
+    /**
+     * Pool which owns this packet, or null if this packet is not pooled.
+     */
+    @Nullable
+    private transient JServerPacketPool pool;
+
+    /**
+     * Number of outstanding references to this packet. Only meaningful while the packet is pooled.
+     */
+    private transient volatile int refCount;
+
     public void onReceived(InetSocketAddress originAddress) {
+        onReceived(originAddress, 0);
+    }
+
+    /**
+     * @param originAddress Address of the party which sent this packet.
+     * @param streamId      Id of the stream this packet was received on, or zero for the default stream.
+     */
+    public void onReceived(InetSocketAddress originAddress, int streamId) {
         this.originAddress = originAddress;
+        this.streamId = streamId;
     }
 
     public InetSocketAddress getOriginAddress() {
         return originAddress;
     }
+
+    /**
+     * @return Id of the stream this packet was received on, or zero if it was received on the default stream.
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return Priority class which determines how soon this packet is sent relative to other queued packets. Subclasses
+     * which carry latency-critical or bulk data should override this.
+     */
+    @NotNull
+    public JServerPacketPriority getPriority() {
+        return JServerPacketPriority.NORMAL;
+    }
+
+    /**
+     * @return True, if this packet is owned by a {@link JServerPacketPool} and will be recycled once released.
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Adds a reference to this packet, so it is not recycled until {@link #release()} is called once more.
+     * This has no effect on packets which are not pooled.
+     *
+     * @return This packet.
+     * @throws IllegalStateException Packet has already been released back to its pool.
+     */
+    @NotNull
+    public final JServerPacket retain() {
+        if (pool == null) return this;
+
+        int previous = REF_COUNT_UPDATER.getAndIncrement(this);
+        if (previous <= 0) {
+            REF_COUNT_UPDATER.getAndDecrement(this);
+            throw new IllegalStateException("Packet has already been released");
+        }
+        return this;
+    }
+
+    /**
+     * Removes a reference to this packet. Once the last reference is removed, the nested packets it holds are released,
+     * and the packet is reset and returned to its pool, and must no longer be used by the caller. This has no effect on
+     * packets which are not pooled.
+     *
+     * @return True, if this packet was returned to its pool.
+     * @throws IllegalStateException Packet has already been released back to its pool.
+     */
+    public final boolean release() {
+        JServerPacketPool owner = pool;
+        if (owner == null) return false;
+
+        int remaining = REF_COUNT_UPDATER.decrementAndGet(this);
+        if (remaining > 0) return false;
+        if (remaining < 0) {
+            REF_COUNT_UPDATER.getAndIncrement(this);
+            throw new IllegalStateException("Packet has already been released");
+        }
+
+        originAddress = null;
+        streamId = 0;
+        owner.releaseNested(this);
+        reset();
+        owner.recycle(this);
+        return true;
+    }
+
+    /**
+     * Called before a pooled packet is returned to its pool. Subclasses holding state should clear it here, so that a
+     * borrowed packet never carries data from its previous use.
+     */
+    protected void reset() {
+        // Stateless packets do not need to override this.
+    }
+
+    /**
+     * Hands ownership of this packet to the given pool with a single outstanding reference.
+     *
+     * @param pool Owning pool.
+     */
+    void attach(@NotNull JServerPacketPool pool) {
+        this.pool = pool;
+        REF_COUNT_UPDATER.set(this, 1);
+    }
 }
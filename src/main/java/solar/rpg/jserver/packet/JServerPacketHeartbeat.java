@@ -1,10 +1,20 @@
 package solar.rpg.jserver.packet;
 
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
 /**
  * This empty packet should be sent periodically by clients to prevent a timeout with the server.
  *
  * @author jskinner
  * @since 1.0.0
  */
+@JServerPacketType(id = 1)
 public class JServerPacketHeartbeat extends JServerPacket {
+
+    @NotNull
+    @Override
+    public JServerPacketPriority getPriority() {
+        return JServerPacketPriority.CRITICAL;
+    }
 }
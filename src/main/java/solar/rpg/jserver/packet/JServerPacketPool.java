@@ -0,0 +1,241 @@
+package solar.rpg.jserver.packet;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.codec.JServerPacketCodec;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@code JServerPacketPool} keeps a bounded pool of reusable instances for each registered {@link JServerPacket}
+ * type, so that packets on the steady-state hot path do not have to be allocated. Pooled packets are reference counted;
+ * once their last reference is released with {@link JServerPacket#release()} they are reset and returned to the pool.
+ * A pooled packet owns the nested packets it holds, so these are released along with it.
+ * <p>
+ * Pooling is opt-in per packet type. Packets of unregistered types are never pooled, and calling
+ * {@link JServerPacket#retain()} or {@link JServerPacket#release()} on them has no effect.
+ * <p>
+ * When leak detection is enabled (by default, whenever assertions are enabled), the pool remembers where each
+ * outstanding packet was borrowed, so packets which are never released can be reported with {@link #reportLeaks}.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerPacketPool {
+
+    /**
+     * Number of idle instances kept per packet type if no capacity is given.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    @NotNull
+    private final Map<Class<? extends JServerPacket>, JServerPacketTypePool<?>> typePools;
+    @Nullable
+    private final Map<JServerPacket, Throwable> outstandingPackets;
+    @NotNull
+    private final JServerPacketCodecRegistry codecRegistry;
+
+    /**
+     * Constructs a {@code JServerPacketPool}.
+     *
+     * @param leakDetection True, if the borrow site of every outstanding packet should be tracked.
+     * @param codecRegistry Registry whose codecs release the nested packets of released packets.
+     */
+    public JServerPacketPool(boolean leakDetection, @NotNull JServerPacketCodecRegistry codecRegistry) {
+        this.codecRegistry = codecRegistry;
+        typePools = new ConcurrentHashMap<>();
+        outstandingPackets = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * Constructs a {@code JServerPacketPool} which uses the {@link JServerPacketCodecRegistry#getDefault() default}
+     * codec registry.
+     *
+     * @param leakDetection True, if the borrow site of every outstanding packet should be tracked.
+     */
+    public JServerPacketPool(boolean leakDetection) {
+        this(leakDetection, JServerPacketCodecRegistry.getDefault());
+    }
+
+    /**
+     * Constructs a {@code JServerPacketPool} which only detects leaks if assertions are enabled.
+     */
+    public JServerPacketPool() {
+        this(assertionsEnabled());
+    }
+
+    /**
+     * Registers a packet type with this pool.
+     *
+     * @param type     Packet type to pool.
+     * @param factory  Creates new instances of the packet type when the pool is empty.
+     * @param capacity Maximum number of idle instances to keep.
+     * @param <T>      Packet type.
+     * @throws IllegalArgumentException Capacity is not positive.
+     * @throws IllegalStateException    Packet type is already registered.
+     */
+    public <T extends JServerPacket> void register(@NotNull Class<T> type, @NotNull Supplier<T> factory, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        JServerPacketTypePool<T> typePool = new JServerPacketTypePool<>(factory, codecRegistry.getCodec(type), capacity);
+        if (typePools.putIfAbsent(type, typePool) != null)
+            throw new IllegalStateException("Packet type is already registered");
+    }
+
+    /**
+     * Registers a packet type with this pool using the {@link #DEFAULT_CAPACITY default capacity}.
+     *
+     * @param type    Packet type to pool.
+     * @param factory Creates new instances of the packet type when the pool is empty.
+     * @param <T>     Packet type.
+     */
+    public <T extends JServerPacket> void register(@NotNull Class<T> type, @NotNull Supplier<T> factory) {
+        register(type, factory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param type Packet type.
+     * @return True, if the given packet type is pooled.
+     */
+    public boolean isRegistered(@NotNull Class<? extends JServerPacket> type) {
+        return typePools.containsKey(type);
+    }
+
+    /**
+     * Borrows a packet of the given type. The caller owns a single reference to the packet, which it must always release
+     * itself. The {@code writePacket} methods encode the packet before returning and never take the caller's reference,
+     * so it may be released as soon as the last of them returns.
+     *
+     * @param type Packet type to borrow.
+     * @param <T>  Packet type.
+     * @return Pooled packet instance.
+     * @throws IllegalArgumentException Packet type is not registered.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public <T extends JServerPacket> T borrow(@NotNull Class<T> type) {
+        JServerPacketTypePool<T> typePool = (JServerPacketTypePool<T>) typePools.get(type);
+        if (typePool == null) throw new IllegalArgumentException("Packet type is not registered");
+
+        T packet = typePool.take();
+        packet.attach(this);
+        if (outstandingPackets != null) outstandingPackets.put(packet, new Throwable("Packet borrowed here"));
+        return packet;
+    }
+
+    /**
+     * Hands ownership of a packet created outside this pool (e.g. a packet which was just read from a socket) to this
+     * pool, if its type is registered. The caller owns a single reference to the packet.
+     *
+     * @param packet Packet to adopt.
+     * @return True, if the packet is now owned by this pool.
+     */
+    public boolean adopt(@NotNull JServerPacket packet) {
+        if (packet.isPooled() || !typePools.containsKey(packet.getClass())) return false;
+
+        packet.attach(this);
+        if (outstandingPackets != null) outstandingPackets.put(packet, new Throwable("Packet adopted here"));
+        return true;
+    }
+
+    /**
+     * @return Number of pooled packets which have been borrowed or adopted, but not yet released. This is only tracked
+     * if leak detection is enabled, otherwise it is always zero.
+     */
+    public int getOutstandingCount() {
+        return outstandingPackets == null ? 0 : outstandingPackets.size();
+    }
+
+    /**
+     * Logs every pooled packet which has been borrowed or adopted but not yet released, along with where it was
+     * borrowed. This does nothing if leak detection is disabled.
+     *
+     * @param logger Logger object.
+     * @return Number of leaked packets which were reported.
+     */
+    public int reportLeaks(@NotNull Logger logger) {
+        if (outstandingPackets == null) return 0;
+
+        synchronized (outstandingPackets) {
+            outstandingPackets.forEach((packet, borrowSite) -> logger.log(
+                    Level.WARNING,
+                    String.format("Pooled packet %s was never released", packet.getClass().getSimpleName()),
+                    borrowSite));
+            return outstandingPackets.size();
+        }
+    }
+
+    /**
+     * Releases the nested packets held by a packet whose last reference was just released.
+     *
+     * @param packet Packet with no remaining references.
+     */
+    @SuppressWarnings("unchecked")
+    void releaseNested(@NotNull JServerPacket packet) {
+        JServerPacketTypePool<JServerPacket> typePool =
+                (JServerPacketTypePool<JServerPacket>) typePools.get(packet.getClass());
+        assert typePool != null : "Expected pooled packet type to be registered";
+        if (typePool.codec != null) typePool.codec.releaseNested(packet);
+    }
+
+    /**
+     * Returns a released packet to the pool of its type.
+     *
+     * @param packet Packet with no remaining references.
+     */
+    @SuppressWarnings("unchecked")
+    void recycle(@NotNull JServerPacket packet) {
+        if (outstandingPackets != null) outstandingPackets.remove(packet);
+
+        JServerPacketTypePool<JServerPacket> typePool =
+                (JServerPacketTypePool<JServerPacket>) typePools.get(packet.getClass());
+        assert typePool != null : "Expected pooled packet type to be registered";
+        typePool.give(packet);
+    }
+
+    @SuppressWarnings({"AssertWithSideEffects", "ConstantConditions"})
+    private static boolean assertionsEnabled() {
+        boolean enabled = false;
+        assert enabled = true;
+        return enabled;
+    }
+
+    /**
+     * Bounded pool of idle instances of a single packet type.
+     *
+     * @param <T> Packet type.
+     */
+    private static final class JServerPacketTypePool<T extends JServerPacket> {
+
+        @NotNull
+        private final Supplier<T> factory;
+        @Nullable
+        private final JServerPacketCodec<T> codec;
+        @NotNull
+        private final ArrayBlockingQueue<T> idle;
+
+        JServerPacketTypePool(@NotNull Supplier<T> factory, @Nullable JServerPacketCodec<T> codec, int capacity) {
+            this.factory = factory;
+            this.codec = codec;
+            idle = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @NotNull
+        T take() {
+            T packet = idle.poll();
+            return packet != null ? packet : factory.get();
+        }
+
+        void give(@NotNull T packet) {
+            // If the pool is already full, the packet is simply left for the garbage collector.
+            idle.offer(packet);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package solar.rpg.jserver.packet;
+
+/**
+ * Denotes the priority class of a {@link JServerPacket}. Each connection keeps a separate send queue per priority
+ * class, and the queues are drained in weighted round-robin order so that control traffic is not held up behind bulk
+ * data. Large packets are split into fragments, so higher priority packets can be sent in between.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public enum JServerPacketPriority {
+
+    /**
+     * Heartbeats and latency-critical packets, such as input acknowledgements.
+     */
+    CRITICAL(16),
+
+    /**
+     * Regular packets.
+     */
+    NORMAL(4),
+
+    /**
+     * Large, latency-tolerant packets, such as chat history or inventory dumps.
+     */
+    BULK(1);
+
+    private final int weight;
+
+    JServerPacketPriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return Number of frames from this priority class which may be sent per round, when every class has packets
+     * waiting to be sent.
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,70 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacket;
+
+import java.io.IOException;
+
+/**
+ * A {@code JServerPacketCodec} encodes and decodes a single {@link JServerPacket} type without using reflection.
+ * Implementations are generated at compile time for every packet type annotated with {@link JServerPacketType}, and are
+ * discovered at runtime by {@link JServerPacketCodecRegistry}.
+ *
+ * @param <T> Packet type.
+ * @author jskinner
+ * @since 1.0.0
+ */
+public interface JServerPacketCodec<T extends JServerPacket> {
+
+    /**
+     * @return Stable id which identifies the packet type on the wire.
+     */
+    int getPacketId();
+
+    /**
+     * @return Packet type handled by this codec.
+     */
+    @NotNull
+    Class<T> getPacketType();
+
+    /**
+     * @return Fingerprint of the packet schema at the time this codec was generated.
+     */
+    long getFingerprint();
+
+    /**
+     * @return New, empty instance of the packet type.
+     */
+    @NotNull
+    T newInstance();
+
+    /**
+     * Writes every field of the given packet.
+     *
+     * @param packet Packet to encode.
+     * @param output Output to write to.
+     * @throws IOException Packet could not be encoded.
+     */
+    void encode(@NotNull T packet, @NotNull JServerPacketOutput output) throws IOException;
+
+    /**
+     * Reads every field of the given packet, overwriting its current state. Existing arrays and collections are reused
+     * where possible, so that decoding into a pooled packet allocates as little as possible.
+     *
+     * @param packet Packet to decode into.
+     * @param input  Input to read from.
+     * @throws IOException Packet could not be decoded.
+     */
+    void decode(@NotNull T packet, @NotNull JServerPacketInput input) throws IOException;
+
+    /**
+     * Releases every nested packet held by the given packet, including those inside arrays and collections, and clears
+     * the fields which held them. A packet owns its nested packets, so this is called by {@link #decode} before they
+     * are overwritten, and by the packet pool before a released packet is reset.
+     *
+     * @param packet Packet whose nested packets should be released.
+     */
+    default void releaseNested(@NotNull T packet) {
+        // Packets without nested packet fields do not need to override this.
+    }
+}
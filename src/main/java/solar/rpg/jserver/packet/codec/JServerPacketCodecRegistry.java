@@ -0,0 +1,127 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.JServerPacket;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@code JServerPacketCodecRegistry} maps packet types and their wire ids to {@link JServerPacketCodec} objects.
+ * Codecs generated for {@link JServerPacketType} packets are registered as services, so they are discovered by
+ * {@link #load(ClassLoader)} without any further configuration.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerPacketCodecRegistry {
+
+    @Nullable
+    private static volatile JServerPacketCodecRegistry defaultRegistry;
+
+    @NotNull
+    private final Map<Class<?>, JServerPacketCodec<?>> codecsByType;
+
+    /**
+     * Codecs indexed by packet id. Packet ids are small, so an array avoids boxing on the decode path.
+     */
+    @NotNull
+    private volatile JServerPacketCodec<?>[] codecsById;
+
+    /**
+     * Constructs an empty {@code JServerPacketCodecRegistry}.
+     */
+    public JServerPacketCodecRegistry() {
+        codecsByType = new ConcurrentHashMap<>();
+        codecsById = new JServerPacketCodec<?>[JServerPacketType.MIN_USER_ID];
+    }
+
+    /**
+     * Constructs a {@code JServerPacketCodecRegistry} containing every codec which is registered as a service with the
+     * given class loader.
+     *
+     * @param classLoader Class loader used to discover codecs.
+     * @return New registry.
+     * @throws IllegalStateException Two codecs share the same packet type or id.
+     */
+    @NotNull
+    public static JServerPacketCodecRegistry load(@NotNull ClassLoader classLoader) {
+        JServerPacketCodecRegistry registry = new JServerPacketCodecRegistry();
+        for (JServerPacketCodec<?> codec : ServiceLoader.load(JServerPacketCodec.class, classLoader))
+            registry.register(codec);
+        return registry;
+    }
+
+    /**
+     * @return Shared registry containing every codec discovered by the class loader which loaded JServer.
+     */
+    @NotNull
+    public static JServerPacketCodecRegistry getDefault() {
+        JServerPacketCodecRegistry registry = defaultRegistry;
+        if (registry == null) {
+            synchronized (JServerPacketCodecRegistry.class) {
+                registry = defaultRegistry;
+                if (registry == null) {
+                    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                    if (classLoader == null) classLoader = JServerPacketCodecRegistry.class.getClassLoader();
+                    registry = defaultRegistry = load(classLoader);
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Registers a codec.
+     *
+     * @param codec Codec to register.
+     * @throws IllegalArgumentException Packet id is out of range.
+     * @throws IllegalStateException    Another codec is already registered for the same packet type or id.
+     */
+    public synchronized void register(@NotNull JServerPacketCodec<?> codec) {
+        int packetId = codec.getPacketId();
+        if (packetId <= 0 || packetId > JServerPacketType.MAX_ID)
+            throw new IllegalArgumentException(String.format("Packet id %d is out of range", packetId));
+
+        JServerPacketCodec<?>[] current = codecsById;
+        if (packetId < current.length && current[packetId] != null)
+            throw new IllegalStateException(String.format(
+                    "Packet id %d is used by both %s and %s",
+                    packetId,
+                    current[packetId].getPacketType().getName(),
+                    codec.getPacketType().getName()));
+        if (codecsByType.containsKey(codec.getPacketType()))
+            throw new IllegalStateException(String.format(
+                    "Packet type %s already has a codec",
+                    codec.getPacketType().getName()));
+
+        JServerPacketCodec<?>[] updated = Arrays.copyOf(current, Math.max(current.length, packetId + 1));
+        updated[packetId] = codec;
+        codecsByType.put(codec.getPacketType(), codec);
+        codecsById = updated;
+    }
+
+    /**
+     * @param packetType Packet type.
+     * @param <T>        Packet type.
+     * @return Codec for the given packet type, or null if it has no codec.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T extends JServerPacket> JServerPacketCodec<T> getCodec(@NotNull Class<T> packetType) {
+        return (JServerPacketCodec<T>) codecsByType.get(packetType);
+    }
+
+    /**
+     * @param packetId Packet id.
+     * @return Codec for the given packet id, or null if no codec uses it.
+     */
+    @Nullable
+    public JServerPacketCodec<?> getCodec(int packetId) {
+        JServerPacketCodec<?>[] current = codecsById;
+        return packetId > 0 && packetId < current.length ? current[packetId] : null;
+    }
+}
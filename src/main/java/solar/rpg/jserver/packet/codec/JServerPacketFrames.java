@@ -0,0 +1,249 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Packets are sent over a {@code Socket} as frames. Each frame is a variable-length body length followed by the body.
+ * The body starts with a header byte holding the {@link #getKind(int) frame kind} and the
+ * {@link #getPriority(int) priority class} of the packet. If the header has the {@link #STREAM_FLAG} set, it is
+ * followed by the variable-length id of the logical stream the frame belongs to; otherwise the frame belongs to the
+ * default stream. The rest of the body is the packet payload.
+ * <p>
+ * A payload starts with the variable-length id of the packet type, followed by the packet encoded by its
+ * {@link JServerPacketCodec}. Packet types without a codec are sent with id {@link #SERIALIZED_PACKET_ID}, followed by
+ * the packet written using Java serialization. Payloads larger than {@link #MAX_FRAGMENT_LENGTH} are split across
+ * several fragment frames of the same priority class, which may be interleaved with frames of other priority classes or
+ * streams.
+ * <p>
+ * {@link #KIND_CONTROL Control frames} manage streams rather than carry packets. Their payload is a control type,
+ * followed by a variable-length window increment for {@link #CONTROL_WINDOW_UPDATE} frames.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerPacketFrames {
+
+    /**
+     * Packet id of frames containing a packet written using Java serialization.
+     */
+    public static final int SERIALIZED_PACKET_ID = 0;
+
+    private static final JServerPacketPriority[] PRIORITIES = JServerPacketPriority.values();
+
+    /**
+     * Largest frame body which will be accepted, so that a corrupt or malicious length cannot exhaust memory.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Largest payload which is sent in a single frame. Larger payloads are fragmented.
+     */
+    public static final int MAX_FRAGMENT_LENGTH = 16 * 1024;
+
+    /**
+     * Frame kind of a frame containing a complete payload.
+     */
+    public static final int KIND_COMPLETE = 0;
+
+    /**
+     * Frame kind of a fragment which is followed by more fragments of the same payload.
+     */
+    public static final int KIND_FRAGMENT = 1;
+
+    /**
+     * Frame kind of the final fragment of a payload.
+     */
+    public static final int KIND_LAST_FRAGMENT = 2;
+
+    /**
+     * Frame kind of a control frame, which always belongs to a stream other than the default stream.
+     */
+    public static final int KIND_CONTROL = 3;
+
+    /**
+     * Header flag which is set if the header is followed by a stream id.
+     */
+    public static final int STREAM_FLAG = 0x10;
+
+    /**
+     * Id of the default stream, which every packet not written to a specific stream belongs to. The default stream is
+     * never flow controlled.
+     */
+    public static final int DEFAULT_STREAM_ID = 0;
+
+    /**
+     * Number of payload bytes which may be sent on a stream before the receiving side grants more.
+     */
+    public static final int INITIAL_STREAM_WINDOW = 256 * 1024;
+
+    /**
+     * Control type granting the other party more payload bytes on a stream.
+     */
+    public static final int CONTROL_WINDOW_UPDATE = 0;
+
+    /**
+     * Control type closing a stream.
+     */
+    public static final int CONTROL_CLOSE_STREAM = 1;
+
+    private JServerPacketFrames() {
+    }
+
+    /**
+     * @param kind     Frame kind.
+     * @param priority Priority class of the packet in the frame.
+     * @param streamId Id of the stream the frame belongs to.
+     * @return Frame header byte.
+     */
+    public static int header(int kind, @NotNull JServerPacketPriority priority, int streamId) {
+        return kind | (priority.ordinal() << 2) | (streamId != DEFAULT_STREAM_ID ? STREAM_FLAG : 0);
+    }
+
+    /**
+     * @param streamId Id of the stream a frame belongs to.
+     * @return Number of bytes taken by the header and stream id of the frame.
+     */
+    public static int headerLength(int streamId) {
+        if (streamId == DEFAULT_STREAM_ID) return 1;
+
+        int length = 2;
+        for (int value = streamId >>> 7; value != 0; value >>>= 7)
+            length++;
+        return length;
+    }
+
+    /**
+     * Writes the header byte and stream id of a frame.
+     *
+     * @param buffer   Buffer to write to, which must have {@link #headerLength(int)} bytes available.
+     * @param offset   Offset to write the header at.
+     * @param kind     Frame kind.
+     * @param priority Priority class of the packet in the frame.
+     * @param streamId Id of the stream the frame belongs to.
+     */
+    public static void writeHeader(
+            @NotNull byte[] buffer,
+            int offset,
+            int kind,
+            @NotNull JServerPacketPriority priority,
+            int streamId) {
+        buffer[offset++] = (byte) header(kind, priority, streamId);
+        if (streamId == DEFAULT_STREAM_ID) return;
+
+        int value = streamId;
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset] = (byte) value;
+    }
+
+    /**
+     * @param header Frame header byte.
+     * @return True, if the header is followed by a stream id.
+     */
+    public static boolean hasStreamId(int header) {
+        return (header & STREAM_FLAG) != 0;
+    }
+
+    /**
+     * Reads the id of the stream a frame belongs to from its body.
+     *
+     * @param body   Buffer containing the frame body.
+     * @param offset Offset of the frame body in the buffer.
+     * @param length Length of the frame body.
+     * @return Id of the stream the frame belongs to.
+     * @throws StreamCorruptedException Frame is empty, or its stream id is malformed.
+     */
+    public static int readStreamId(@NotNull byte[] body, int offset, int length) throws StreamCorruptedException {
+        if (length == 0) throw new StreamCorruptedException("Empty frame");
+        if (!hasStreamId(body[offset] & 0xFF)) return DEFAULT_STREAM_ID;
+
+        int streamId = 0;
+        for (int i = 1, shift = 0; i < length && shift < 35; i++, shift += 7) {
+            int b = body[offset + i];
+            streamId |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (streamId <= 0) throw new StreamCorruptedException(String.format("Invalid stream id %d", streamId));
+                return streamId;
+            }
+        }
+        throw new StreamCorruptedException("Malformed stream id");
+    }
+
+    /**
+     * @param header Frame header byte.
+     * @return Frame kind.
+     */
+    public static int getKind(int header) {
+        return header & 0x03;
+    }
+
+    /**
+     * @param header Frame header byte.
+     * @return Priority class of the packet in the frame.
+     * @throws StreamCorruptedException Header does not contain a valid priority class.
+     */
+    @NotNull
+    public static JServerPacketPriority getPriority(int header) throws StreamCorruptedException {
+        int ordinal = (header >> 2) & 0x03;
+        if (ordinal >= PRIORITIES.length)
+            throw new StreamCorruptedException(String.format("Invalid frame priority %d", ordinal));
+        return PRIORITIES[ordinal];
+    }
+
+    /**
+     * Writes a frame to the given stream. The stream is not flushed.
+     *
+     * @param outputStream Stream to write to.
+     * @param body         Buffer containing the frame body.
+     * @param offset       Offset of the frame body in the buffer.
+     * @param length       Length of the frame body.
+     * @throws IOException I/O error while writing the frame.
+     */
+    public static void writeFrame(
+            @NotNull OutputStream outputStream,
+            @NotNull byte[] body,
+            int offset,
+            int length) throws IOException {
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+        outputStream.write(body, offset, length);
+    }
+
+    /**
+     * Reads the length of the next frame from the given stream. The frame body should be read immediately afterwards.
+     *
+     * @param inputStream Stream to read from.
+     * @return Length of the frame body.
+     * @throws EOFException             Stream ended before the next frame.
+     * @throws StreamCorruptedException Length is malformed or exceeds {@link #MAX_FRAME_LENGTH}.
+     * @throws IOException              I/O error while reading the length.
+     */
+    public static int readFrameLength(@NotNull InputStream inputStream) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = inputStream.read();
+            if (b < 0) throw new EOFException();
+
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length < 0 || length > MAX_FRAME_LENGTH)
+                    throw new StreamCorruptedException(String.format("Invalid frame length %d", length));
+                return length;
+            }
+        }
+        throw new StreamCorruptedException("Malformed frame length");
+    }
+}
@@ -0,0 +1,332 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * A {@code JServerPacketInput} reads values written by a {@link JServerPacketOutput} from a region of a byte array.
+ * It is reused for every frame received on a connection, so decoding does not allocate any intermediate objects.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerPacketInput {
+
+    /**
+     * Largest number of packets which may be nested inside each other, so that a malicious payload cannot exhaust the
+     * stack of the decoding thread.
+     */
+    public static final int MAX_NESTING_DEPTH = 32;
+
+    @NotNull
+    private final JServerPacketCodecRegistry registry;
+    @Nullable
+    private JServerPacketPool packetPool;
+    @Nullable
+    private JServerStringDictionary stringDictionary;
+    @NotNull
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private int nestingDepth;
+    @NotNull
+    private char[] chars;
+
+    /**
+     * Constructs an empty {@code JServerPacketInput}.
+     *
+     * @param registry Registry used to look up codecs of nested packets.
+     */
+    public JServerPacketInput(@NotNull JServerPacketCodecRegistry registry) {
+        this.registry = registry;
+        buffer = new byte[0];
+        chars = new char[64];
+        position = 0;
+        limit = 0;
+        nestingDepth = 0;
+    }
+
+    @NotNull
+    public JServerPacketCodecRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets the pool which nested packets of pooled types are borrowed from.
+     *
+     * @param packetPool Packet pool, or null to always create new nested packets.
+     */
+    public void setPacketPool(@Nullable JServerPacketPool packetPool) {
+        this.packetPool = packetPool;
+    }
+
+    @Nullable
+    public JServerPacketPool getPacketPool() {
+        return packetPool;
+    }
+
+    /**
+     * Sets the dictionary which string references are resolved against. It must have the same capacity as the
+     * dictionary used by the writing side.
+     *
+     * @param stringDictionary String dictionary, or null if strings are always written in full.
+     */
+    public void setStringDictionary(@Nullable JServerStringDictionary stringDictionary) {
+        this.stringDictionary = stringDictionary;
+    }
+
+    @Nullable
+    public JServerStringDictionary getStringDictionary() {
+        return stringDictionary;
+    }
+
+    /**
+     * Starts reading from the given region of a byte array.
+     *
+     * @param buffer Buffer to read from.
+     * @param offset Offset of the first byte to read.
+     * @param length Number of bytes which may be read.
+     */
+    public void setBuffer(@NotNull byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        position = offset;
+        limit = offset + length;
+        nestingDepth = 0;
+    }
+
+    /**
+     * @return Number of bytes which have not been read yet.
+     */
+    public int remaining() {
+        return limit - position;
+    }
+
+    /**
+     * @return Stream view of the remaining bytes, for readers which only accept an {@code InputStream}.
+     */
+    @NotNull
+    public InputStream asInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return position < limit ? buffer[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(@NotNull byte[] bytes, int offset, int length) {
+                if (position >= limit) return -1;
+
+                int count = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return buffer[position++];
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        return (short) (((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF));
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return ((buffer[position++] & 0xFF) << 24)
+               | ((buffer[position++] & 0xFF) << 16)
+               | ((buffer[position++] & 0xFF) << 8)
+               | (buffer[position++] & 0xFF);
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed variable-length integer");
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed variable-length long");
+    }
+
+    public int readSignedVarInt() throws IOException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a length prefix written for a nullable array or collection.
+     *
+     * @return Number of elements, or -1 if the value was null.
+     * @throws IOException Length is malformed or larger than the rest of the frame.
+     */
+    public int readLength() throws IOException {
+        int length = readVarInt() - 1;
+        // Every element takes at least one byte, so anything longer than the frame is malformed.
+        if (length < -1 || length > remaining())
+            throw new StreamCorruptedException(String.format("Invalid length %d", length));
+        return length;
+    }
+
+    /**
+     * Reads a nullable string. Strings which refer to an entry of the string dictionary are returned without copying.
+     *
+     * @return String, or null if the value was null.
+     * @throws StreamCorruptedException Length is malformed, or a dictionary reference is not in use.
+     * @throws IOException              String extends past the end of the frame.
+     */
+    @Nullable
+    public String readString() throws IOException {
+        JServerStringDictionary dictionary = stringDictionary;
+        if (dictionary == null) {
+            int length = readLength();
+            return length >= 0 ? readChars(length) : null;
+        }
+
+        int tag = readVarInt();
+        if (tag == 0) return null;
+        if ((tag & 1) != 0) {
+            String value = dictionary.get(tag >>> 1);
+            if (value == null)
+                throw new StreamCorruptedException(String.format("Unknown string reference %d", tag >>> 1));
+            return value;
+        }
+
+        int length = (tag >>> 1) - 1;
+        if (length < 0 || length > remaining())
+            throw new StreamCorruptedException(String.format("Invalid length %d", length));
+        String value = readChars(length);
+        dictionary.add(value);
+        return value;
+    }
+
+    @NotNull
+    private String readChars(int length) throws IOException {
+        if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+        for (int i = 0; i < length; i++) {
+            int b = readByte() & 0xFF;
+            if (b < 0x80) {
+                chars[i] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[i] = (char) (((b & 0x1F) << 6) | (readByte() & 0x3F));
+            } else {
+                chars[i] = (char) (((b & 0x0F) << 12) | ((readByte() & 0x3F) << 6) | (readByte() & 0x3F));
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    public void readBytes(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        require(length);
+        System.arraycopy(buffer, position, bytes, offset, length);
+        position += length;
+    }
+
+    /**
+     * Reads a nullable nested packet written by {@link JServerPacketOutput#writePacket(JServerPacket)}. Nested
+     * packets of pooled types are borrowed from the packet pool and are owned by the packet which holds them, so they
+     * are released along with it.
+     *
+     * @param packetType Expected packet type.
+     * @param <T>        Expected packet type.
+     * @return Packet, or null if the value was null.
+     * @throws StreamCorruptedException Packet id is unknown or does not match the expected type, or packets are nested
+     *                                  more than {@link #MAX_NESTING_DEPTH} deep.
+     * @throws IOException              Packet could not be decoded.
+     */
+    @Nullable
+    public <T extends JServerPacket> T readPacket(@NotNull Class<T> packetType) throws IOException {
+        int packetId = readVarInt();
+        if (packetId == 0) return null;
+
+        JServerPacketCodec<?> codec = registry.getCodec(packetId);
+        if (codec == null) throw new StreamCorruptedException(String.format("Unknown packet id %d", packetId));
+        if (!packetType.isAssignableFrom(codec.getPacketType()))
+            throw new StreamCorruptedException(String.format(
+                    "Expected %s but received %s",
+                    packetType.getSimpleName(),
+                    codec.getPacketType().getSimpleName()));
+
+        if (nestingDepth >= MAX_NESTING_DEPTH)
+            throw new StreamCorruptedException(
+                    String.format("Packets are nested more than %d deep", MAX_NESTING_DEPTH));
+
+        nestingDepth++;
+        try {
+            return packetType.cast(decode(codec));
+        } finally {
+            nestingDepth--;
+        }
+    }
+
+    /**
+     * Decodes a packet using the given codec, borrowing the instance from the packet pool if its type is pooled.
+     *
+     * @param codec Codec of the packet type.
+     * @param <T>   Packet type.
+     * @return Decoded packet.
+     * @throws IOException Packet could not be decoded.
+     */
+    @NotNull
+    public <T extends JServerPacket> T decode(@NotNull JServerPacketCodec<T> codec) throws IOException {
+        JServerPacketPool pool = packetPool;
+        T packet = pool != null && pool.isRegistered(codec.getPacketType())
+                   ? pool.borrow(codec.getPacketType())
+                   : codec.newInstance();
+        try {
+            codec.decode(packet, this);
+        } catch (IOException | RuntimeException e) {
+            packet.release();
+            throw e;
+        }
+        return packet;
+    }
+
+    private void require(int length) throws IOException {
+        if (limit - position < length) throw new StreamCorruptedException("Unexpected end of packet");
+    }
+}
@@ -0,0 +1,287 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.JServerPacket;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A {@code JServerPacketOutput} is a reusable, growable buffer which packet codecs write to. Integers are written as
+ * variable-length quantities, and strings are written as their UTF-16 length followed by their characters in a
+ * UTF-8 style encoding, so that no intermediate arrays are allocated. If a {@link JServerStringDictionary} is set,
+ * strings which were written before are replaced by a reference to the earlier copy.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerPacketOutput {
+
+    @NotNull
+    private final JServerPacketCodecRegistry registry;
+    @Nullable
+    private JServerStringDictionary stringDictionary;
+    @NotNull
+    private byte[] buffer;
+    private int position;
+
+    /**
+     * Constructs a {@code JServerPacketOutput}.
+     *
+     * @param registry        Registry used to look up codecs of nested packets.
+     * @param initialCapacity Initial buffer capacity in bytes.
+     */
+    public JServerPacketOutput(@NotNull JServerPacketCodecRegistry registry, int initialCapacity) {
+        this.registry = registry;
+        buffer = new byte[initialCapacity];
+        position = 0;
+    }
+
+    /**
+     * Constructs a {@code JServerPacketOutput} with a 1 KiB initial capacity.
+     *
+     * @param registry Registry used to look up codecs of nested packets.
+     */
+    public JServerPacketOutput(@NotNull JServerPacketCodecRegistry registry) {
+        this(registry, 1024);
+    }
+
+    @NotNull
+    public JServerPacketCodecRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets the dictionary used to write repeated strings as references. The reading side must use a dictionary of the
+     * same capacity, and read the strings in the same order they were written.
+     *
+     * @param stringDictionary String dictionary, or null to always write strings in full.
+     */
+    public void setStringDictionary(@Nullable JServerStringDictionary stringDictionary) {
+        this.stringDictionary = stringDictionary;
+    }
+
+    @Nullable
+    public JServerStringDictionary getStringDictionary() {
+        return stringDictionary;
+    }
+
+    /**
+     * Discards everything written so far, keeping the underlying buffer.
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * @return Number of bytes written since the last reset.
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * @return Underlying buffer. Only the first {@link #size()} bytes are valid.
+     */
+    @NotNull
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Copy of the bytes written since the last reset.
+     */
+    @NotNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * @return Stream view of this output, for writers which only accept an {@code OutputStream}.
+     */
+    @NotNull
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(@NotNull byte[] bytes, int offset, int length) {
+                writeBytes(bytes, offset, length);
+            }
+        };
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeShort(int value) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeChar(char value) {
+        writeShort(value);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeFloat(float value) {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes an unsigned variable-length integer, using one byte for values below 128.
+     *
+     * @param value Value to write, treated as unsigned.
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes an unsigned variable-length long.
+     *
+     * @param value Value to write, treated as unsigned.
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a signed variable-length integer using zig-zag encoding, so small negative values stay small.
+     *
+     * @param value Value to write.
+     */
+    public void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a signed variable-length long using zig-zag encoding.
+     *
+     * @param value Value to write.
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a nullable string. If a string dictionary is set, the length is shifted left to make room for a flag which
+     * is set when a dictionary reference is written instead.
+     *
+     * @param value String to write.
+     */
+    public void writeString(@Nullable String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        JServerStringDictionary dictionary = stringDictionary;
+        if (dictionary == null) {
+            writeVarInt(value.length() + 1);
+            writeChars(value);
+            return;
+        }
+
+        int index = dictionary.indexOf(value);
+        if (index >= 0) {
+            writeVarInt((index << 1) | 1);
+            return;
+        }
+
+        writeVarInt((value.length() + 1) << 1);
+        writeChars(value);
+        dictionary.add(value);
+    }
+
+    private void writeChars(@NotNull String value) {
+        int length = value.length();
+        ensureCapacity(length * 3);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    public void writeBytes(@NotNull byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Writes a nullable nested packet, prefixed with its packet id.
+     *
+     * @param packet Packet to write.
+     * @throws NotSerializableException Packet type has no codec.
+     * @throws IOException              Packet could not be encoded.
+     */
+    @SuppressWarnings("unchecked")
+    public void writePacket(@Nullable JServerPacket packet) throws IOException {
+        if (packet == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        JServerPacketCodec<JServerPacket> codec =
+                (JServerPacketCodec<JServerPacket>) registry.getCodec(packet.getClass());
+        if (codec == null) throw new NotSerializableException(packet.getClass().getName());
+
+        writeVarInt(codec.getPacketId());
+        codec.encode(packet, this);
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = position + additional;
+        if (required > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+    }
+}
@@ -0,0 +1,49 @@
+package solar.rpg.jserver.packet.codec;
+
+import solar.rpg.jserver.packet.JServerPacket;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link JServerPacket} subclass so that a reflection-free {@link JServerPacketCodec} is generated for it at
+ * compile time. Every non-static, non-transient field of the packet (including those inherited from superclasses below
+ * {@code JServerPacket}) is encoded in declaration order. Fields must not be {@code private} or {@code final}.
+ * <p>
+ * Supported field types are primitives and their wrappers, {@code String}, enums, arrays and {@code Collection} types
+ * of supported types, and nested packets which also have a generated codec.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JServerPacketType {
+
+    /**
+     * Lowest packet id which may be used outside of JServer itself.
+     */
+    int MIN_USER_ID = 16;
+
+    /**
+     * Highest packet id which may be used.
+     */
+    int MAX_ID = 32767;
+
+    /**
+     * @return Stable id which identifies this packet type on the wire. It must be unique and should never change once
+     * the packet type is in use. Ids below {@link #MIN_USER_ID} are reserved for JServer's own packets.
+     */
+    int id();
+
+    /**
+     * @return Expected schema fingerprint of this packet type. If this is set, compilation fails whenever the fields of
+     * the packet change, so that incompatible schema changes cannot be made by accident. The compiler error reports the
+     * new fingerprint. Zero disables the check.
+     */
+    long fingerprint() default 0L;
+}
@@ -0,0 +1,162 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@code JServerStringDictionary} remembers strings which have already been sent or received on a connection, so
+ * that {@link JServerPacketOutput#writeString(String)} can send repeated strings as a short reference to an earlier
+ * one instead of in full. The sending and receiving side each keep a dictionary, and both add the same strings in the
+ * same order, so they always agree on which string each index refers to without any extra messages.
+ * <p>
+ * The dictionary holds a fixed number of entries. Once it is full, each new string replaces the oldest entry. Strings
+ * longer than {@link #MAX_STRING_LENGTH} or shorter than {@link #MIN_STRING_LENGTH} are never added.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerStringDictionary {
+
+    /**
+     * Suggested number of entries when dictionary encoding is enabled.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Shortest string which is added to the dictionary. Shorter strings are no larger than a reference.
+     */
+    public static final int MIN_STRING_LENGTH = 2;
+
+    /**
+     * Longest string which is added to the dictionary, so that one-off text does not evict identifiers.
+     */
+    public static final int MAX_STRING_LENGTH = 256;
+
+    @NotNull
+    private final String[] entries;
+    @NotNull
+    private final Map<String, Integer> indices;
+    private int nextIndex;
+
+    // --- Additions since the last mark, so they can be undone //
+    private boolean marked;
+    @NotNull
+    private final List<Integer> addedIndices;
+    @NotNull
+    private final List<String> evictedEntries;
+
+    /**
+     * Constructs an empty {@code JServerStringDictionary}.
+     *
+     * @param capacity Maximum number of entries.
+     * @throws IllegalArgumentException Capacity is not positive.
+     */
+    public JServerStringDictionary(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+
+        entries = new String[capacity];
+        indices = new HashMap<>();
+        nextIndex = 0;
+        marked = false;
+        addedIndices = new ArrayList<>();
+        evictedEntries = new ArrayList<>();
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * @return Number of entries in use.
+     */
+    public int size() {
+        return indices.size();
+    }
+
+    /**
+     * @param value String to look up.
+     * @return Index of the string, or -1 if it is not in the dictionary.
+     */
+    public int indexOf(@NotNull String value) {
+        Integer index = indices.get(value);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @param index Index of an entry.
+     * @return String at the given index, or null if the index is not in use.
+     */
+    @Nullable
+    public String get(int index) {
+        return index >= 0 && index < entries.length ? entries[index] : null;
+    }
+
+    /**
+     * Adds a string which was just sent or received in full, replacing the oldest entry if the dictionary is full.
+     * Strings which are already in the dictionary, or whose length is out of range, are ignored.
+     *
+     * @param value String to add.
+     */
+    public void add(@NotNull String value) {
+        if (value.length() < MIN_STRING_LENGTH || value.length() > MAX_STRING_LENGTH) return;
+        if (indices.putIfAbsent(value, nextIndex) != null) return;
+
+        String evicted = entries[nextIndex];
+        if (evicted != null) indices.remove(evicted);
+        if (marked) {
+            addedIndices.add(nextIndex);
+            evictedEntries.add(evicted);
+        }
+        entries[nextIndex] = value;
+        nextIndex = (nextIndex + 1) % entries.length;
+    }
+
+    /**
+     * Starts remembering the strings added from now on, so that they can be undone using {@link #rollback()} if the
+     * payload they were written to is never sent. Any earlier mark is forgotten.
+     */
+    public void mark() {
+        marked = true;
+        addedIndices.clear();
+        evictedEntries.clear();
+    }
+
+    /**
+     * Undoes every string added since the last call to {@link #mark()}, restoring the entries they replaced.
+     *
+     * @throws IllegalStateException Dictionary is not marked.
+     */
+    public void rollback() {
+        if (!marked) throw new IllegalStateException("Dictionary is not marked");
+
+        for (int i = addedIndices.size() - 1; i >= 0; i--) {
+            int index = addedIndices.get(i);
+            String evicted = evictedEntries.get(i);
+            indices.remove(entries[index]);
+            entries[index] = evicted;
+            if (evicted != null) indices.put(evicted, index);
+            nextIndex = index;
+        }
+        marked = false;
+        addedIndices.clear();
+        evictedEntries.clear();
+    }
+
+    /**
+     * Removes every entry, returning the dictionary to its initial state.
+     */
+    public void clear() {
+        Arrays.fill(entries, null);
+        indices.clear();
+        nextIndex = 0;
+        marked = false;
+        addedIndices.clear();
+        evictedEntries.clear();
+    }
+}
@@ -0,0 +1,654 @@
+package solar.rpg.jserver.packet.codec.processor;
+
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@code JServerPacketCodec} for every packet type annotated with {@link JServerPacketType}, and registers
+ * the generated codecs as services so that {@code JServerPacketCodecRegistry} can discover them at runtime.
+ * <p>
+ * Packet ids are checked for uniqueness, and packet schemas are checked against their expected fingerprints, so that
+ * incompatible packet changes are caught at build time rather than on the wire.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+@SupportedAnnotationTypes(JServerPacketCodecProcessor.PACKET_TYPE_ANNOTATION)
+public final class JServerPacketCodecProcessor extends AbstractProcessor {
+
+    static final String PACKET_TYPE_ANNOTATION = "solar.rpg.jserver.packet.codec.JServerPacketType";
+    private static final String PACKET_CLASS = "solar.rpg.jserver.packet.JServerPacket";
+    private static final String CODEC_INTERFACE = "solar.rpg.jserver.packet.codec.JServerPacketCodec";
+    private static final String CODEC_PACKAGE = "solar.rpg.jserver.packet.codec";
+    private static final String RESERVED_PACKAGE = "solar.rpg.jserver";
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+    private Filer filer;
+    private TypeMirror packetType;
+    private TypeMirror collectionType;
+
+    /**
+     * Packet ids which have been assigned in this compilation, mapped to the packet which uses them.
+     */
+    private final Map<Integer, String> assignedIds = new HashMap<>();
+
+    /**
+     * Qualified names of every codec generated in this compilation.
+     */
+    private final List<String> generatedCodecs = new ArrayList<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        messager = processingEnv.getMessager();
+        filer = processingEnv.getFiler();
+        packetType = elements.getTypeElement(PACKET_CLASS).asType();
+        collectionType = types.erasure(elements.getTypeElement("java.util.Collection").asType());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(JServerPacketType.class))
+            processPacket((TypeElement) element);
+
+        if (roundEnv.processingOver() && !generatedCodecs.isEmpty()) writeServiceFile();
+        return true;
+    }
+
+    private void processPacket(TypeElement packet) {
+        JServerPacketType annotation = packet.getAnnotation(JServerPacketType.class);
+        String packageName = elements.getPackageOf(packet).getQualifiedName().toString();
+
+        if (!validatePacketClass(packet)) return;
+
+        int id = annotation.id();
+        if (id <= 0 || id > JServerPacketType.MAX_ID) {
+            error(packet, "Packet id %d must be between 1 and %d", id, JServerPacketType.MAX_ID);
+            return;
+        }
+        if (id < JServerPacketType.MIN_USER_ID && !isReservedPackage(packageName)) {
+            error(packet, "Packet ids below %d are reserved", JServerPacketType.MIN_USER_ID);
+            return;
+        }
+        String previous = assignedIds.putIfAbsent(id, packet.getQualifiedName().toString());
+        if (previous != null) {
+            error(packet, "Packet id %d is already used by %s", id, previous);
+            return;
+        }
+
+        List<VariableElement> fields = collectFields(packet, packageName);
+        if (fields == null) return;
+
+        long fingerprint = fingerprint(fields);
+        if (annotation.fingerprint() != 0L && annotation.fingerprint() != fingerprint) {
+            error(packet,
+                  "Schema of %s has changed (fingerprint 0x%XL, expected 0x%XL). Assign a new packet id if the "
+                  + "change is incompatible, otherwise update the expected fingerprint",
+                  packet.getSimpleName(), fingerprint, annotation.fingerprint());
+            return;
+        }
+
+        new CodecWriter(packet, packageName, id, fingerprint, fields).write();
+    }
+
+    private boolean isReservedPackage(String packageName) {
+        return packageName.equals(RESERVED_PACKAGE) || packageName.startsWith(RESERVED_PACKAGE + ".");
+    }
+
+    private boolean validatePacketClass(TypeElement packet) {
+        if (packet.getKind() != ElementKind.CLASS || packet.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(packet, "@JServerPacketType can only be used on concrete classes");
+            return false;
+        }
+        if (!types.isSubtype(packet.asType(), packetType)) {
+            error(packet, "@JServerPacketType can only be used on subclasses of JServerPacket");
+            return false;
+        }
+        if (packet.getNestingKind() == NestingKind.LOCAL || packet.getNestingKind() == NestingKind.ANONYMOUS
+            || (packet.getNestingKind() == NestingKind.MEMBER && !packet.getModifiers().contains(Modifier.STATIC))) {
+            error(packet, "Packet classes must be top-level or static nested classes");
+            return false;
+        }
+        if (packet.getModifiers().contains(Modifier.PRIVATE)) {
+            error(packet, "Packet classes must not be private");
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(packet.getEnclosedElements()))
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+                return true;
+
+        error(packet, "Packet classes must have a non-private constructor without parameters");
+        return false;
+    }
+
+    /**
+     * Collects the fields of a packet which should be encoded, starting with those of its highest superclass.
+     *
+     * @return Fields to encode, or null if any field cannot be encoded.
+     */
+    private List<VariableElement> collectFields(TypeElement packet, String packageName) {
+        List<VariableElement> fields = new ArrayList<>();
+        boolean valid = true;
+        for (TypeElement declaringType : hierarchy(packet)) {
+            String declaringPackage = elements.getPackageOf(declaringType).getQualifiedName().toString();
+            for (VariableElement field : ElementFilter.fieldsIn(declaringType.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                    error(field, "Packet fields must not be private or final");
+                    valid = false;
+                } else if (!declaringPackage.equals(packageName) && !modifiers.contains(Modifier.PUBLIC)) {
+                    error(field, "Inherited packet fields from other packages must be public");
+                    valid = false;
+                } else if (!isSupported(field.asType())) {
+                    error(field, "Unsupported packet field type %s", field.asType());
+                    valid = false;
+                } else {
+                    fields.add(field);
+                }
+            }
+        }
+        return valid ? fields : null;
+    }
+
+    /**
+     * @return Classes from the highest superclass below {@code JServerPacket} down to the given packet class.
+     */
+    private List<TypeElement> hierarchy(TypeElement packet) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement current = packet;
+             current != null && !current.getQualifiedName().contentEquals(PACKET_CLASS);
+             current = (TypeElement) types.asElement(current.getSuperclass()))
+            hierarchy.add(current);
+        Collections.reverse(hierarchy);
+        return hierarchy;
+    }
+
+    private boolean isSupported(TypeMirror type) {
+        if (type.getKind().isPrimitive()) return true;
+        if (type.getKind() == TypeKind.ARRAY) {
+            TypeMirror component = ((ArrayType) type).getComponentType();
+            return !isGeneric(component) && isSupported(component);
+        }
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        if (isBoxed(type) || isString(type) || isEnum(type) || isPacket(type)) return true;
+        if (isCollection(type)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+            return arguments.size() == 1
+                   && arguments.get(0).getKind() != TypeKind.WILDCARD
+                   && collectionImplementation(type) != null
+                   && isSupported(arguments.get(0));
+        }
+        return false;
+    }
+
+    private boolean isGeneric(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+    }
+
+    private boolean isBoxed(TypeMirror type) {
+        try {
+            types.unboxedType(type);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private boolean isString(TypeMirror type) {
+        return types.isSameType(type, elements.getTypeElement("java.lang.String").asType());
+    }
+
+    private boolean isEnum(TypeMirror type) {
+        return types.asElement(type).getKind() == ElementKind.ENUM;
+    }
+
+    private boolean isPacket(TypeMirror type) {
+        return types.isSubtype(type, packetType);
+    }
+
+    /**
+     * @return True, if values of the given type are or contain nested packets.
+     */
+    private boolean containsPacket(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) return containsPacket(((ArrayType) type).getComponentType());
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        if (isCollection(type)) return containsPacket(((DeclaredType) type).getTypeArguments().get(0));
+        return isPacket(type);
+    }
+
+    private boolean isCollection(TypeMirror type) {
+        return types.isAssignable(types.erasure(type), collectionType);
+    }
+
+    /**
+     * @return Qualified name of the class to instantiate when decoding a collection type, or null if unsupported.
+     */
+    private String collectionImplementation(TypeMirror type) {
+        TypeElement element = (TypeElement) types.asElement(type);
+        if (element.getKind() == ElementKind.CLASS && !element.getModifiers().contains(Modifier.ABSTRACT)) {
+            for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements()))
+                if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC))
+                    return element.getQualifiedName().toString();
+            return null;
+        }
+
+        return switch (element.getQualifiedName().toString()) {
+            case "java.util.Collection", "java.util.List" -> "java.util.ArrayList";
+            case "java.util.Set" -> "java.util.LinkedHashSet";
+            case "java.util.SortedSet", "java.util.NavigableSet" -> "java.util.TreeSet";
+            case "java.util.Queue", "java.util.Deque" -> "java.util.ArrayDeque";
+            default -> null;
+        };
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a hash over the name and type of every field, in encoding order. Enum types contribute
+     * their constant names in declaration order, as constants are encoded by ordinal, and nested packet types
+     * contribute the types of their own fields, so that changing either is caught as a schema change.
+     */
+    private long fingerprint(List<VariableElement> fields) {
+        StringBuilder signature = new StringBuilder();
+        Set<String> visiting = new HashSet<>();
+        for (VariableElement field : fields) {
+            signature.append(field.getSimpleName()).append(':');
+            appendSignature(signature, field.asType(), visiting);
+            signature.append(';');
+        }
+
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < signature.length(); i++) {
+            hash ^= signature.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Appends the signature of a field type, expanding enum constants and the fields of nested packet types. A packet
+     * type which is already being expanded, such as a packet which contains itself, is appended by name only.
+     */
+    private void appendSignature(StringBuilder signature, TypeMirror type, Set<String> visiting) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            appendSignature(signature, ((ArrayType) type).getComponentType(), visiting);
+            signature.append("[]");
+        } else if (type.getKind() == TypeKind.DECLARED && isCollection(type)) {
+            signature.append(types.erasure(type)).append('<');
+            appendSignature(signature, ((DeclaredType) type).getTypeArguments().get(0), visiting);
+            signature.append('>');
+        } else if (type.getKind() == TypeKind.DECLARED && isEnum(type)) {
+            TypeElement element = (TypeElement) types.asElement(type);
+            signature.append(element.getQualifiedName()).append('{');
+            for (Element constant : element.getEnclosedElements())
+                if (constant.getKind() == ElementKind.ENUM_CONSTANT)
+                    signature.append(constant.getSimpleName()).append(',');
+            signature.append('}');
+        } else if (type.getKind() == TypeKind.DECLARED && isPacket(type)) {
+            TypeElement element = (TypeElement) types.asElement(type);
+            String name = element.getQualifiedName().toString();
+            signature.append(name);
+            if (!visiting.add(name)) return;
+
+            signature.append('{');
+            for (TypeElement declaringType : hierarchy(element))
+                for (VariableElement field : ElementFilter.fieldsIn(declaringType.getEnclosedElements())) {
+                    Set<Modifier> modifiers = field.getModifiers();
+                    if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+
+                    signature.append(field.getSimpleName()).append(':');
+                    appendSignature(signature, field.asType(), visiting);
+                    signature.append(';');
+                }
+            signature.append('}');
+            visiting.remove(name);
+        } else {
+            signature.append(type);
+        }
+    }
+
+    private void writeServiceFile() {
+        String serviceFileName = "META-INF/services/" + CODEC_INTERFACE;
+        Set<String> codecs = new LinkedHashSet<>(readServiceFile(serviceFileName));
+        codecs.addAll(generatedCodecs);
+        try {
+            FileObject serviceFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", serviceFileName);
+            try (Writer writer = serviceFile.openWriter()) {
+                for (String codec : codecs)
+                    writer.write(codec + "\n");
+            }
+        } catch (IOException e) {
+            messager.printMessage(Kind.ERROR, "Unable to write codec service file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the codecs listed by a service file which is already in the class output, so that codecs generated by an
+     * earlier, incremental compilation are kept.
+     *
+     * @return Listed codecs, which are empty if there is no such file yet.
+     */
+    private List<String> readServiceFile(String serviceFileName) {
+        List<String> codecs = new ArrayList<>();
+        try {
+            FileObject serviceFile = filer.getResource(StandardLocation.CLASS_OUTPUT, "", serviceFileName);
+            for (String line : serviceFile.getCharContent(true).toString().split("\n")) {
+                int comment = line.indexOf('#');
+                String codec = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (!codec.isEmpty()) codecs.add(codec);
+            }
+        } catch (IOException | IllegalArgumentException ignored) {
+            // There is no service file yet.
+        }
+        return codecs;
+    }
+
+    private void error(Element element, String format, Object... args) {
+        messager.printMessage(Kind.ERROR, String.format(format, args), element);
+    }
+
+    /**
+     * Writes the source of the codec for a single packet type.
+     */
+    private final class CodecWriter {
+
+        private final TypeElement packet;
+        private final String packageName;
+        private final String codecName;
+        private final int id;
+        private final long fingerprint;
+        private final List<VariableElement> fields;
+
+        /**
+         * Constants holding the values of each enum type used by the packet, mapped to the enum type.
+         */
+        private final Map<String, String> enumConstants;
+        private int variableCount;
+
+        CodecWriter(TypeElement packet, String packageName, int id, long fingerprint, List<VariableElement> fields) {
+            this.packet = packet;
+            this.packageName = packageName;
+            this.id = id;
+            this.fingerprint = fingerprint;
+            this.fields = fields;
+            enumConstants = new LinkedHashMap<>();
+
+            String binaryName = elements.getBinaryName(packet).toString();
+            codecName = binaryName.substring(binaryName.lastIndexOf('.') + 1).replace('$', '_') + "Codec";
+        }
+
+        void write() {
+            String packetName = packet.getQualifiedName().toString();
+
+            StringBuilder encode = new StringBuilder();
+            StringBuilder decode = new StringBuilder();
+            StringBuilder releaseNested = new StringBuilder();
+            for (VariableElement field : fields) {
+                String access = "packet." + field.getSimpleName();
+                encodeValue(encode, "        ", field.asType(), access);
+                decodeValue(decode, "        ", field.asType(), access);
+                if (containsPacket(field.asType())) {
+                    releaseValue(releaseNested, "        ", field.asType(), access);
+                    releaseNested.append("        ").append(access).append(" = null;\n");
+                }
+            }
+            // Nested packets are owned by the packet, so release them before they are overwritten.
+            if (releaseNested.length() > 0) decode.insert(0, "        releaseNested(packet);\n");
+
+            StringBuilder source = new StringBuilder();
+            if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+            source.append("import ").append(CODEC_PACKAGE).append(".JServerPacketCodec;\n")
+                    .append("import ").append(CODEC_PACKAGE).append(".JServerPacketInput;\n")
+                    .append("import ").append(CODEC_PACKAGE).append(".JServerPacketOutput;\n\n")
+                    .append("import javax.annotation.processing.Generated;\n")
+                    .append("import java.io.IOException;\n")
+                    .append("import java.io.StreamCorruptedException;\n\n")
+                    .append("@Generated(\"").append(JServerPacketCodecProcessor.class.getName()).append("\")\n")
+                    .append("public final class ").append(codecName)
+                    .append(" implements JServerPacketCodec<").append(packetName).append("> {\n\n")
+                    .append("    public static final int PACKET_ID = ").append(id).append(";\n")
+                    .append("    public static final long FINGERPRINT = 0x")
+                    .append(Long.toHexString(fingerprint).toUpperCase()).append("L;\n");
+            enumConstants.forEach((enumType, constant) -> source
+                    .append("    private static final ").append(enumType).append("[] ").append(constant)
+                    .append(" = ").append(enumType).append(".values();\n"));
+            source.append("\n    @Override\n    public int getPacketId() {\n        return PACKET_ID;\n    }\n\n")
+                    .append("    @Override\n    public Class<").append(packetName).append("> getPacketType() {\n")
+                    .append("        return ").append(packetName).append(".class;\n    }\n\n")
+                    .append("    @Override\n    public long getFingerprint() {\n        return FINGERPRINT;\n    }\n\n")
+                    .append("    @Override\n    public ").append(packetName).append(" newInstance() {\n")
+                    .append("        return new ").append(packetName).append("();\n    }\n\n")
+                    .append("    @Override\n    public void encode(").append(packetName)
+                    .append(" packet, JServerPacketOutput output) throws IOException {\n")
+                    .append(encode).append("    }\n\n")
+                    .append("    @Override\n    public void decode(").append(packetName)
+                    .append(" packet, JServerPacketInput input) throws IOException {\n")
+                    .append(decode).append("    }\n");
+            if (releaseNested.length() > 0)
+                source.append("\n    @Override\n    public void releaseNested(").append(packetName)
+                        .append(" packet) {\n")
+                        .append(releaseNested).append("    }\n");
+            source.append("}\n");
+
+            String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+            try {
+                JavaFileObject sourceFile = filer.createSourceFile(qualifiedCodecName, packet);
+                try (Writer writer = sourceFile.openWriter()) {
+                    writer.write(source.toString());
+                }
+                generatedCodecs.add(qualifiedCodecName);
+            } catch (IOException e) {
+                error(packet, "Unable to write codec: %s", e.getMessage());
+            }
+        }
+
+        private void encodeValue(StringBuilder out, String indent, TypeMirror type, String value) {
+            if (type.getKind().isPrimitive()) {
+                out.append(indent).append(primitiveWrite((PrimitiveType) type, value)).append(";\n");
+            } else if (type.getKind() == TypeKind.ARRAY || isCollection(type)) {
+                boolean array = type.getKind() == TypeKind.ARRAY;
+                TypeMirror element = array
+                                     ? ((ArrayType) type).getComponentType()
+                                     : ((DeclaredType) type).getTypeArguments().get(0);
+                String variable = nextVariable("e");
+                out.append(indent).append("if (").append(value).append(" == null) {\n")
+                        .append(indent).append("    output.writeVarInt(0);\n")
+                        .append(indent).append("} else {\n")
+                        .append(indent).append("    output.writeVarInt(").append(value)
+                        .append(array ? ".length" : ".size()").append(" + 1);\n")
+                        .append(indent).append("    for (").append(element).append(' ').append(variable)
+                        .append(" : ").append(value).append(") {\n");
+                encodeValue(out, indent + "        ", element, variable);
+                out.append(indent).append("    }\n").append(indent).append("}\n");
+            } else if (isBoxed(type)) {
+                out.append(indent).append("if (").append(value).append(" == null) {\n")
+                        .append(indent).append("    output.writeBoolean(false);\n")
+                        .append(indent).append("} else {\n")
+                        .append(indent).append("    output.writeBoolean(true);\n")
+                        .append(indent).append("    ").append(primitiveWrite(types.unboxedType(type), value))
+                        .append(";\n")
+                        .append(indent).append("}\n");
+            } else if (isString(type)) {
+                out.append(indent).append("output.writeString(").append(value).append(");\n");
+            } else if (isEnum(type)) {
+                out.append(indent).append("output.writeVarInt(").append(value).append(" == null ? 0 : ")
+                        .append(value).append(".ordinal() + 1);\n");
+            } else {
+                out.append(indent).append("output.writePacket(").append(value).append(");\n");
+            }
+        }
+
+        private void decodeValue(StringBuilder out, String indent, TypeMirror type, String target) {
+            if (type.getKind().isPrimitive()) {
+                out.append(indent).append(target).append(" = ").append(primitiveRead((PrimitiveType) type))
+                        .append(";\n");
+            } else if (type.getKind() == TypeKind.ARRAY) {
+                TypeMirror component = ((ArrayType) type).getComponentType();
+                String length = nextVariable("n");
+                String index = nextVariable("i");
+                out.append(indent).append("int ").append(length).append(" = input.readLength();\n")
+                        .append(indent).append("if (").append(length).append(" < 0) {\n")
+                        .append(indent).append("    ").append(target).append(" = null;\n")
+                        .append(indent).append("} else {\n")
+                        .append(indent).append("    if (").append(target).append(" == null || ").append(target)
+                        .append(".length != ").append(length).append(")\n")
+                        .append(indent).append("        ").append(target).append(" = ")
+                        .append(newArray((ArrayType) type, length)).append(";\n")
+                        .append(indent).append("    for (int ").append(index).append(" = 0; ").append(index)
+                        .append(" < ").append(length).append("; ").append(index).append("++) {\n");
+                decodeValue(out, indent + "        ", component, target + "[" + index + "]");
+                out.append(indent).append("    }\n").append(indent).append("}\n");
+            } else if (isCollection(type)) {
+                TypeMirror element = ((DeclaredType) type).getTypeArguments().get(0);
+                String implementation = collectionImplementation(type);
+                String length = nextVariable("n");
+                String index = nextVariable("i");
+                String variable = nextVariable("e");
+                // Reuse the existing collection only if it is known to be mutable.
+                out.append(indent).append("int ").append(length).append(" = input.readLength();\n")
+                        .append(indent).append("if (").append(length).append(" < 0) {\n")
+                        .append(indent).append("    ").append(target).append(" = null;\n")
+                        .append(indent).append("} else {\n")
+                        .append(indent).append("    if (").append(target).append(" != null && ").append(target)
+                        .append(".getClass() == ").append(implementation).append(".class)\n")
+                        .append(indent).append("        ").append(target).append(".clear();\n")
+                        .append(indent).append("    else\n")
+                        .append(indent).append("        ").append(target).append(" = new ").append(implementation)
+                        .append("<>();\n")
+                        .append(indent).append("    for (int ").append(index).append(" = 0; ").append(index)
+                        .append(" < ").append(length).append("; ").append(index).append("++) {\n")
+                        .append(indent).append("        ").append(element).append(' ').append(variable)
+                        .append(" = null;\n");
+                decodeValue(out, indent + "        ", element, variable);
+                out.append(indent).append("        ").append(target).append(".add(").append(variable)
+                        .append(");\n")
+                        .append(indent).append("    }\n").append(indent).append("}\n");
+            } else if (isBoxed(type)) {
+                out.append(indent).append(target).append(" = input.readBoolean() ? ")
+                        .append(types.boxedClass(types.unboxedType(type)).getQualifiedName()).append(".valueOf(")
+                        .append(primitiveRead(types.unboxedType(type))).append(") : null;\n");
+            } else if (isString(type)) {
+                out.append(indent).append(target).append(" = input.readString();\n");
+            } else if (isEnum(type)) {
+                String enumType = types.erasure(type).toString();
+                String constant = enumConstants.computeIfAbsent(enumType, ignored -> nextVariable("VALUES_"));
+                String ordinal = nextVariable("o");
+                out.append(indent).append("int ").append(ordinal).append(" = input.readVarInt();\n")
+                        .append(indent).append("if (").append(ordinal).append(" < 0 || ").append(ordinal)
+                        .append(" > ").append(constant).append(".length)\n")
+                        .append(indent).append("    throw new StreamCorruptedException(\"Invalid ")
+                        .append(types.asElement(type).getSimpleName()).append(" ordinal\");\n")
+                        .append(indent).append(target).append(" = ").append(ordinal).append(" == 0 ? null : ")
+                        .append(constant).append('[').append(ordinal).append(" - 1];\n");
+            } else {
+                out.append(indent).append(target).append(" = input.readPacket(")
+                        .append(types.erasure(type)).append(".class);\n");
+            }
+        }
+
+        private void releaseValue(StringBuilder out, String indent, TypeMirror type, String value) {
+            if (type.getKind() == TypeKind.ARRAY || isCollection(type)) {
+                TypeMirror element = type.getKind() == TypeKind.ARRAY
+                                     ? ((ArrayType) type).getComponentType()
+                                     : ((DeclaredType) type).getTypeArguments().get(0);
+                String variable = nextVariable("e");
+                out.append(indent).append("if (").append(value).append(" != null) {\n")
+                        .append(indent).append("    for (").append(element).append(' ').append(variable)
+                        .append(" : ").append(value).append(") {\n");
+                releaseValue(out, indent + "        ", element, variable);
+                out.append(indent).append("    }\n").append(indent).append("}\n");
+            } else {
+                out.append(indent).append("if (").append(value).append(" != null) ").append(value)
+                        .append(".release();\n");
+            }
+        }
+
+        private String primitiveWrite(PrimitiveType type, String value) {
+            return switch (type.getKind()) {
+                case BOOLEAN -> "output.writeBoolean(" + value + ")";
+                case BYTE -> "output.writeByte(" + value + ")";
+                case SHORT -> "output.writeShort(" + value + ")";
+                case CHAR -> "output.writeChar(" + value + ")";
+                case INT -> "output.writeSignedVarInt(" + value + ")";
+                case LONG -> "output.writeSignedVarLong(" + value + ")";
+                case FLOAT -> "output.writeFloat(" + value + ")";
+                case DOUBLE -> "output.writeDouble(" + value + ")";
+                default -> throw new IllegalArgumentException("Unexpected primitive type " + type);
+            };
+        }
+
+        private String primitiveRead(PrimitiveType type) {
+            return switch (type.getKind()) {
+                case BOOLEAN -> "input.readBoolean()";
+                case BYTE -> "input.readByte()";
+                case SHORT -> "input.readShort()";
+                case CHAR -> "input.readChar()";
+                case INT -> "input.readSignedVarInt()";
+                case LONG -> "input.readSignedVarLong()";
+                case FLOAT -> "input.readFloat()";
+                case DOUBLE -> "input.readDouble()";
+                default -> throw new IllegalArgumentException("Unexpected primitive type " + type);
+            };
+        }
+
+        private String newArray(ArrayType type, String length) {
+            TypeMirror base = type;
+            int dimensions = 0;
+            while (base.getKind() == TypeKind.ARRAY) {
+                base = ((ArrayType) base).getComponentType();
+                dimensions++;
+            }
+            return "new " + types.erasure(base) + "[" + length + "]" + "[]".repeat(dimensions - 1);
+        }
+
+        private String nextVariable(String prefix) {
+            return prefix + variableCount++;
+        }
+    }
+}
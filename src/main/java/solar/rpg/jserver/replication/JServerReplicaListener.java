@@ -0,0 +1,26 @@
+package solar.rpg.jserver.replication;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives notifications about replicas which a {@link JServerReplicator} applies changes to.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public interface JServerReplicaListener {
+
+    /**
+     * Called after changes have been applied to a replica, including when it is first created.
+     *
+     * @param replica Updated replica.
+     */
+    void onReplicaUpdated(@NotNull JServerReplicatedObject replica);
+
+    /**
+     * Called after a replica has been removed, as the replicating side no longer replicates it.
+     *
+     * @param replica Removed replica.
+     */
+    void onReplicaRemoved(@NotNull JServerReplicatedObject replica);
+}
@@ -0,0 +1,110 @@
+package solar.rpg.jserver.replication;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.codec.JServerPacketInput;
+import solar.rpg.jserver.packet.codec.JServerPacketOutput;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * A {@code JServerReplicatedObject} is a shared object whose state is kept in sync with every connection by a
+ * {@link JServerReplicator}. Its state is split into a fixed number of indexed fields, and setters must call
+ * {@link #markChanged(int)} after changing a field, so that only changed fields are sent.
+ * <p>
+ * Fields are read while holding the monitor of the object, so setters should be {@code synchronized} if the object is
+ * changed from a different thread than the one replicating it. On the receiving side, fields are written by the task
+ * handling packets from the connection which replicates the object.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public abstract class JServerReplicatedObject {
+
+    private final int fieldCount;
+
+    // --- Change tracking. Guarded by the owning replicator //
+    @Nullable
+    volatile JServerReplicator owner;
+    volatile int id;
+    long createdVersion;
+    long version;
+    @NotNull
+    final long[] fieldVersions;
+
+    @Nullable
+    private volatile InetSocketAddress originAddress;
+
+    /**
+     * Constructs a {@code JServerReplicatedObject}.
+     *
+     * @param fieldCount Number of replicated fields.
+     * @throws IllegalArgumentException Field count is not positive.
+     */
+    protected JServerReplicatedObject(int fieldCount) {
+        if (fieldCount <= 0) throw new IllegalArgumentException("Field count must be positive");
+
+        this.fieldCount = fieldCount;
+        fieldVersions = new long[fieldCount];
+        id = 0;
+    }
+
+    /**
+     * @return Id of this object, which is unique among the objects of its replicator; or zero if this object is not
+     * registered and is not a replica.
+     */
+    public final int getId() {
+        return id;
+    }
+
+    public final int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return Address of the connection which replicates this object, or null if this object is replicated from here.
+     */
+    @Nullable
+    public final InetSocketAddress getOriginAddress() {
+        return originAddress;
+    }
+
+    /**
+     * Records that a field has changed, so that it is sent with the next update. This has no effect on objects which
+     * are not registered with a replicator.
+     *
+     * @param field Index of the field.
+     * @throws IndexOutOfBoundsException Field index is out of range.
+     */
+    protected final void markChanged(int field) {
+        if (field < 0 || field >= fieldCount)
+            throw new IndexOutOfBoundsException(String.format("Invalid field index %d", field));
+
+        JServerReplicator replicator = owner;
+        if (replicator != null) replicator.onFieldChanged(this, field);
+    }
+
+    /**
+     * Writes the current value of a field.
+     *
+     * @param field  Index of the field.
+     * @param output Output to write to.
+     * @throws IOException Field could not be encoded.
+     */
+    protected abstract void writeField(int field, @NotNull JServerPacketOutput output) throws IOException;
+
+    /**
+     * Reads the value of a field, overwriting its current value.
+     *
+     * @param field Index of the field.
+     * @param input Input to read from.
+     * @throws IOException Field could not be decoded.
+     */
+    protected abstract void readField(int field, @NotNull JServerPacketInput input) throws IOException;
+
+    void onReplicated(int id, @NotNull InetSocketAddress originAddress) {
+        this.id = id;
+        this.originAddress = originAddress;
+    }
+}
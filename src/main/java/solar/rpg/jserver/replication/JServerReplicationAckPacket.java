@@ -0,0 +1,32 @@
+package solar.rpg.jserver.replication;
+
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
+/**
+ * Acknowledges that a {@link JServerReplicationPacket} has been applied, so that later changes can be sent relative to
+ * its version.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ * @see JServerReplicator
+ */
+@JServerPacketType(id = 3)
+public class JServerReplicationAckPacket extends JServerPacket {
+
+    /**
+     * Version of the applied replication packet.
+     */
+    long version;
+
+    public JServerReplicationAckPacket() {
+    }
+
+    JServerReplicationAckPacket(long version) {
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,49 @@
+package solar.rpg.jserver.replication;
+
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
+/**
+ * Carries the changes to replicated objects since the last baseline acknowledged by the receiving side, or a full
+ * snapshot of every replicated object. The receiving side replies with a {@link JServerReplicationAckPacket} once the
+ * changes have been applied.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ * @see JServerReplicator
+ */
+@JServerPacketType(id = 2)
+public class JServerReplicationPacket extends JServerPacket {
+
+    /**
+     * Replication version which the receiving side is in sync with once the changes have been applied.
+     */
+    long version;
+
+    /**
+     * True, if the changes contain every replicated object, and objects not contained in them have been removed.
+     */
+    boolean snapshot;
+
+    /**
+     * Encoded changes.
+     */
+    byte[] changes;
+
+    public JServerReplicationPacket() {
+    }
+
+    JServerReplicationPacket(long version, boolean snapshot, byte[] changes) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.changes = changes;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+}
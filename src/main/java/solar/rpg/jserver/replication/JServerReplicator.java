@@ -0,0 +1,545 @@
+package solar.rpg.jserver.replication;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+import solar.rpg.jserver.packet.codec.JServerPacketInput;
+import solar.rpg.jserver.packet.codec.JServerPacketOutput;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A {@code JServerReplicator} keeps {@link JServerReplicatedObject replicated objects} in sync with every connection of
+ * a packet handler. Every change to a registered object is stamped with a new replication version, and each connection
+ * is sent the fields which changed since the last version it acknowledged, so that bandwidth and encoding cost scale
+ * with how often objects change rather than how large they are. Every {@link #setSnapshotInterval snapshot interval},
+ * a connection is sent every object in full instead, so that it resyncs if an update was lost.
+ * <p>
+ * The same replicator also holds the replicas of objects replicated by the other party of each connection. Both
+ * parties must register the same object types with the same type ids.
+ *
+ * @author jskinner
+ * @since 1.0.0
+ */
+public final class JServerReplicator {
+
+    /**
+     * Number of updates between full snapshots if no interval is set.
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 100;
+
+    /**
+     * Baseline of the plan which contains every object in full.
+     */
+    private static final long SNAPSHOT_BASELINE = -1;
+
+    @NotNull
+    private final Map<Class<? extends JServerReplicatedObject>, Integer> typeIds;
+    @NotNull
+    private final Map<Integer, Supplier<? extends JServerReplicatedObject>> factories;
+    @NotNull
+    private volatile JServerPacketCodecRegistry codecRegistry;
+
+    // --- Objects replicated from here. Guarded by this replicator //
+    private long version;
+    private int nextObjectId;
+    @NotNull
+    private final Map<Integer, JServerReplicatedObject> objects;
+
+    /**
+     * Registered objects, keyed by the version they last changed at.
+     */
+    @NotNull
+    private final TreeMap<Long, JServerReplicatedObject> changedObjects;
+
+    /**
+     * Ids of unregistered objects, keyed by the version they were unregistered at. Removals are forgotten once every
+     * connection has acknowledged them.
+     */
+    @NotNull
+    private final TreeMap<Long, Integer> removedObjects;
+    @NotNull
+    private final Map<InetSocketAddress, JServerReplicationBaseline> baselines;
+    private int snapshotInterval;
+
+    /**
+     * Serialises encoding of updates, which happens without holding the lock of this replicator.
+     */
+    @NotNull
+    private final Object encodeLock;
+
+    // --- Objects replicated by the other party of each connection //
+    @NotNull
+    private final Map<InetSocketAddress, Map<Integer, JServerReplicatedObject>> replicas;
+
+    /**
+     * Constructs a {@code JServerReplicator}.
+     *
+     * @param codecRegistry Registry used to look up codecs of packets nested in replicated fields.
+     */
+    public JServerReplicator(@NotNull JServerPacketCodecRegistry codecRegistry) {
+        this.codecRegistry = codecRegistry;
+        typeIds = new ConcurrentHashMap<>();
+        factories = new ConcurrentHashMap<>();
+        version = 0;
+        nextObjectId = 1;
+        objects = new LinkedHashMap<>();
+        changedObjects = new TreeMap<>();
+        removedObjects = new TreeMap<>();
+        baselines = new HashMap<>();
+        snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        encodeLock = new Object();
+        replicas = new ConcurrentHashMap<>();
+    }
+
+    public void setCodecRegistry(@NotNull JServerPacketCodecRegistry codecRegistry) {
+        this.codecRegistry = codecRegistry;
+    }
+
+    /**
+     * Registers a replicated object type, so that objects of the type can be replicated and replicas of the type can
+     * be created. Type ids must be the same on both sides.
+     *
+     * @param typeId  Stable id which identifies the type on the wire.
+     * @param type    Replicated object type.
+     * @param factory Creates new replicas of the type.
+     * @param <T>     Replicated object type.
+     * @throws IllegalArgumentException Type id is negative.
+     * @throws IllegalStateException    Type or type id is already registered.
+     */
+    public <T extends JServerReplicatedObject> void registerType(
+            int typeId,
+            @NotNull Class<T> type,
+            @NotNull Supplier<T> factory) {
+        if (typeId < 0) throw new IllegalArgumentException("Type id must not be negative");
+        if (typeIds.putIfAbsent(type, typeId) != null) throw new IllegalStateException("Type is already registered");
+        if (factories.putIfAbsent(typeId, factory) != null) {
+            typeIds.remove(type);
+            throw new IllegalStateException("Type id is already registered");
+        }
+    }
+
+    /**
+     * Sets how many updates are sent to a connection between full snapshots.
+     *
+     * @param snapshotInterval Number of updates between snapshots.
+     * @throws IllegalArgumentException Interval is not positive.
+     */
+    public synchronized void setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval <= 0) throw new IllegalArgumentException("Interval must be positive");
+
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public synchronized int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Starts replicating an object to every connection. It is sent in full with the next update.
+     *
+     * @param object Object to replicate.
+     * @return Id of the object.
+     * @throws IllegalArgumentException Type of the object is not registered.
+     * @throws IllegalStateException    Object is already registered, or is a replica.
+     */
+    public synchronized int register(@NotNull JServerReplicatedObject object) {
+        if (!typeIds.containsKey(object.getClass())) throw new IllegalArgumentException("Type is not registered");
+        if (object.owner != null || object.id != 0) throw new IllegalStateException("Object is already registered");
+
+        long registeredVersion = ++version;
+        object.owner = this;
+        object.id = nextObjectId++;
+        object.createdVersion = registeredVersion;
+        object.version = registeredVersion;
+        Arrays.fill(object.fieldVersions, registeredVersion);
+        objects.put(object.id, object);
+        changedObjects.put(registeredVersion, object);
+        return object.id;
+    }
+
+    /**
+     * Stops replicating an object. Every connection is told to remove its replica with the next update.
+     *
+     * @param object Registered object.
+     * @throws IllegalArgumentException Object is not registered with this replicator.
+     */
+    public synchronized void unregister(@NotNull JServerReplicatedObject object) {
+        if (object.owner != this) throw new IllegalArgumentException("Object is not registered");
+
+        objects.remove(object.id);
+        changedObjects.remove(object.version);
+        removedObjects.put(++version, object.id);
+        object.owner = null;
+        object.id = 0;
+    }
+
+    /**
+     * @param originAddress Address of the connection.
+     * @param id            Id of the replicated object.
+     * @return Replica of an object replicated by the connection, or null if there is no such replica.
+     */
+    @Nullable
+    public JServerReplicatedObject getReplica(@NotNull InetSocketAddress originAddress, int id) {
+        Map<Integer, JServerReplicatedObject> connectionReplicas = replicas.get(originAddress);
+        return connectionReplicas != null ? connectionReplicas.get(id) : null;
+    }
+
+    /**
+     * @param originAddress Address of the connection.
+     * @return Replicas of every object replicated by the connection.
+     */
+    @NotNull
+    public Collection<JServerReplicatedObject> getReplicas(@NotNull InetSocketAddress originAddress) {
+        Map<Integer, JServerReplicatedObject> connectionReplicas = replicas.get(originAddress);
+        return connectionReplicas != null
+               ? Collections.unmodifiableCollection(connectionReplicas.values())
+               : Collections.emptyList();
+    }
+
+    /**
+     * Starts replicating to a connection. It is sent a snapshot with the next update. Called by the packet handler.
+     *
+     * @param originAddress Address of the connection.
+     */
+    public synchronized void addConnection(@NotNull InetSocketAddress originAddress) {
+        baselines.put(originAddress, new JServerReplicationBaseline(snapshotInterval));
+        replicas.put(originAddress, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Forgets the baseline of a closed connection, along with every replica it replicated. Called by the packet
+     * handler.
+     *
+     * @param originAddress Address of the connection.
+     */
+    public synchronized void removeConnection(@NotNull InetSocketAddress originAddress) {
+        baselines.remove(originAddress);
+        replicas.remove(originAddress);
+    }
+
+    /**
+     * Records that a connection has applied an update. Called by the packet handler.
+     *
+     * @param originAddress Address of the connection.
+     * @param ack           Acknowledgement received from the connection.
+     */
+    public synchronized void onAcknowledged(
+            @NotNull InetSocketAddress originAddress,
+            @NotNull JServerReplicationAckPacket ack) {
+        JServerReplicationBaseline baseline = baselines.get(originAddress);
+        // Versions which were never sent cannot be acknowledged.
+        if (baseline == null || ack.version > baseline.sent) return;
+
+        baseline.acknowledged = Math.max(baseline.acknowledged, ack.version);
+    }
+
+    /**
+     * Creates the next update for every connection. Connections which are in sync, or are still waiting to acknowledge
+     * their first snapshot, are skipped. Connections sharing the same baseline share the same update, so each distinct
+     * baseline is only encoded once. Called by the packet handler.
+     *
+     * @return Update to send to each connection.
+     * @throws IOException A replicated field could not be encoded.
+     */
+    @NotNull
+    public Map<InetSocketAddress, JServerReplicationPacket> createUpdates() throws IOException {
+        synchronized (encodeLock) {
+            long current;
+            Map<InetSocketAddress, Long> connectionBaselines = new HashMap<>();
+            Map<Long, JServerReplicationPlan> plans = new HashMap<>();
+            synchronized (this) {
+                current = version;
+                for (Map.Entry<InetSocketAddress, JServerReplicationBaseline> entry : baselines.entrySet()) {
+                    JServerReplicationBaseline baseline = entry.getValue();
+                    boolean snapshot = ++baseline.updatesSinceSnapshot >= snapshotInterval;
+                    if (!snapshot && (baseline.acknowledged < 0 || baseline.sent == current)) continue;
+
+                    if (snapshot) baseline.updatesSinceSnapshot = 0;
+                    if (baseline.firstSent < 0) baseline.firstSent = current;
+                    baseline.sent = current;
+                    long from = snapshot ? SNAPSHOT_BASELINE : baseline.acknowledged;
+                    plans.computeIfAbsent(from, this::plan);
+                    connectionBaselines.put(entry.getKey(), from);
+                }
+
+                // Connections which have not acknowledged anything yet may still acknowledge the first snapshot they were
+                // sent, and are then sent the removals since that snapshot.
+                long oldestBaseline = current;
+                for (JServerReplicationBaseline baseline : baselines.values()) {
+                    if (baseline.acknowledged >= 0)
+                        oldestBaseline = Math.min(oldestBaseline, baseline.acknowledged);
+                    else if (baseline.firstSent >= 0)
+                        oldestBaseline = Math.min(oldestBaseline, baseline.firstSent);
+                }
+                removedObjects.headMap(oldestBaseline, true).clear();
+            }
+
+            // Fields are read without holding the replicator lock, so setters may call markChanged while synchronized.
+            JServerPacketOutput output = new JServerPacketOutput(codecRegistry);
+            Map<Long, JServerReplicationPacket> updates = new HashMap<>();
+            for (Map.Entry<Long, JServerReplicationPlan> entry : plans.entrySet())
+                updates.put(entry.getKey(), encode(entry.getValue(), current, output));
+
+            Map<InetSocketAddress, JServerReplicationPacket> connectionUpdates = new HashMap<>();
+            connectionBaselines.forEach((address, from) -> connectionUpdates.put(address, updates.get(from)));
+            return connectionUpdates;
+        }
+    }
+
+    /**
+     * Works out which fields of which objects have changed since the given baseline. Must be called while holding the
+     * replicator lock.
+     *
+     * @param from Acknowledged version, or {@link #SNAPSHOT_BASELINE} to include every object in full.
+     * @return Plan of the update.
+     */
+    @NotNull
+    private JServerReplicationPlan plan(long from) {
+        boolean snapshot = from == SNAPSHOT_BASELINE;
+        Collection<JServerReplicatedObject> changed = snapshot
+                                                      ? objects.values()
+                                                      : changedObjects.tailMap(from, false).values();
+
+        List<JServerReplicationEntry> entries = new ArrayList<>(changed.size());
+        for (JServerReplicatedObject object : changed) {
+            boolean created = snapshot || object.createdVersion > from;
+            long[] fieldVersions = object.fieldVersions;
+            int fieldCount = 0;
+            for (long fieldVersion : fieldVersions)
+                if (created || fieldVersion > from) fieldCount++;
+
+            int[] fields = new int[fieldCount];
+            for (int field = 0, i = 0; field < fieldVersions.length; field++)
+                if (created || fieldVersions[field] > from) fields[i++] = field;
+
+            int typeId = created ? typeIds.get(object.getClass()) : -1;
+            entries.add(new JServerReplicationEntry(object, object.id, typeId, fields));
+        }
+
+        int[] removed = snapshot
+                        ? new int[0]
+                        : removedObjects.tailMap(from, false).values().stream().mapToInt(Integer::intValue).toArray();
+        return new JServerReplicationPlan(snapshot, entries, removed);
+    }
+
+    /**
+     * Encodes an update. Each object is written as its id, its type id plus one if the receiving side may not have it
+     * yet (otherwise zero), and the number of changed fields followed by the index and value of each. The objects are
+     * followed by the ids of removed objects.
+     *
+     * @param plan    Plan of the update.
+     * @param current Version the receiving side is in sync with once it applies the update.
+     * @param output  Output to encode with.
+     * @return Update packet.
+     * @throws IOException A replicated field could not be encoded.
+     */
+    @NotNull
+    private JServerReplicationPacket encode(
+            @NotNull JServerReplicationPlan plan,
+            long current,
+            @NotNull JServerPacketOutput output) throws IOException {
+        output.reset();
+        output.writeVarInt(plan.entries.size());
+        for (JServerReplicationEntry entry : plan.entries) {
+            output.writeVarInt(entry.id);
+            output.writeVarInt(entry.typeId + 1);
+            output.writeVarInt(entry.fields.length);
+            synchronized (entry.object) {
+                for (int field : entry.fields) {
+                    output.writeVarInt(field);
+                    entry.object.writeField(field, output);
+                }
+            }
+        }
+
+        output.writeVarInt(plan.removed.length);
+        for (int id : plan.removed)
+            output.writeVarInt(id);
+
+        return new JServerReplicationPacket(current, plan.snapshot, output.toByteArray());
+    }
+
+    /**
+     * Applies an update received from a connection to its replicas. Called by the packet handler, in the order updates
+     * were received.
+     *
+     * @param originAddress Address of the connection.
+     * @param update        Received update.
+     * @param listener      Listener notified about every updated and removed replica.
+     * @return Acknowledgement to send back, or null if the connection has been closed.
+     * @throws IOException Update is malformed. Replicas may have been partly updated, and are resynced by the next
+     *                     snapshot.
+     */
+    @Nullable
+    public JServerReplicationAckPacket apply(
+            @NotNull InetSocketAddress originAddress,
+            @NotNull JServerReplicationPacket update,
+            @NotNull JServerReplicaListener listener) throws IOException {
+        Map<Integer, JServerReplicatedObject> connectionReplicas = replicas.get(originAddress);
+        if (connectionReplicas == null) return null;
+        if (update.changes == null) throw new StreamCorruptedException("Replication update has no changes");
+
+        JServerPacketInput input = new JServerPacketInput(codecRegistry);
+        input.setBuffer(update.changes, 0, update.changes.length);
+
+        int count = input.readVarInt();
+        List<JServerReplicatedObject> updated = new ArrayList<>();
+        List<JServerReplicatedObject> removed = new ArrayList<>();
+        Set<Integer> included = update.snapshot ? new HashSet<>() : null;
+        for (int i = 0; i < count; i++) {
+            int id = input.readVarInt();
+            int typeId = input.readVarInt() - 1;
+            JServerReplicatedObject replica = connectionReplicas.get(id);
+            if (typeId >= 0 && (replica == null || !Integer.valueOf(typeId).equals(typeIds.get(replica.getClass())))) {
+                Supplier<? extends JServerReplicatedObject> factory = factories.get(typeId);
+                if (factory == null)
+                    throw new StreamCorruptedException(String.format("Unknown replicated type %d", typeId));
+
+                if (replica != null) removed.add(replica);
+                replica = factory.get();
+                replica.onReplicated(id, originAddress);
+                connectionReplicas.put(id, replica);
+            } else if (replica == null) {
+                throw new StreamCorruptedException(String.format("Unknown replicated object %d", id));
+            }
+
+            int fieldCount = input.readVarInt();
+            for (int j = 0; j < fieldCount; j++) {
+                int field = input.readVarInt();
+                if (field < 0 || field >= replica.getFieldCount())
+                    throw new StreamCorruptedException(String.format("Invalid field index %d", field));
+                replica.readField(field, input);
+            }
+
+            updated.add(replica);
+            if (included != null) included.add(id);
+        }
+
+        int removedCount = input.readVarInt();
+        for (int i = 0; i < removedCount; i++) {
+            JServerReplicatedObject replica = connectionReplicas.remove(input.readVarInt());
+            if (replica != null) removed.add(replica);
+        }
+
+        if (included != null) {
+            Iterator<Map.Entry<Integer, JServerReplicatedObject>> iterator = connectionReplicas.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, JServerReplicatedObject> entry = iterator.next();
+                if (included.contains(entry.getKey())) continue;
+
+                removed.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        removed.forEach(listener::onReplicaRemoved);
+        updated.forEach(listener::onReplicaUpdated);
+        return new JServerReplicationAckPacket(update.version);
+    }
+
+    /**
+     * Records that a field of a registered object has changed.
+     *
+     * @param object Registered object.
+     * @param field  Index of the field.
+     */
+    synchronized void onFieldChanged(@NotNull JServerReplicatedObject object, int field) {
+        if (object.owner != this) return;
+
+        changedObjects.remove(object.version);
+        long changedVersion = ++version;
+        object.fieldVersions[field] = changedVersion;
+        object.version = changedVersion;
+        changedObjects.put(changedVersion, object);
+    }
+
+    /**
+     * Replication state of a single connection. Guarded by the replicator.
+     */
+    private static final class JServerReplicationBaseline {
+
+        /**
+         * Latest version the connection has acknowledged, or -1 if it has not acknowledged a snapshot yet.
+         */
+        private long acknowledged;
+
+        /**
+         * Version of the first update sent to the connection, which is always a snapshot, or -1 if nothing has been
+         * sent.
+         */
+        private long firstSent;
+
+        /**
+         * Version of the latest update sent to the connection, or -1 if nothing has been sent.
+         */
+        private long sent;
+        private int updatesSinceSnapshot;
+
+        JServerReplicationBaseline(int snapshotInterval) {
+            acknowledged = -1;
+            firstSent = -1;
+            sent = -1;
+            // The first update is always a snapshot.
+            updatesSinceSnapshot = snapshotInterval - 1;
+        }
+    }
+
+    /**
+     * Objects, fields and removals to include in an update.
+     */
+    private static final class JServerReplicationPlan {
+
+        private final boolean snapshot;
+        @NotNull
+        private final List<JServerReplicationEntry> entries;
+        @NotNull
+        private final int[] removed;
+
+        JServerReplicationPlan(boolean snapshot, @NotNull List<JServerReplicationEntry> entries, @NotNull int[] removed) {
+            this.snapshot = snapshot;
+            this.entries = entries;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Changed fields of a single object to include in an update.
+     */
+    private static final class JServerReplicationEntry {
+
+        @NotNull
+        private final JServerReplicatedObject object;
+        private final int id;
+
+        /**
+         * Type id of the object, or -1 if the receiving side already has it.
+         */
+        private final int typeId;
+        @NotNull
+        private final int[] fields;
+
+        JServerReplicationEntry(@NotNull JServerReplicatedObject object, int id, int typeId, @NotNull int[] fields) {
+            this.object = object;
+            this.id = id;
+            this.typeId = typeId;
+            this.fields = fields;
+        }
+    }
+}
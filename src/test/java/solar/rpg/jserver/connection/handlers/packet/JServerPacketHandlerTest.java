@@ -0,0 +1,372 @@
+package solar.rpg.jserver.connection.handlers.packet;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPool;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerPacketHandlerTest {
+
+    private static final int TEST_PORT = 65531;
+    private static final String DECODE_EVENT = "solar.rpg.jserver.PacketDecode";
+    private static final String DISPATCH_EVENT = "solar.rpg.jserver.PacketDispatch";
+    private static final String WRITE_EVENT = "solar.rpg.jserver.PacketWrite";
+
+    private final Logger testLogger = Logger.getLogger(JServerPacketHandlerTest.class.getName());
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final List<JServerPacketHandler> handlers = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (JServerPacketHandler handler : handlers)
+            if (!handler.isClosed()) handler.close();
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testReceivedPooledPacketCanBeRelayed() throws Exception {
+        JServerPacketPool hostPool = new JServerPacketPool(true);
+        hostPool.register(JTestMessagePacket.class, JTestMessagePacket::new);
+
+        // The host echoes every message without retaining it, as writePacket only borrows the reference.
+        JServerHost host = startHost((handler, packet) -> {
+            handler.writePacket(packet.getOriginAddress(), packet);
+            return CompletableFuture.completedFuture(null);
+        });
+        host.setPacketPool(hostPool);
+
+        BlockingQueue<JServerPacket> echoed = new LinkedBlockingQueue<>();
+        JServerClient client = startClient((handler, packet) -> {
+            echoed.add(packet.retain());
+            return CompletableFuture.completedFuture(null);
+        });
+
+        for (int i = 0; i < 5; i++)
+            client.writePacket(new JTestMessagePacket(i, "relay"));
+
+        for (int i = 0; i < 5; i++) {
+            JServerPacket packet = echoed.poll(5, TimeUnit.SECONDS);
+            assertNotNull(packet, "Expected every message to be echoed");
+            assertEquals(i, ((JTestMessagePacket) packet).sequence);
+        }
+
+        // Each message is released by the host once its handler completes, which may be after the echo arrives.
+        awaitCondition(() -> hostPool.getOutstandingCount() == 0);
+    }
+
+    @Test
+    void testInFlightPacketsAreBounded() throws Exception {
+        BlockingQueue<CompletableFuture<Void>> pending = new LinkedBlockingQueue<>();
+        JServerHost host = startHost((handler, packet) -> {
+            CompletableFuture<Void> handled = new CompletableFuture<>();
+            pending.add(handled);
+            return handled;
+        });
+        host.setMaxInFlightPackets(3);
+        host.setPacketOrdering(JServerPacketOrdering.PER_KEY);
+        JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+
+        for (int i = 0; i < 6; i++)
+            client.writePacket(new JTestMessagePacket(i, "key" + i));
+
+        // Reading pauses once three packets are being handled, and resumes as each of them completes.
+        List<CompletableFuture<Void>> handling = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            handling.add(pending.poll(5, TimeUnit.SECONDS));
+        assertFalse(handling.contains(null), "Expected three packets to be handled at once");
+        assertNull(pending.poll(200, TimeUnit.MILLISECONDS), "Expected reading to pause");
+
+        handling.get(0).complete(null);
+        CompletableFuture<Void> next = pending.poll(5, TimeUnit.SECONDS);
+        assertNotNull(next, "Expected reading to resume");
+        assertNull(pending.poll(200, TimeUnit.MILLISECONDS), "Expected reading to pause again");
+
+        next.complete(null);
+        handling.forEach(handled -> handled.complete(null));
+        for (int i = 0; i < 2; i++)
+            awaitNext(pending).complete(null);
+    }
+
+    @Test
+    void testPerKeyOrderingOnlyOrdersPacketsWithEqualKeys() throws Exception {
+        Map<Integer, CompletableFuture<Void>> blocked = new ConcurrentHashMap<>();
+        blocked.put(0, new CompletableFuture<>());
+        BlockingQueue<JTestMessagePacket> started = new LinkedBlockingQueue<>();
+        JServerHost host = startHost((handler, packet) -> {
+            JTestMessagePacket message = (JTestMessagePacket) packet.retain();
+            started.add(message);
+            return blocked.getOrDefault(message.sequence, CompletableFuture.completedFuture(null));
+        });
+        host.setMaxInFlightPackets(8);
+        host.setPacketOrdering(JServerPacketOrdering.PER_KEY);
+        JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+
+        client.writePacket(new JTestMessagePacket(0, "a"));
+        client.writePacket(new JTestMessagePacket(1, "a"));
+        client.writePacket(new JTestMessagePacket(2, "b"));
+        client.writePacket(new JTestMessagePacket(3, "a"));
+        client.writePacket(new JTestMessagePacket(4, "b"));
+
+        // Packets with key "b" overtake the packets with key "a" which are waiting for the first one.
+        assertEquals(0, awaitNext(started).sequence);
+        assertEquals(2, awaitNext(started).sequence);
+        assertEquals(4, awaitNext(started).sequence);
+        assertNull(started.poll(200, TimeUnit.MILLISECONDS));
+
+        blocked.get(0).complete(null);
+        assertEquals(1, awaitNext(started).sequence);
+        assertEquals(3, awaitNext(started).sequence);
+    }
+
+    @Test
+    void testUnencodablePacketIsRejectedByWriter() throws Exception {
+        BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+        startHost((handler, packet) -> {
+            received.add(packet);
+            return CompletableFuture.completedFuture(null);
+        });
+        JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+
+        // Packets are encoded while being written, so the error reaches the caller and the connection is unaffected.
+        assertThrows(IllegalArgumentException.class, () -> client.writePacket(new JTestUnserializablePacket()));
+        client.writePacket(new JTestMessagePacket(1, "after"));
+
+        JServerPacket packet = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(packet, "Expected the connection to keep working");
+        assertEquals(1, ((JTestMessagePacket) packet).sequence);
+        assertFalse(client.isClosed());
+    }
+
+    @Test
+    void testSlowStreamDoesNotHoldUpDefaultStream() throws Exception {
+        CompletableFuture<Void> streamHandled = new CompletableFuture<>();
+        BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+        JServerHost host = startHost((handler, packet) -> {
+            received.add(packet.retain());
+            return packet.getStreamId() != 0 ? streamHandled : CompletableFuture.completedFuture(null);
+        });
+        assertEquals(1, host.getMaxInFlightPackets());
+        JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+
+        // The stream packet is still being handled, but packets on the default stream are read regardless.
+        JServerStream stream = client.openStream(JServerPacketPriority.NORMAL);
+        stream.writePacket(new JTestMessagePacket(0, "stream"));
+        JServerPacket streamPacket = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(streamPacket);
+        assertEquals(stream.getId(), streamPacket.getStreamId());
+
+        client.writePacket(new JTestMessagePacket(1, "default"));
+        JServerPacket defaultPacket = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(defaultPacket, "Expected the default stream not to wait for the stream");
+        assertEquals(1, ((JTestMessagePacket) defaultPacket).sequence);
+
+        // Packets on the same stream still wait for each other.
+        stream.writePacket(new JTestMessagePacket(2, "stream"));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        streamHandled.complete(null);
+        JServerPacket nextStreamPacket = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(nextStreamPacket);
+        assertEquals(2, ((JTestMessagePacket) nextStreamPacket).sequence);
+    }
+
+    @Test
+    void testBlockingStreamHandlerDoesNotStopReading() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+        startHost((handler, packet) -> {
+            received.add(packet.retain());
+            if (packet.getStreamId() != 0) {
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+        JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+
+        try {
+            // The stream handler blocks without returning a stage, yet packets on the default stream are still read.
+            JServerStream stream = client.openStream(JServerPacketPriority.NORMAL);
+            stream.writePacket(new JTestMessagePacket(0, "stream"));
+            JServerPacket streamPacket = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(streamPacket);
+            assertEquals(stream.getId(), streamPacket.getStreamId());
+
+            client.writePacket(new JTestMessagePacket(1, "default"));
+            JServerPacket defaultPacket = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(defaultPacket, "Expected the default stream not to wait for the blocked handler");
+            assertEquals(1, ((JTestMessagePacket) defaultPacket).sequence);
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    void testFlightRecorderEventsAreRecorded() throws Exception {
+        Map<String, RecordedEvent> events = new ConcurrentHashMap<>();
+        try (RecordingStream recording = new RecordingStream()) {
+            // Heartbeats are recorded as well, so only the events of the test packet are kept.
+            for (String name : List.of(DECODE_EVENT, DISPATCH_EVENT, WRITE_EVENT)) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+                recording.onEvent(name, event -> {
+                    RecordedClass packetType = event.getClass("packetType");
+                    if (packetType != null && packetType.getName().equals(JTestMessagePacket.class.getName()))
+                        events.putIfAbsent(name, event);
+                });
+            }
+            recording.startAsync();
+
+            startHost((handler, packet) -> CompletableFuture.completedFuture(null));
+            JServerClient client = startClient((handler, packet) -> CompletableFuture.completedFuture(null));
+            client.writePacket(new JTestMessagePacket(1, "recorded"));
+
+            // Recorded events are streamed about once a second.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (events.size() < 3) {
+                assertTrue(System.nanoTime() < deadline, "Timed out waiting for events: " + events.keySet());
+                Thread.sleep(50);
+            }
+        }
+
+        RecordedEvent write = events.get(WRITE_EVENT);
+        int frameSize = write.getInt("size");
+        assertTrue(frameSize > 0 && frameSize < 64, "Unexpected frame size " + frameSize);
+        assertFalse(write.getBoolean("fragment"));
+        assertSaneQueueWait(write);
+
+        // The decoded payload is the frame body without the header.
+        int payloadSize = events.get(DECODE_EVENT).getInt("size");
+        assertTrue(payloadSize > 0 && payloadSize < frameSize, "Unexpected payload size " + payloadSize);
+
+        RecordedEvent dispatch = events.get(DISPATCH_EVENT);
+        assertFalse(dispatch.getBoolean("failed"));
+        assertSaneQueueWait(dispatch);
+    }
+
+    private static void assertSaneQueueWait(@NotNull RecordedEvent event) {
+        Duration queueWait = event.getDuration("queueWait");
+        assertFalse(queueWait.isNegative(), "Queue wait must not be negative");
+        assertTrue(queueWait.compareTo(Duration.ofSeconds(5)) < 0, "Queue wait is too long: " + queueWait);
+    }
+
+    private static void awaitCondition(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(10);
+        }
+    }
+
+    @NotNull
+    private static <T> T awaitNext(@NotNull BlockingQueue<T> queue) throws InterruptedException {
+        T next = queue.poll(5, TimeUnit.SECONDS);
+        assertNotNull(next, "Timed out waiting for the next element");
+        return next;
+    }
+
+    @NotNull
+    private JServerHost startHost(@NotNull JTestPacketListener listener) throws IOException {
+        JServerHost host = new JServerHost(InetAddress.getLoopbackAddress(), TEST_PORT, executor, testLogger) {
+            @Override
+            public void onNewConnection(@NotNull InetSocketAddress originAddress) {
+            }
+
+            @Override
+            public void onSocketClosed(@NotNull InetSocketAddress originAddress) {
+            }
+
+            @Override
+            public void onPacketReceived(@NotNull JServerPacket packet) {
+                throw new UnsupportedOperationException();
+            }
+
+            @NotNull
+            @Override
+            public CompletionStage<Void> onPacketReceivedAsync(@NotNull JServerPacket packet) {
+                return listener.onPacketReceived(this, packet);
+            }
+
+            @Nullable
+            @Override
+            public Object getOrderingKey(@NotNull JServerPacket packet) {
+                return packet instanceof JTestMessagePacket message ? message.key : null;
+            }
+        };
+        handlers.add(host);
+        return host;
+    }
+
+    @NotNull
+    private JServerClient startClient(@NotNull JTestPacketListener listener) throws IOException {
+        JServerClient client = new JServerClient(InetAddress.getLoopbackAddress(), TEST_PORT, executor, testLogger) {
+            @Override
+            public void onNewConnection(@NotNull InetSocketAddress originAddress) {
+            }
+
+            @Override
+            public void onSocketClosed(@NotNull InetSocketAddress originAddress) {
+            }
+
+            @Override
+            public void onPacketReceived(@NotNull JServerPacket packet) {
+                throw new UnsupportedOperationException();
+            }
+
+            @NotNull
+            @Override
+            public CompletionStage<Void> onPacketReceivedAsync(@NotNull JServerPacket packet) {
+                return listener.onPacketReceived(this, packet);
+            }
+        };
+        handlers.add(client);
+        client.tryConnect();
+        return client;
+    }
+
+    /**
+     * Packet without a codec which cannot be serialized either.
+     */
+    private static final class JTestUnserializablePacket extends JServerPacket {
+
+        @SuppressWarnings("unused")
+        private final Object state = new Object();
+    }
+
+    @FunctionalInterface
+    private interface JTestPacketListener {
+
+        @NotNull
+        CompletionStage<Void> onPacketReceived(@NotNull JServerPacketHandler handler, @NotNull JServerPacket packet);
+    }
+}
@@ -0,0 +1,25 @@
+package solar.rpg.jserver.connection.handlers.packet;
+
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
+@JServerPacketType(id = 200)
+public class JTestMessagePacket extends JServerPacket {
+
+    int sequence;
+    String key;
+
+    public JTestMessagePacket() {
+    }
+
+    JTestMessagePacket(int sequence, String key) {
+        this.sequence = sequence;
+        this.key = key;
+    }
+
+    @Override
+    protected void reset() {
+        sequence = 0;
+        key = null;
+    }
+}
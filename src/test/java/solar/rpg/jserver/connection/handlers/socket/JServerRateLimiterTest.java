@@ -0,0 +1,82 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerRateLimiterTest {
+
+    @Test
+    void testDropRejectsPacketsOverBurst() {
+        AtomicLong clock = new AtomicLong();
+        JServerRateLimiter limiter = new JServerRateLimiter(
+                new JServerRateLimit(1, 3, 0, 0, JServerRateLimitPolicy.DROP), clock::get);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.tryAcquire(1, 10));
+        assertFalse(limiter.tryAcquire(1, 10));
+        limiter.onPacketDropped();
+
+        // Fragments which do not complete a payload only take byte tokens.
+        assertTrue(limiter.tryAcquire(0, 10));
+
+        assertEquals(3, limiter.getAcceptedPackets());
+        assertEquals(40, limiter.getAcceptedBytes());
+        assertEquals(1, limiter.getDroppedPackets());
+        assertEquals(10, limiter.getDroppedBytes());
+        assertEquals(0, limiter.getReadDelayNanos());
+
+        // One second refills exactly one packet.
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire(1, 10));
+        assertFalse(limiter.tryAcquire(1, 10));
+    }
+
+    @Test
+    void testDelayAcceptsIntoDebt() {
+        AtomicLong clock = new AtomicLong();
+        JServerRateLimiter limiter = new JServerRateLimiter(
+                new JServerRateLimit(0, 0, 1000, 1000, JServerRateLimitPolicy.DELAY), clock::get);
+
+        assertTrue(limiter.tryAcquire(1, 1000));
+        assertTrue(limiter.tryAcquire(1, 1000));
+
+        // One second of debt, which shrinks as time passes.
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.getReadDelayNanos());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(750));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), limiter.getReadDelayNanos());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+        assertEquals(0, limiter.getReadDelayNanos());
+
+        assertEquals(2, limiter.getDelayedReads());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1250), limiter.getDelayedNanos());
+        assertEquals(0, limiter.getDroppedBytes());
+    }
+
+    @Test
+    void testChargeGoesIntoDebtAndHoldsBackLaterFrames() {
+        AtomicLong clock = new AtomicLong();
+        JServerRateLimiter limiter = new JServerRateLimiter(
+                new JServerRateLimit(1, 2, 0, 0, JServerRateLimitPolicy.DROP), clock::get);
+
+        assertTrue(limiter.charge(1, 10, true));
+        assertTrue(limiter.charge(1, 10, false));
+        assertFalse(limiter.charge(1, 10, true));
+        assertTrue(limiter.isInDebt());
+
+        // Frames which may be dropped are dropped until the debt has been refilled.
+        assertFalse(limiter.tryAcquire(1, 10));
+        assertEquals(2, limiter.getAcceptedPackets());
+        assertEquals(20, limiter.getAcceptedBytes());
+        assertEquals(20, limiter.getDroppedBytes());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertFalse(limiter.isInDebt());
+        assertFalse(limiter.tryAcquire(1, 10));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire(1, 10));
+    }
+}
@@ -0,0 +1,717 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import solar.rpg.jserver.connection.JServerConnectionContextType;
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+import solar.rpg.jserver.packet.codec.JServerPacketCodec;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+import solar.rpg.jserver.packet.codec.JServerPacketFrames;
+import solar.rpg.jserver.packet.codec.JServerPacketOutput;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerSocketHandlerTest {
+
+    private final Logger testLogger = Logger.getLogger(JServerSocketHandlerTest.class.getName());
+
+    /**
+     * Runs the writer task. It starts blocked, so packets can be queued before any of them are sent.
+     */
+    private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+    private final CountDownLatch writerGate = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        writerGate.countDown();
+        writerExecutor.shutdownNow();
+        assertTrue(writerExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testPriorityClassesAreSentInWeightedRoundRobinOrder() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+
+        for (int i = 0; i < 5; i++)
+            socketHandler.writePacket(new JTestBlobPacket(i, 1, JServerPacketPriority.BULK));
+        for (int i = 0; i < 10; i++)
+            socketHandler.writePacket(new JTestBlobPacket(i, 1, JServerPacketPriority.NORMAL));
+        for (int i = 0; i < 20; i++)
+            socketHandler.writePacket(new JTestBlobPacket(i, 1, JServerPacketPriority.CRITICAL));
+        awaitWriter();
+
+        // Each round, every priority class sends up to its weight in frames: 16 critical, 4 normal and 1 bulk.
+        StringBuilder expected = new StringBuilder();
+        expected.append("C".repeat(16)).append("NNNN").append("B");
+        expected.append("C".repeat(4)).append("NNNN").append("B");
+        expected.append("NN").append("B");
+        expected.append("B").append("B");
+
+        StringBuilder actual = new StringBuilder();
+        for (JTestFrame frame : readFrames(socket.getWrittenBytes()))
+            actual.append(frame.priority.name().charAt(0));
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    void testCriticalFramesAreFlushedImmediately() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+
+        socketHandler.writePacket(new JTestBlobPacket(0, 1, JServerPacketPriority.NORMAL));
+        socketHandler.writePacket(new JTestBlobPacket(1, 1, JServerPacketPriority.NORMAL));
+        socketHandler.writePacket(new JTestBlobPacket(2, 1, JServerPacketPriority.CRITICAL));
+        awaitWriter();
+
+        List<JTestFrame> frames = readFrames(socket.getWrittenBytes());
+        assertEquals(3, frames.size());
+        assertEquals(JServerPacketPriority.CRITICAL, frames.get(0).priority);
+
+        // The critical frame is flushed on its own, and the normal frames are flushed together once the queue is empty.
+        List<Integer> flushOffsets = socket.getFlushOffsets();
+        assertEquals(List.of(frames.get(0).end, frames.get(2).end), flushOffsets);
+    }
+
+    @Test
+    void testLargePayloadsAreFragmentedAndReassembled() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+
+        int largeSize = 2 * JServerPacketFrames.MAX_FRAGMENT_LENGTH + 100;
+        socketHandler.writePacket(new JTestBlobPacket(100, largeSize, JServerPacketPriority.BULK));
+        for (int i = 0; i < 6; i++)
+            socketHandler.writePacket(new JTestBlobPacket(i, 10, JServerPacketPriority.NORMAL));
+        awaitWriter();
+
+        // Normal packets are sent in between the fragments of the bulk payload.
+        List<JTestFrame> frames = readFrames(socket.getWrittenBytes());
+        List<String> kinds = new ArrayList<>();
+        for (JTestFrame frame : frames) {
+            kinds.add(frame.priority.name().charAt(0) + "" + frame.kind);
+            assertTrue(frame.length <= JServerPacketFrames.MAX_FRAGMENT_LENGTH + 1);
+        }
+        assertEquals(List.of("N0", "N0", "N0", "N0", "B1", "N0", "N0", "B1", "B2"), kinds);
+
+        // The receiving side reassembles the bulk payload from its fragments.
+        List<JTestBlobPacket> received = readPackets(socket.getWrittenBytes(), 7);
+        for (int i = 0; i < 6; i++)
+            assertEquals(i, received.get(i).sequence);
+        JTestBlobPacket large = received.get(6);
+        assertEquals(100, large.sequence);
+        assertArrayEquals(new JTestBlobPacket(100, largeSize, JServerPacketPriority.BULK).data, large.data);
+    }
+
+    @Test
+    void testBulkPacketsAreDroppedWhenSendQueueIsFull() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+        socketHandler.setSendQueueLimit(100, JServerSendQueuePolicy.DROP_BULK);
+
+        // A packet larger than the limit is still queued if nothing else is.
+        socketHandler.writePacket(new JTestBlobPacket(0, 150, JServerPacketPriority.BULK));
+        long queuedBytes = socketHandler.getQueuedBytes();
+        assertTrue(queuedBytes > 150);
+
+        socketHandler.writePacket(new JTestBlobPacket(1, 10, JServerPacketPriority.BULK));
+        assertEquals(1, socketHandler.getDroppedPacketCount());
+        assertEquals(queuedBytes, socketHandler.getQueuedBytes());
+        assertFalse(socket.isClosed());
+
+        // Packets of higher priority classes are not dropped, so the connection is closed instead.
+        socketHandler.writePacket(new JTestBlobPacket(2, 10, JServerPacketPriority.NORMAL));
+        assertTrue(socket.isClosed());
+    }
+
+    @Test
+    void testConnectionIsClosedWhenSendQueueIsFull() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+        socketHandler.setSendQueueLimit(100, JServerSendQueuePolicy.DISCONNECT);
+
+        socketHandler.writePacket(new JTestBlobPacket(0, 60, JServerPacketPriority.NORMAL));
+        assertFalse(socket.isClosed());
+        socketHandler.writePacket(new JTestBlobPacket(1, 60, JServerPacketPriority.NORMAL));
+        assertTrue(socket.isClosed());
+        assertThrows(IllegalStateException.class,
+                     () -> socketHandler.writePacket(new JTestBlobPacket(2, 1, JServerPacketPriority.NORMAL)));
+    }
+
+    @Test
+    void testWriterWaitsForRoomInSendQueue() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+        socketHandler.setSendQueueLimit(100, JServerSendQueuePolicy.BLOCK);
+
+        socketHandler.writePacket(new JTestBlobPacket(0, 60, JServerPacketPriority.NORMAL));
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(
+                () -> socketHandler.writePacket(new JTestBlobPacket(1, 60, JServerPacketPriority.NORMAL)));
+        Thread.sleep(200);
+        assertFalse(blocked.isDone(), "Expected the writing thread to wait while the send queue is full");
+
+        writerGate.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        awaitWriter();
+        assertEquals(2, readFrames(socket.getWrittenBytes()).size());
+        assertEquals(0, socketHandler.getQueuedBytes());
+    }
+
+    @Test
+    void testConnectionIsClosedWhenSendQueueDoesNotDrainInTime() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+        socketHandler.setSendQueueLimit(100, JServerSendQueuePolicy.BLOCK);
+        socketHandler.setMaxSendQueueWait(100);
+
+        // The writer task cannot run, as if every thread of the executor were waiting to write.
+        socketHandler.writePacket(new JTestBlobPacket(0, 60, JServerPacketPriority.NORMAL));
+        assertFalse(socket.isClosed());
+        socketHandler.writePacket(new JTestBlobPacket(1, 60, JServerPacketPriority.NORMAL));
+        assertTrue(socket.isClosed());
+    }
+
+    @Test
+    void testWriterTaskFailureClosesConnection() throws Exception {
+        JTestSocket socket = new JTestSocket();
+        JServerSocketHandler socketHandler = startWriter(socket);
+        socket.failWrites();
+
+        socketHandler.writePacket(new JTestBlobPacket(0, 1, JServerPacketPriority.NORMAL));
+        awaitWriter();
+
+        assertTrue(socket.isClosed());
+        assertEquals(0, socketHandler.getQueuedBytes());
+        assertThrows(IllegalStateException.class,
+                     () -> socketHandler.writePacket(new JTestBlobPacket(1, 1, JServerPacketPriority.NORMAL)));
+    }
+
+    @Test
+    void testRemoteStreamsOverLimitAreClosed() throws Exception {
+        ByteArrayOutputStream peer = new ByteArrayOutputStream();
+        for (int streamId = 1; streamId <= 5; streamId += 2)
+            writePeerFrame(peer, streamId, new JTestBlobPacket(streamId, 1, JServerPacketPriority.NORMAL));
+        // Frames sent on a stream which was closed for being over the limit are discarded.
+        writePeerFrame(peer, 5, new JTestBlobPacket(7, 1, JServerPacketPriority.NORMAL));
+        writePeerFrame(peer, 0, new JTestBlobPacket(9, 1, JServerPacketPriority.NORMAL));
+
+        JTestSocket socket = new JTestSocket(peer.toByteArray());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    socket,
+                    executor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.HOST,
+                    testLogger);
+            socketHandler.setMaxRemoteStreams(2);
+            List<Integer> openedStreams = Collections.synchronizedList(new ArrayList<>());
+            socketHandler.setStreamListener(new JServerStreamListener() {
+                @Override
+                public void onStreamOpened(int streamId, @NotNull JServerPacketPriority priority) {
+                    openedStreams.add(streamId);
+                }
+
+                @Override
+                public void onStreamClosed(int streamId) {
+                }
+            });
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            socketHandler.subscribe(new JTestSubscriber(received));
+
+            List<Integer> sequences = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                JServerPacket packet = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(packet, "Expected packets within the limit to be received");
+                sequences.add(((JTestBlobPacket) packet).sequence);
+            }
+            assertEquals(List.of(1, 3, 9), sequences);
+            assertEquals(List.of(1, 3), openedStreams);
+
+            // The other party is told that the stream over the limit has been closed.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            List<JTestFrame> frames;
+            while ((frames = readFrames(socket.getWrittenBytes())).isEmpty()) {
+                assertTrue(System.nanoTime() < deadline, "Timed out waiting for the close frame");
+                Thread.sleep(10);
+            }
+            assertEquals(1, frames.size());
+            assertEquals(JServerPacketFrames.KIND_CONTROL, frames.get(0).kind);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testControlFramesAreRateLimited() throws Exception {
+        // Window updates for a stream which was never opened are ignored, but are still charged to the rate limit.
+        ByteArrayOutputStream peer = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++)
+            writePeerControl(peer, 1, JServerPacketFrames.CONTROL_WINDOW_UPDATE, 1024);
+        writePeerFrame(peer, 0, new JTestBlobPacket(0, 1, JServerPacketPriority.NORMAL));
+
+        JTestSocket socket = new JTestSocket(peer.toByteArray());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    socket,
+                    executor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.HOST,
+                    testLogger);
+            // The clock never advances, so the buckets are never refilled.
+            socketHandler.setRateLimit(new JServerRateLimit(1, 3, 0, 0, JServerRateLimitPolicy.DISCONNECT), () -> 0L);
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            socketHandler.subscribe(new JTestSubscriber(received));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!socket.isClosed()) {
+                assertTrue(System.nanoTime() < deadline, "Timed out waiting for the connection to be closed");
+                Thread.sleep(10);
+            }
+            assertTrue(received.isEmpty(), "Expected the connection to be closed before the packet was read");
+            JServerRateLimiter limiter = socketHandler.getRateLimiter();
+            assertNotNull(limiter);
+            assertEquals(4, limiter.getAcceptedPackets());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testDelayedReadingWaitsBetweenControlFrames() throws Exception {
+        // Control frames are never published, so the delay must be waited out while reading them, not only per packet.
+        ByteArrayOutputStream peer = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++)
+            writePeerControl(peer, 1, JServerPacketFrames.CONTROL_WINDOW_UPDATE, 1024);
+        writePeerFrame(peer, 0, new JTestBlobPacket(0, 1, JServerPacketPriority.NORMAL));
+
+        JTestSocket socket = new JTestSocket(peer.toByteArray());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    socket,
+                    executor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.HOST,
+                    testLogger);
+            // The clock only advances by the delays which reading waits out, so exactly one packet is refilled for
+            // each delay, however long the reading task takes to run.
+            socketHandler.setRateLimit(new JServerRateLimit(20, 1, 0, 0, JServerRateLimitPolicy.DELAY), () -> {
+                JServerRateLimiter limiter = socketHandler.getRateLimiter();
+                return limiter != null ? limiter.getDelayedNanos() : 0;
+            });
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            socketHandler.subscribe(new JTestSubscriber(received));
+
+            assertNotNull(received.poll(5, TimeUnit.SECONDS), "Timed out waiting for the packet");
+            JServerRateLimiter limiter = socketHandler.getRateLimiter();
+            assertNotNull(limiter);
+            // Every control frame after the first goes into debt. Reading may already be delayed after the packet.
+            assertTrue(limiter.getDelayedReads() >= 4,
+                       String.format("Expected reading to be delayed between frames, but it was delayed %d times",
+                                     limiter.getDelayedReads()));
+            assertEquals(6, limiter.getAcceptedPackets());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testMalformedFrameClosesConnection() throws Exception {
+        // The packet id is not assigned to any codec, so nothing after it can be trusted.
+        ByteArrayOutputStream peer = new ByteArrayOutputStream();
+        JServerPacketOutput malformed = new JServerPacketOutput(JServerPacketCodecRegistry.getDefault());
+        malformed.writeByte(JServerPacketFrames.header(
+                JServerPacketFrames.KIND_COMPLETE,
+                JServerPacketPriority.NORMAL,
+                JServerPacketFrames.DEFAULT_STREAM_ID));
+        malformed.writeVarInt(101);
+        JServerPacketFrames.writeFrame(peer, malformed.getBuffer(), 0, malformed.size());
+        writePeerFrame(peer, 0, new JTestBlobPacket(0, 1, JServerPacketPriority.NORMAL));
+
+        // The socket stays open after the frames have been read, so it is only closed because of the malformed one.
+        PipedOutputStream pipe = new PipedOutputStream();
+        JTestSocket socket = new JTestSocket(new PipedInputStream(pipe, 1024));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    socket,
+                    executor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.HOST,
+                    testLogger);
+            socketHandler.subscribe(new JTestSubscriber(received));
+            pipe.write(peer.toByteArray());
+            pipe.flush();
+
+            awaitCondition(socket::isClosed);
+            assertTrue(received.isEmpty());
+        } finally {
+            pipe.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testStreamWindowIsExhaustedAndRefilled() throws Exception {
+        PipedOutputStream peer = new PipedOutputStream();
+        JTestSocket socket = new JTestSocket(new PipedInputStream(peer, 1024));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            JServerSocketHandler socketHandler = startPeer(socket, executor, null);
+            int streamId = socketHandler.openStream(JServerPacketPriority.NORMAL);
+            int packetSize = 100 * 1024;
+            for (int i = 0; i < 5; i++)
+                socketHandler.writePacket(streamId, new JTestBlobPacket(i, packetSize, JServerPacketPriority.NORMAL));
+
+            // Sending stops once the initial window has been used up, which may be overshot by at most one fragment.
+            awaitCondition(() -> streamPayloadBytes(socket) >= JServerPacketFrames.INITIAL_STREAM_WINDOW);
+            Thread.sleep(100);
+            int sent = streamPayloadBytes(socket);
+            assertTrue(sent < JServerPacketFrames.INITIAL_STREAM_WINDOW + JServerPacketFrames.MAX_FRAGMENT_LENGTH);
+            assertTrue(socketHandler.getQueuedBytes() > 0);
+
+            // Granting more window lets the rest through.
+            writePeerControl(peer, streamId, JServerPacketFrames.CONTROL_WINDOW_UPDATE, 1024 * 1024);
+            awaitCondition(() -> socketHandler.getQueuedBytes() == 0);
+            awaitCondition(() -> streamPayloadBytes(socket) > 5 * packetSize);
+        } finally {
+            peer.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testStreamClosedByPeerDiscardsQueuedPackets() throws Exception {
+        PipedOutputStream peer = new PipedOutputStream();
+        JTestSocket socket = new JTestSocket(new PipedInputStream(peer, 1024));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Integer> closedStreams = Collections.synchronizedList(new ArrayList<>());
+            JServerSocketHandler socketHandler = startPeer(socket, executor, closedStreams);
+            int streamId = socketHandler.openStream(JServerPacketPriority.NORMAL);
+            for (int i = 0; i < 5; i++)
+                socketHandler.writePacket(streamId, new JTestBlobPacket(i, 100 * 1024, JServerPacketPriority.NORMAL));
+            awaitCondition(() -> streamPayloadBytes(socket) >= JServerPacketFrames.INITIAL_STREAM_WINDOW);
+
+            // Everything still queued, including the rest of the payload being sent, is discarded.
+            writePeerControl(peer, streamId, JServerPacketFrames.CONTROL_CLOSE_STREAM, 0);
+            awaitCondition(() -> closedStreams.contains(streamId));
+            awaitCondition(() -> socketHandler.getQueuedBytes() == 0);
+            assertThrows(IllegalArgumentException.class,
+                         () -> socketHandler.writePacket(
+                                 streamId,
+                                 new JTestBlobPacket(5, 1, JServerPacketPriority.NORMAL)));
+
+            // The other party closed the stream, so it is not told again.
+            Thread.sleep(100);
+            for (JTestFrame frame : readFrames(socket.getWrittenBytes()))
+                assertNotEquals(JServerPacketFrames.KIND_CONTROL, frame.kind);
+        } finally {
+            peer.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFramesAfterStreamIsClosedAreDiscarded() throws Exception {
+        ByteArrayOutputStream peer = new ByteArrayOutputStream();
+        writePeerFrame(peer, 1, new JTestBlobPacket(1, 1, JServerPacketPriority.NORMAL));
+        writePeerControl(peer, 1, JServerPacketFrames.CONTROL_CLOSE_STREAM, 0);
+        writePeerFrame(peer, 1, new JTestBlobPacket(2, 1, JServerPacketPriority.NORMAL));
+        writePeerFrame(peer, 0, new JTestBlobPacket(3, 1, JServerPacketPriority.NORMAL));
+
+        JTestSocket socket = new JTestSocket(peer.toByteArray());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Integer> closedStreams = Collections.synchronizedList(new ArrayList<>());
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    socket,
+                    executor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.HOST,
+                    testLogger);
+            socketHandler.setStreamListener(new JTestStreamListener(closedStreams));
+            socketHandler.subscribe(new JTestSubscriber(received));
+
+            JServerPacket first = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals(1, ((JTestBlobPacket) first).sequence);
+            assertEquals(1, first.getStreamId());
+            JServerPacket second = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertEquals(3, ((JTestBlobPacket) second).sequence);
+            assertEquals(List.of(1), closedStreams);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a socket handler which reads whatever the test writes as the other party.
+     */
+    @NotNull
+    private JServerSocketHandler startPeer(
+            @NotNull JTestSocket socket,
+            @NotNull ExecutorService executor,
+            @Nullable List<Integer> closedStreams) throws IOException {
+        JServerSocketHandler socketHandler = new JServerSocketHandler(
+                socket,
+                executor,
+                JServerPacketCodecRegistry.getDefault(),
+                JServerConnectionContextType.HOST,
+                testLogger);
+        socketHandler.setStreamListener(new JTestStreamListener(
+                closedStreams != null ? closedStreams : new ArrayList<>()));
+        socketHandler.subscribe(new JTestSubscriber(new LinkedBlockingQueue<>()));
+        return socketHandler;
+    }
+
+    /**
+     * @return Number of payload bytes written on streams other than the default stream.
+     */
+    private static int streamPayloadBytes(@NotNull JTestSocket socket) {
+        try {
+            int bytes = 0;
+            for (JTestFrame frame : readFrames(socket.getWrittenBytes()))
+                if (frame.kind != JServerPacketFrames.KIND_CONTROL) bytes += frame.length - 2;
+            return bytes;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void awaitCondition(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Writes a control frame, as the other party would.
+     */
+    private static void writePeerControl(
+            @NotNull OutputStream peer,
+            int streamId,
+            int type,
+            int increment) throws IOException {
+        JServerPacketOutput control = new JServerPacketOutput(JServerPacketCodecRegistry.getDefault());
+        control.writeByte(JServerPacketFrames.header(
+                JServerPacketFrames.KIND_CONTROL,
+                JServerPacketPriority.CRITICAL,
+                streamId));
+        control.writeVarInt(streamId);
+        control.writeByte(type);
+        if (type == JServerPacketFrames.CONTROL_WINDOW_UPDATE) control.writeVarInt(increment);
+        JServerPacketFrames.writeFrame(peer, control.getBuffer(), 0, control.size());
+        peer.flush();
+    }
+
+    /**
+     * Writes a frame containing a complete packet, as the other party would.
+     */
+    private static void writePeerFrame(
+            @NotNull ByteArrayOutputStream peer,
+            int streamId,
+            @NotNull JServerPacket packet) throws IOException {
+        JServerPacketCodecRegistry registry = JServerPacketCodecRegistry.getDefault();
+        @SuppressWarnings("unchecked")
+        JServerPacketCodec<JServerPacket> codec = (JServerPacketCodec<JServerPacket>) registry.getCodec(packet.getClass());
+        assertNotNull(codec);
+
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        for (int i = 0; i < JServerPacketFrames.headerLength(streamId); i++)
+            output.writeByte(0);
+        output.writeVarInt(codec.getPacketId());
+        codec.encode(packet, output);
+        JServerPacketFrames.writeHeader(
+                output.getBuffer(),
+                0,
+                JServerPacketFrames.KIND_COMPLETE,
+                packet.getPriority(),
+                streamId);
+        JServerPacketFrames.writeFrame(peer, output.getBuffer(), 0, output.size());
+    }
+
+    /**
+     * Creates a socket handler whose writer task does not run until {@link #awaitWriter()} is called.
+     */
+    @NotNull
+    private JServerSocketHandler startWriter(@NotNull JTestSocket socket) throws IOException {
+        writerExecutor.execute(() -> {
+            try {
+                writerGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        JServerSocketHandler socketHandler = new JServerSocketHandler(
+                socket,
+                writerExecutor,
+                JServerPacketCodecRegistry.getDefault(),
+                JServerConnectionContextType.HOST,
+                testLogger);
+        socketHandler.subscribe(new JTestSubscriber(null));
+        return socketHandler;
+    }
+
+    /**
+     * Lets the writer task run, and waits until it has sent everything queued.
+     */
+    private void awaitWriter() throws Exception {
+        writerGate.countDown();
+        writerExecutor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @NotNull
+    private List<JTestBlobPacket> readPackets(@NotNull byte[] bytes, int count) throws Exception {
+        ExecutorService readerExecutor = Executors.newSingleThreadExecutor();
+        try {
+            JServerSocketHandler socketHandler = new JServerSocketHandler(
+                    new JTestSocket(bytes),
+                    readerExecutor,
+                    JServerPacketCodecRegistry.getDefault(),
+                    JServerConnectionContextType.CLIENT,
+                    testLogger);
+            BlockingQueue<JServerPacket> received = new LinkedBlockingQueue<>();
+            socketHandler.subscribe(new JTestSubscriber(received));
+
+            List<JTestBlobPacket> packets = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                JServerPacket packet = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(packet, "Expected every packet to be received");
+                packets.add((JTestBlobPacket) packet);
+            }
+            return packets;
+        } finally {
+            readerExecutor.shutdownNow();
+        }
+    }
+
+    @NotNull
+    private static List<JTestFrame> readFrames(@NotNull byte[] bytes) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        List<JTestFrame> frames = new ArrayList<>();
+        while (input.available() > 0) {
+            int length = JServerPacketFrames.readFrameLength(input);
+            byte[] body = input.readNBytes(length);
+            assertEquals(length, body.length);
+
+            int header = body[0] & 0xFF;
+            frames.add(new JTestFrame(
+                    JServerPacketFrames.getKind(header),
+                    JServerPacketFrames.getPriority(header),
+                    length,
+                    bytes.length - input.available()));
+        }
+        return frames;
+    }
+
+    private static final class JTestFrame {
+
+        private final int kind;
+        @NotNull
+        private final JServerPacketPriority priority;
+        private final int length;
+
+        /**
+         * Offset just past this frame in the written bytes.
+         */
+        private final int end;
+
+        JTestFrame(int kind, @NotNull JServerPacketPriority priority, int length, int end) {
+            this.kind = kind;
+            this.priority = priority;
+            this.length = length;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Stream listener which records the streams closed by the other party.
+     */
+    private static final class JTestStreamListener implements JServerStreamListener {
+
+        @NotNull
+        private final List<Integer> closedStreams;
+
+        JTestStreamListener(@NotNull List<Integer> closedStreams) {
+            this.closedStreams = closedStreams;
+        }
+
+        @Override
+        public void onStreamOpened(int streamId, @NotNull JServerPacketPriority priority) {
+        }
+
+        @Override
+        public void onStreamClosed(int streamId) {
+            closedStreams.add(streamId);
+        }
+    }
+
+    /**
+     * Subscriber which requests packets one at a time, or none at all if it has nowhere to put them.
+     */
+    private static final class JTestSubscriber implements Subscriber<JServerPacket> {
+
+        @Nullable
+        private final BlockingQueue<JServerPacket> received;
+        @Nullable
+        private Subscription subscription;
+
+        JTestSubscriber(@Nullable BlockingQueue<JServerPacket> received) {
+            this.received = received;
+        }
+
+        @Override
+        public void onSubscribe(@NotNull Subscription subscription) {
+            this.subscription = subscription;
+            if (received != null) subscription.request(1);
+        }
+
+        @Override
+        public void onNext(@NotNull JServerPacket packet) {
+            assert received != null && subscription != null;
+            received.add(packet);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(@NotNull Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+import solar.rpg.jserver.packet.JServerPacket;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+import solar.rpg.jserver.packet.codec.JServerPacketType;
+
+@JServerPacketType(id = 201)
+public class JTestBlobPacket extends JServerPacket {
+
+    int sequence;
+    byte[] data;
+    transient JServerPacketPriority priority = JServerPacketPriority.NORMAL;
+
+    public JTestBlobPacket() {
+    }
+
+    JTestBlobPacket(int sequence, int size, @NotNull JServerPacketPriority priority) {
+        this.sequence = sequence;
+        this.priority = priority;
+        data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (sequence + i);
+    }
+
+    @NotNull
+    @Override
+    public JServerPacketPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    protected void reset() {
+        sequence = 0;
+        data = null;
+        priority = JServerPacketPriority.NORMAL;
+    }
+}
@@ -0,0 +1,118 @@
+package solar.rpg.jserver.connection.handlers.socket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Socket which reads from a given stream and records everything written to it, along with where each flush happened.
+ */
+final class JTestSocket extends Socket {
+
+    @NotNull
+    private final InputStream input;
+    @NotNull
+    private final ByteArrayOutputStream written;
+    @NotNull
+    private final List<Integer> flushOffsets;
+    @NotNull
+    private final InetSocketAddress remoteAddress;
+    private volatile boolean failWrites;
+    private volatile boolean closed;
+
+    JTestSocket(@NotNull InputStream input) {
+        this.input = input;
+        written = new ByteArrayOutputStream();
+        flushOffsets = new ArrayList<>();
+        remoteAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        failWrites = false;
+        closed = false;
+    }
+
+    JTestSocket(@NotNull byte[] received) {
+        this(new ByteArrayInputStream(received));
+    }
+
+    JTestSocket() {
+        this(new byte[0]);
+    }
+
+    /**
+     * Makes every later write throw an unchecked exception, as a broken output stream implementation might.
+     */
+    void failWrites() {
+        failWrites = true;
+    }
+
+    @NotNull
+    synchronized byte[] getWrittenBytes() {
+        return written.toByteArray();
+    }
+
+    /**
+     * @return Number of bytes which had been written when each flush happened.
+     */
+    @NotNull
+    synchronized List<Integer> getFlushOffsets() {
+        return new ArrayList<>(flushOffsets);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(@NotNull byte[] bytes, int offset, int length) {
+                if (failWrites) throw new IllegalStateException("Broken output stream");
+                synchronized (JTestSocket.this) {
+                    written.write(bytes, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() {
+                synchronized (JTestSocket.this) {
+                    flushOffsets.add(written.size());
+                }
+            }
+        };
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,206 @@
+package solar.rpg.jserver.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solar.rpg.jserver.packet.JServerPacketPriority;
+import solar.rpg.jserver.packet.codec.JServerPacketFrames;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerTrafficJournalTest {
+
+    private final Logger testLogger = Logger.getLogger(JServerTrafficJournalTest.class.getName());
+
+    @TempDir
+    Path journalDirectory;
+
+    @Test
+    void testRecordsAreReadBackAcrossSegments() throws Exception {
+        try (JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 128, testLogger)) {
+            for (int i = 0; i < 20; i++) {
+                // Frames are discarded if the next segment is not ready soon after it is needed.
+                awaitNextSegment(journal);
+                byte[] frame = new byte[]{(byte) i, 1, 2, 3};
+                journal.append(i % 3, i % 2 == 0 ? JServerTrafficDirection.INBOUND : JServerTrafficDirection.OUTBOUND,
+                               frame, 0, frame.length);
+            }
+            assertEquals(0, journal.getDroppedRecords());
+        }
+
+        try (Stream<Path> segments = Files.list(journalDirectory)) {
+            assertTrue(segments.count() > 1, "Expected journal to roll over to new segments");
+        }
+
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            long previousTimestamp = Long.MIN_VALUE;
+            for (int i = 0; i < 20; i++) {
+                JServerTrafficRecord record = reader.next();
+                assertNotNull(record);
+                assertEquals(i % 3, record.getConnectionId());
+                assertEquals(i % 2 == 0 ? JServerTrafficDirection.INBOUND : JServerTrafficDirection.OUTBOUND,
+                             record.getDirection());
+                assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, record.getFrame());
+                assertTrue(record.getTimestampNanos() >= previousTimestamp);
+                previousTimestamp = record.getTimestampNanos();
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testConnectionCloseIsRecorded() throws IOException {
+        try (JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 128, testLogger)) {
+            journal.append(7, JServerTrafficDirection.INBOUND, new byte[]{1, 2}, 0, 2);
+            journal.appendClose(7, JServerTrafficDirection.INBOUND);
+        }
+
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            JServerTrafficRecord frame = reader.next();
+            assertNotNull(frame);
+            assertFalse(frame.isClose());
+
+            JServerTrafficRecord close = reader.next();
+            assertNotNull(close);
+            assertTrue(close.isClose());
+            assertEquals(7, close.getConnectionId());
+            assertEquals(JServerTrafficDirection.INBOUND, close.getDirection());
+            assertEquals(0, close.getFrame().length);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testOversizedAndClosedFramesAreDiscarded() throws IOException {
+        JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 128, testLogger);
+        journal.append(1, JServerTrafficDirection.INBOUND, new byte[200], 0, 200);
+        journal.close();
+        journal.append(1, JServerTrafficDirection.INBOUND, new byte[4], 0, 4);
+
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testDiscardedFramesAreMarkedByGap() throws IOException {
+        try (JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 128, testLogger)) {
+            journal.append(1, JServerTrafficDirection.INBOUND, new byte[200], 0, 200);
+            journal.append(1, JServerTrafficDirection.INBOUND, new byte[]{1}, 0, 1);
+            assertEquals(1, journal.getDroppedRecords());
+        }
+
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            JServerTrafficRecord gap = reader.next();
+            assertNotNull(gap);
+            assertTrue(gap.isGap());
+            assertEquals(1, gap.getDiscardedFrames());
+
+            JServerTrafficRecord frame = reader.next();
+            assertNotNull(frame);
+            assertFalse(frame.isGap());
+            assertArrayEquals(new byte[]{1}, frame.getFrame());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testConcurrentAppendsAreAllRecorded() throws Exception {
+        int threads = 4, frames = 500;
+        try (JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 1024 * 1024, testLogger)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int connectionId = t;
+                writers.add(new Thread(() -> {
+                    for (int i = 0; i < frames; i++) {
+                        byte[] frame = ByteBuffer.allocate(Integer.BYTES).putInt(i).array();
+                        journal.append(connectionId, JServerTrafficDirection.OUTBOUND, frame, 0, frame.length);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers)
+                writer.join();
+            assertEquals(0, journal.getDroppedRecords());
+        }
+
+        // Frames of different connections may be interleaved, but those of each connection are in order.
+        int[] next = new int[threads];
+        try (JServerTrafficJournalReader reader = new JServerTrafficJournalReader(journalDirectory)) {
+            JServerTrafficRecord record;
+            while ((record = reader.next()) != null)
+                assertEquals(next[record.getConnectionId()]++, ByteBuffer.wrap(record.getFrame()).getInt());
+        }
+        for (int count : next)
+            assertEquals(frames, count);
+    }
+
+    @Test
+    void testFramesOnStreamsOfDrivenPartyAreNotReplayed() throws Exception {
+        // Stream 1 was opened by the client, stream 2 by the host which recorded the journal.
+        byte[] defaultFrame = frame(JServerPacketFrames.KIND_COMPLETE, JServerPacketFrames.DEFAULT_STREAM_ID, 7);
+        byte[] clientStreamFrame = frame(JServerPacketFrames.KIND_COMPLETE, 1, 8);
+        byte[] hostStreamFrame = frame(JServerPacketFrames.KIND_COMPLETE, 2, 9);
+        byte[] hostStreamClose = frame(JServerPacketFrames.KIND_CONTROL, 2, JServerPacketFrames.CONTROL_CLOSE_STREAM);
+        try (JServerTrafficJournal journal = new JServerTrafficJournal(journalDirectory, 4096, testLogger)) {
+            for (byte[] frame : List.of(defaultFrame, hostStreamFrame, hostStreamClose, clientStreamFrame))
+                journal.append(3, JServerTrafficDirection.INBOUND, frame, 0, frame.length);
+            journal.appendClose(3, JServerTrafficDirection.INBOUND);
+        }
+
+        List<byte[]> received = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread host = new Thread(() -> {
+                try (Socket socket = serverSocket.accept();
+                     DataInputStream inputStream = new DataInputStream(socket.getInputStream())) {
+                    while (true) {
+                        byte[] frame = new byte[JServerPacketFrames.readFrameLength(inputStream)];
+                        inputStream.readFully(frame);
+                        received.add(frame);
+                    }
+                } catch (IOException ignored) {
+                    // The replayer closed the connection.
+                }
+            });
+            host.start();
+
+            new JServerTrafficReplayer(journalDirectory, JServerTrafficDirection.INBOUND, 0, testLogger)
+                    .replayToHost((InetSocketAddress) serverSocket.getLocalSocketAddress());
+            host.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(host.isAlive());
+        }
+
+        assertEquals(2, received.size());
+        assertArrayEquals(defaultFrame, received.get(0));
+        assertArrayEquals(clientStreamFrame, received.get(1));
+    }
+
+    private static byte[] frame(int kind, int streamId, int payload) {
+        byte[] frame = new byte[JServerPacketFrames.headerLength(streamId) + 1];
+        JServerPacketFrames.writeHeader(frame, 0, kind, JServerPacketPriority.NORMAL, streamId);
+        frame[frame.length - 1] = (byte) payload;
+        return frame;
+    }
+
+    private static void awaitNextSegment(JServerTrafficJournal journal) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!journal.isNextSegmentReady()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the next segment");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package solar.rpg.jserver.packet;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerPacketPoolTest {
+
+    private final Logger testLogger = Logger.getLogger(JServerPacketPoolTest.class.getName());
+
+    @Test
+    void testBorrowReleaseReusesInstance() {
+        JServerPacketPool pool = new JServerPacketPool(true);
+        pool.register(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+
+        JServerPacketHeartbeat first = pool.borrow(JServerPacketHeartbeat.class);
+        assertTrue(first.isPooled());
+        assertTrue(first.release());
+
+        JServerPacketHeartbeat second = pool.borrow(JServerPacketHeartbeat.class);
+        assertSame(first, second);
+        assertTrue(second.release());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    void testRetainDelaysRecycling() {
+        JServerPacketPool pool = new JServerPacketPool(true);
+        pool.register(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+
+        JServerPacketHeartbeat packet = pool.borrow(JServerPacketHeartbeat.class);
+        packet.retain();
+        assertFalse(packet.release());
+        assertEquals(1, pool.getOutstandingCount());
+        assertTrue(packet.release());
+        assertThrows(IllegalStateException.class, packet::release);
+        assertThrows(IllegalStateException.class, packet::retain);
+    }
+
+    @Test
+    void testUnpooledPacketsAreIgnored() {
+        JServerPacketPool pool = new JServerPacketPool(true);
+        JServerPacketHeartbeat packet = new JServerPacketHeartbeat();
+
+        assertFalse(pool.adopt(packet));
+        assertFalse(packet.isPooled());
+        assertSame(packet, packet.retain());
+        assertFalse(packet.release());
+    }
+
+    @Test
+    void testLeaksAreReported() {
+        JServerPacketPool pool = new JServerPacketPool(true);
+        pool.register(JServerPacketHeartbeat.class, JServerPacketHeartbeat::new);
+
+        pool.borrow(JServerPacketHeartbeat.class);
+        JServerPacketHeartbeat adopted = new JServerPacketHeartbeat();
+        assertTrue(pool.adopt(adopted));
+
+        assertEquals(2, pool.reportLeaks(testLogger));
+        adopted.release();
+        assertEquals(1, pool.reportLeaks(testLogger));
+    }
+}
@@ -0,0 +1,232 @@
+package solar.rpg.jserver.packet.codec;
+
+import org.junit.jupiter.api.Test;
+import solar.rpg.jserver.packet.JServerPacketHeartbeat;
+import solar.rpg.jserver.packet.JServerPacketPool;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerPacketCodecTest {
+
+    private final JServerPacketCodecRegistry registry =
+            JServerPacketCodecRegistry.load(JServerPacketCodecTest.class.getClassLoader());
+
+    @Test
+    void testGeneratedCodecsAreDiscovered() {
+        assertNotNull(registry.getCodec(JServerPacketHeartbeat.class));
+        assertSame(registry.getCodec(JTestPacket.class), registry.getCodec(100));
+        assertNull(registry.getCodec(101));
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        JTestPacket packet = new JTestPacket();
+        packet.flag = true;
+        packet.b = -3;
+        packet.s = 1234;
+        packet.c = '\u20AC';
+        packet.i = -70000;
+        packet.l = Long.MAX_VALUE;
+        packet.f = 1.5f;
+        packet.d = -2.25;
+        packet.boxed = 42;
+        packet.name = "Sword of \u00C6ons";
+        packet.zone = JTestPacket.Zone.DUNGEON;
+        packet.scores = new int[]{1, -2, 3};
+        packet.grid = new String[][]{{"a", null}, null};
+        packet.items = List.of("potion", "shield");
+        packet.visited = Set.of(JTestPacket.Zone.TOWN);
+        packet.nested = List.of(List.of(1, 2), List.of());
+        packet.child = new JTestPacket();
+        packet.child.name = "child";
+        packet.ignored = "ignored";
+
+        JTestPacket decoded = roundTrip(packet, new JTestPacket());
+
+        assertTrue(decoded.flag);
+        assertEquals(-3, decoded.b);
+        assertEquals(1234, decoded.s);
+        assertEquals('\u20AC', decoded.c);
+        assertEquals(-70000, decoded.i);
+        assertEquals(Long.MAX_VALUE, decoded.l);
+        assertEquals(1.5f, decoded.f);
+        assertEquals(-2.25, decoded.d);
+        assertEquals(42, decoded.boxed);
+        assertNull(decoded.nullBoxed);
+        assertEquals("Sword of \u00C6ons", decoded.name);
+        assertNull(decoded.nullName);
+        assertEquals(JTestPacket.Zone.DUNGEON, decoded.zone);
+        assertNull(decoded.nullZone);
+        assertArrayEquals(new int[]{1, -2, 3}, decoded.scores);
+        assertArrayEquals(new String[][]{{"a", null}, null}, decoded.grid);
+        assertEquals(List.of("potion", "shield"), decoded.items);
+        assertEquals(Set.of(JTestPacket.Zone.TOWN), decoded.visited);
+        assertEquals(List.of(List.of(1, 2), List.of()), decoded.nested);
+        assertEquals("child", decoded.child.name);
+        assertNull(decoded.child.child);
+        assertNull(decoded.ignored);
+    }
+
+    @Test
+    void testDecodeReusesMutableCollections() throws IOException {
+        JTestPacket packet = new JTestPacket();
+        packet.items = List.of("a");
+        packet.scores = new int[]{7};
+
+        JTestPacket target = new JTestPacket();
+        List<String> items = new ArrayList<>(List.of("stale"));
+        int[] scores = new int[1];
+        target.items = items;
+        target.scores = scores;
+
+        roundTrip(packet, target);
+        assertSame(items, target.items);
+        assertSame(scores, target.scores);
+        assertEquals(List.of("a"), items);
+        assertEquals(7, scores[0]);
+    }
+
+    @Test
+    void testTruncatedPacketIsRejected() throws IOException {
+        JTestPacket packet = new JTestPacket();
+        packet.name = "truncated";
+
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        registry.getCodec(JTestPacket.class).encode(packet, output);
+
+        JServerPacketInput input = new JServerPacketInput(registry);
+        input.setBuffer(output.getBuffer(), 0, output.size() / 2);
+        assertThrows(StreamCorruptedException.class,
+                     () -> registry.getCodec(JTestPacket.class).decode(new JTestPacket(), input));
+    }
+
+    @Test
+    void testStringDictionaryReferencesRepeatedStrings() throws IOException {
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        JServerPacketInput input = new JServerPacketInput(registry);
+        output.setStringDictionary(new JServerStringDictionary(2));
+        input.setStringDictionary(new JServerStringDictionary(2));
+
+        output.writeString("potion");
+        int literalSize = output.size();
+        output.writeString("potion");
+        assertEquals(1, output.size() - literalSize);
+
+        // Adding a third string evicts the oldest on both sides.
+        output.writeString("shield");
+        output.writeString("helmet");
+        output.writeString("potion");
+        output.writeString("helmet");
+        output.writeString(null);
+
+        input.setBuffer(output.getBuffer(), 0, output.size());
+        String first = input.readString();
+        assertEquals("potion", first);
+        assertSame(first, input.readString());
+        assertEquals("shield", input.readString());
+        assertEquals("helmet", input.readString());
+        assertEquals("potion", input.readString());
+        assertEquals("helmet", input.readString());
+        assertNull(input.readString());
+        assertEquals(0, input.remaining());
+    }
+
+    @Test
+    void testStringDictionaryRollbackRestoresEvictedEntries() {
+        JServerStringDictionary dictionary = new JServerStringDictionary(2);
+        dictionary.add("potion");
+        dictionary.add("shield");
+
+        dictionary.mark();
+        dictionary.add("helmet");
+        dictionary.add("gloves");
+        dictionary.rollback();
+
+        assertEquals(0, dictionary.indexOf("potion"));
+        assertEquals(1, dictionary.indexOf("shield"));
+        assertEquals(-1, dictionary.indexOf("helmet"));
+        assertEquals(-1, dictionary.indexOf("gloves"));
+
+        // The next string takes the place it would have taken without the undone additions.
+        dictionary.add("helmet");
+        assertEquals(0, dictionary.indexOf("helmet"));
+        assertEquals(-1, dictionary.indexOf("potion"));
+        assertThrows(IllegalStateException.class, dictionary::rollback);
+    }
+
+    @Test
+    void testNestedPooledPacketsAreReleasedWithTheirOwner() throws IOException {
+        JServerPacketPool pool = new JServerPacketPool(true, registry);
+        pool.register(JTestPacket.class, JTestPacket::new);
+
+        JTestPacket parent = pool.borrow(JTestPacket.class);
+        parent.child = pool.borrow(JTestPacket.class);
+        parent.child.child = pool.borrow(JTestPacket.class);
+        assertEquals(3, pool.getOutstandingCount());
+
+        // Decoding over a nested packet releases it before it is replaced.
+        JTestPacket packet = new JTestPacket();
+        packet.child = new JTestPacket();
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        registry.getCodec(JTestPacket.class).encode(packet, output);
+        JServerPacketInput input = new JServerPacketInput(registry);
+        input.setPacketPool(pool);
+        input.setBuffer(output.getBuffer(), 0, output.size());
+        registry.getCodec(JTestPacket.class).decode(parent, input);
+        assertEquals(2, pool.getOutstandingCount());
+        assertTrue(parent.child.isPooled());
+
+        assertTrue(parent.release());
+        assertNull(parent.child);
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    void testDeeplyNestedPacketIsRejected() throws IOException {
+        JServerPacketCodec<JTestPacket> codec = registry.getCodec(JTestPacket.class);
+        JServerPacketInput input = new JServerPacketInput(registry);
+
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        codec.encode(nest(JServerPacketInput.MAX_NESTING_DEPTH), output);
+        input.setBuffer(output.getBuffer(), 0, output.size());
+        codec.decode(new JTestPacket(), input);
+
+        output.reset();
+        codec.encode(nest(JServerPacketInput.MAX_NESTING_DEPTH + 1), output);
+        input.setBuffer(output.getBuffer(), 0, output.size());
+        assertThrows(StreamCorruptedException.class, () -> codec.decode(new JTestPacket(), input));
+    }
+
+    /**
+     * @return Packet holding the given number of nested packets inside each other.
+     */
+    private static JTestPacket nest(int depth) {
+        JTestPacket packet = new JTestPacket();
+        for (int i = 0; i < depth; i++) {
+            JTestPacket parent = new JTestPacket();
+            parent.child = packet;
+            packet = parent;
+        }
+        return packet;
+    }
+
+    private JTestPacket roundTrip(JTestPacket packet, JTestPacket target) throws IOException {
+        JServerPacketCodec<JTestPacket> codec = registry.getCodec(JTestPacket.class);
+        assertNotNull(codec);
+
+        JServerPacketOutput output = new JServerPacketOutput(registry);
+        codec.encode(packet, output);
+
+        JServerPacketInput input = new JServerPacketInput(registry);
+        input.setBuffer(output.getBuffer(), 0, output.size());
+        codec.decode(target, input);
+        assertEquals(0, input.remaining());
+        return target;
+    }
+}
@@ -0,0 +1,43 @@
+package solar.rpg.jserver.packet.codec;
+
+import solar.rpg.jserver.packet.JServerPacket;
+
+import java.util.List;
+import java.util.Set;
+
+@JServerPacketType(id = 100)
+public class JTestPacket extends JServerPacket {
+
+    enum Zone {
+        TOWN,
+        DUNGEON
+    }
+
+    boolean flag;
+    byte b;
+    short s;
+    char c;
+    int i;
+    long l;
+    float f;
+    double d;
+    Integer boxed;
+    Long nullBoxed;
+    String name;
+    String nullName;
+    Zone zone;
+    Zone nullZone;
+    int[] scores;
+    String[][] grid;
+    List<String> items;
+    Set<Zone> visited;
+    List<List<Integer>> nested;
+    JTestPacket child;
+    transient String ignored;
+
+    @Override
+    protected void reset() {
+        name = null;
+        items = null;
+    }
+}
@@ -0,0 +1,129 @@
+package solar.rpg.jserver.packet.codec.processor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerPacketCodecProcessorTest {
+
+    private static final Pattern FINGERPRINT = Pattern.compile("FINGERPRINT = (0x[0-9A-F]+)L");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReorderingEnumConstantsChangesFingerprint() throws IOException {
+        String packet = "public class Move extends solar.rpg.jserver.packet.JServerPacket { Direction direction; }";
+
+        String original = fingerprint("game",
+                                      "Move", "@solar.rpg.jserver.packet.codec.JServerPacketType(id = 300) " + packet,
+                                      "Direction", "enum Direction { NORTH, SOUTH }");
+        String reordered = fingerprint("game",
+                                       "Move", "@solar.rpg.jserver.packet.codec.JServerPacketType(id = 300) " + packet,
+                                       "Direction", "enum Direction { SOUTH, NORTH }");
+        assertNotEquals(original, reordered);
+    }
+
+    @Test
+    void testChangingNestedPacketChangesFingerprint() throws IOException {
+        String packet = "@solar.rpg.jserver.packet.codec.JServerPacketType(id = 300) "
+                        + "public class Trade extends solar.rpg.jserver.packet.JServerPacket { Item item; Trade next; }";
+        String item = "@solar.rpg.jserver.packet.codec.JServerPacketType(id = 301) "
+                      + "public class Item extends solar.rpg.jserver.packet.JServerPacket { int count; %s }";
+
+        String original = fingerprint("game", "Trade", packet, "Item", String.format(item, ""));
+        String changed = fingerprint("game", "Trade", packet, "Item", String.format(item, "String name;"));
+        assertNotEquals(original, changed);
+    }
+
+    @Test
+    void testReservedIdsAreOnlyAllowedInsideReservedPackage() throws IOException {
+        String packet = "@solar.rpg.jserver.packet.codec.JServerPacketType(id = 5) "
+                        + "public class Probe extends solar.rpg.jserver.packet.JServerPacket { }";
+
+        assertTrue(compile("solar.rpg.jserver.probe", "Probe", packet).isEmpty());
+        assertTrue(compile("solar.rpg.jserverx", "Probe", packet).contains("Packet ids below"));
+    }
+
+    @Test
+    void testIncrementalCompilationKeepsListedCodecs() throws IOException {
+        Path classes = Files.createTempDirectory(directory, "classes");
+        String packet = "@solar.rpg.jserver.packet.codec.JServerPacketType(id = %d) "
+                        + "public class %s extends solar.rpg.jserver.packet.JServerPacket { int value; }";
+
+        assertTrue(compile(classes, "game", "Alpha", String.format(packet, 300, "Alpha")).isEmpty());
+        assertTrue(compile(classes, "game", "Beta", String.format(packet, 301, "Beta")).isEmpty());
+
+        Path serviceFile = classes.resolve("META-INF/services/solar.rpg.jserver.packet.codec.JServerPacketCodec");
+        assertEquals(List.of("game.AlphaCodec", "game.BetaCodec"), Files.readAllLines(serviceFile));
+    }
+
+    /**
+     * Compiles the given types into a package and returns the fingerprint generated for the first type.
+     */
+    private String fingerprint(String packageName, String... namesAndSources) throws IOException {
+        String errors = compile(packageName, namesAndSources);
+        assertTrue(errors.isEmpty(), errors);
+
+        String codec = Files.readString(directory.resolve("generated").resolve(packageName.replace('.', '/'))
+                                                 .resolve(namesAndSources[0] + "Codec.java"));
+        Matcher matcher = FINGERPRINT.matcher(codec);
+        assertTrue(matcher.find());
+        return matcher.group(1);
+    }
+
+    /**
+     * Runs the processor over the given types, declared in a fresh package directory.
+     *
+     * @return Compiler diagnostics, which are empty if compilation succeeded.
+     */
+    private String compile(String packageName, String... namesAndSources) throws IOException {
+        return compile(Files.createTempDirectory(directory, "classes"), packageName, namesAndSources);
+    }
+
+    /**
+     * Runs the processor over the given types, declared in a fresh package directory, writing resources to the given
+     * class output directory.
+     *
+     * @return Compiler diagnostics, which are empty if compilation succeeded.
+     */
+    private String compile(Path classes, String packageName, String... namesAndSources) throws IOException {
+        Path sources = Files.createTempDirectory(directory, "src");
+        Path generated = directory.resolve("generated");
+        Files.createDirectories(generated);
+
+        String[] arguments = new String[namesAndSources.length / 2 + 9];
+        arguments[0] = "-proc:only";
+        arguments[1] = "-processor";
+        arguments[2] = JServerPacketCodecProcessor.class.getName();
+        arguments[3] = "-classpath";
+        arguments[4] = System.getProperty("java.class.path");
+        arguments[5] = "-s";
+        arguments[6] = generated.toString();
+        arguments[7] = "-d";
+        arguments[8] = classes.toString();
+        for (int i = 0; i < namesAndSources.length; i += 2) {
+            Path source = sources.resolve(namesAndSources[i] + ".java");
+            Files.writeString(source, "package " + packageName + ";\n" + namesAndSources[i + 1]);
+            arguments[9 + i / 2] = source.toString();
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        int result = compiler.run(null, diagnostics, diagnostics, arguments);
+        String errors = diagnostics.toString(StandardCharsets.UTF_8);
+        return result == 0 ? "" : errors;
+    }
+}
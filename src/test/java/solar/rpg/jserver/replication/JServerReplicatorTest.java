@@ -0,0 +1,202 @@
+package solar.rpg.jserver.replication;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import solar.rpg.jserver.packet.codec.JServerPacketCodecRegistry;
+import solar.rpg.jserver.packet.codec.JServerPacketInput;
+import solar.rpg.jserver.packet.codec.JServerPacketOutput;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JServerReplicatorTest {
+
+    private static final InetSocketAddress CLIENT_ADDRESS = new InetSocketAddress("127.0.0.1", 1);
+    private static final InetSocketAddress HOST_ADDRESS = new InetSocketAddress("127.0.0.1", 2);
+    private static final InetSocketAddress OTHER_CLIENT_ADDRESS = new InetSocketAddress("127.0.0.1", 3);
+
+    private JServerReplicator host;
+    private JServerReplicator client;
+    private List<JServerReplicatedObject> removed;
+
+    @BeforeEach
+    void setUp() {
+        host = newReplicator();
+        client = newReplicator();
+        host.addConnection(CLIENT_ADDRESS);
+        client.addConnection(HOST_ADDRESS);
+        removed = new ArrayList<>();
+    }
+
+    @Test
+    void testOnlyChangedFieldsAreSentAfterAcknowledgement() throws IOException {
+        JTestEntity entity = new JTestEntity();
+        entity.setName("Goblin");
+        host.register(entity);
+
+        JServerReplicationPacket snapshot = update();
+        assertTrue(snapshot.isSnapshot());
+        assertNull(update(), "Nothing is sent until the snapshot is acknowledged");
+        acknowledge(snapshot);
+
+        JTestEntity replica = (JTestEntity) client.getReplica(HOST_ADDRESS, entity.getId());
+        assertNotNull(replica);
+        assertEquals("Goblin", replica.name);
+
+        entity.setHealth(42);
+        JServerReplicationPacket delta = update();
+        assertFalse(delta.isSnapshot());
+        assertTrue(delta.changes.length < snapshot.changes.length);
+        assertNull(update(), "Nothing is sent while in sync");
+
+        // Changes are sent relative to the acknowledged baseline until the delta is acknowledged.
+        entity.setX(7);
+        JServerReplicationPacket resent = update();
+        acknowledge(delta);
+        acknowledge(resent);
+        assertEquals(42, replica.health);
+        assertEquals(7, replica.x);
+        assertEquals("Goblin", replica.name);
+
+        host.unregister(entity);
+        acknowledge(update());
+        assertNull(client.getReplica(HOST_ADDRESS, entity.getId()));
+        assertEquals(List.of(replica), removed);
+    }
+
+    @Test
+    void testSnapshotResyncsAfterLostUpdate() throws IOException {
+        host.setSnapshotInterval(3);
+        JTestEntity first = new JTestEntity();
+        JTestEntity second = new JTestEntity();
+        host.register(first);
+        host.register(second);
+        int secondId = second.getId();
+        acknowledge(update());
+
+        // The update is lost, so the replica of the second entity is stale until the next snapshot.
+        first.setHealth(1);
+        host.unregister(second);
+        assertNotNull(update());
+        assertNull(update());
+
+        JServerReplicationPacket snapshot = update();
+        assertTrue(snapshot.isSnapshot());
+        acknowledge(snapshot);
+        assertEquals(1, ((JTestEntity) client.getReplica(HOST_ADDRESS, first.getId())).health);
+        assertNull(client.getReplica(HOST_ADDRESS, secondId));
+        assertEquals(1, client.getReplicas(HOST_ADDRESS).size());
+    }
+
+    @Test
+    void testRemovalsAreKeptForConnectionsWaitingToAcknowledgeSnapshot() throws IOException {
+        JTestEntity first = new JTestEntity();
+        JTestEntity second = new JTestEntity();
+        host.register(first);
+        host.register(second);
+        int secondId = second.getId();
+        acknowledge(update());
+
+        // The other client is sent a snapshot which still contains the second entity, but does not acknowledge it yet.
+        JServerReplicator otherClient = newReplicator();
+        otherClient.addConnection(HOST_ADDRESS);
+        host.addConnection(OTHER_CLIENT_ADDRESS);
+        JServerReplicationPacket otherSnapshot = host.createUpdates().get(OTHER_CLIENT_ADDRESS);
+        assertTrue(otherSnapshot.isSnapshot());
+
+        // The first client acknowledges the removal, which must not make the replicator forget it.
+        host.unregister(second);
+        acknowledge(update());
+        assertNull(host.createUpdates().get(CLIENT_ADDRESS));
+
+        acknowledge(otherClient, OTHER_CLIENT_ADDRESS, otherSnapshot);
+        assertNotNull(otherClient.getReplica(HOST_ADDRESS, secondId));
+        JServerReplicationPacket otherDelta = host.createUpdates().get(OTHER_CLIENT_ADDRESS);
+        assertNotNull(otherDelta, "Expected the removal to be sent");
+        acknowledge(otherClient, OTHER_CLIENT_ADDRESS, otherDelta);
+        assertNull(otherClient.getReplica(HOST_ADDRESS, secondId));
+        assertEquals(1, otherClient.getReplicas(HOST_ADDRESS).size());
+    }
+
+    private JServerReplicationPacket update() throws IOException {
+        return host.createUpdates().get(CLIENT_ADDRESS);
+    }
+
+    private void acknowledge(@NotNull JServerReplicationPacket update) throws IOException {
+        acknowledge(client, CLIENT_ADDRESS, update);
+    }
+
+    private void acknowledge(
+            @NotNull JServerReplicator receiver,
+            @NotNull InetSocketAddress receiverAddress,
+            @NotNull JServerReplicationPacket update) throws IOException {
+        JServerReplicationAckPacket ack = receiver.apply(HOST_ADDRESS, update, new JServerReplicaListener() {
+            @Override
+            public void onReplicaUpdated(@NotNull JServerReplicatedObject replica) {
+            }
+
+            @Override
+            public void onReplicaRemoved(@NotNull JServerReplicatedObject replica) {
+                removed.add(replica);
+            }
+        });
+        assertNotNull(ack);
+        host.onAcknowledged(receiverAddress, ack);
+    }
+
+    @NotNull
+    private static JServerReplicator newReplicator() {
+        JServerReplicator replicator = new JServerReplicator(new JServerPacketCodecRegistry());
+        replicator.registerType(0, JTestEntity.class, JTestEntity::new);
+        return replicator;
+    }
+
+    private static final class JTestEntity extends JServerReplicatedObject {
+
+        private String name;
+        private int health;
+        private int x;
+
+        JTestEntity() {
+            super(3);
+        }
+
+        synchronized void setName(String name) {
+            this.name = name;
+            markChanged(0);
+        }
+
+        synchronized void setHealth(int health) {
+            this.health = health;
+            markChanged(1);
+        }
+
+        synchronized void setX(int x) {
+            this.x = x;
+            markChanged(2);
+        }
+
+        @Override
+        protected void writeField(int field, @NotNull JServerPacketOutput output) {
+            switch (field) {
+                case 0 -> output.writeString(name);
+                case 1 -> output.writeVarInt(health);
+                default -> output.writeSignedVarInt(x);
+            }
+        }
+
+        @Override
+        protected void readField(int field, @NotNull JServerPacketInput input) throws IOException {
+            switch (field) {
+                case 0 -> name = input.readString();
+                case 1 -> health = input.readVarInt();
+                default -> x = input.readSignedVarInt();
+            }
+        }
+    }
+}